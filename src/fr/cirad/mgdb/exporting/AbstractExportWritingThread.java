@@ -19,6 +19,7 @@ package fr.cirad.mgdb.exporting;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.apache.log4j.Logger;
 
@@ -39,5 +40,20 @@ public abstract class AbstractExportWritingThread extends Thread
 		return CompletableFuture.runAsync(this);
 	}
 	
+	/**
+	 * Writes a chunk of runs using the provided executor. Unlike writeRuns(LinkedHashMap), the map is not duplicated: the caller hands it over and must not modify it afterwards.
+	 * When several chunks are submitted in a row, the executor is expected to be single-threaded so that they get written in submission order.
+	 *
+	 * @param markerRunsToWrite the chunk to write (variant ID -> runs)
+	 * @param executor the executor to write with
+	 * @return a future that completes once the chunk is written
+	 */
+	public CompletableFuture<Void> writeRuns(LinkedHashMap<String /* variant ID*/, List<VariantRunData>> markerRunsToWrite, Executor executor) {
+		return CompletableFuture.runAsync(() -> {
+			this.markerRunsToWrite = markerRunsToWrite;
+			run();
+		}, executor);
+	}
+	
 	public abstract void run();
 }
\ No newline at end of file
@@ -48,6 +48,7 @@ public interface IExportHandler
 	
 	static final Document projectionDoc = new Document(VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1);	
 	static final Document sortDoc = new Document(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1);
+	static final Document ordinalSortDoc = new Document(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, 1).append(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1);
 	static final Collation collationObj = Collation.builder().numericOrdering(true).locale("en_US").build();
 	
 	/** The Constant nMaxChunkSizeInMb. */
@@ -109,6 +110,21 @@ public interface IExportHandler
 		return varColl.find(varQuery).projection(projectionDoc).sort(sortDoc).noCursorTimeout(true).collation(collationObj).batchSize(nQueryChunkSize).iterator();
 	}
 
+	/**
+	 * Gets a cursor on variants sorted by position, relying on sequence ordinals if available (see MgdbDao.hasSequenceOrdinals), which avoids collation-based sorting.
+	 *
+	 * @param varColl the variant collection
+	 * @param varQuery the variant query
+	 * @param nQueryChunkSize the query chunk size
+	 * @param fUseSequenceOrdinals whether all positioned records hold a sequence ordinal
+	 * @return the marker cursor
+	 */
+	public static MongoCursor<Document> getMarkerCursor(MongoCollection<Document> varColl, Document varQuery, int nQueryChunkSize, boolean fUseSequenceOrdinals) {
+		if (!fUseSequenceOrdinals)
+			return getMarkerCursorWithCorrectCollation(varColl, varQuery, nQueryChunkSize);
+		return varColl.find(varQuery).projection(projectionDoc).sort(ordinalSortDoc).noCursorTimeout(true).batchSize(nQueryChunkSize).iterator();
+	}
+
 	public static ZipOutputStream createArchiveOutputStream(OutputStream outputStream, Map<String, InputStream> readyToExportFiles) throws IOException {
         ZipOutputStream zos = new ZipOutputStream(outputStream);
 
@@ -116,11 +132,11 @@ public interface IExportHandler
             for (String readyToExportFile : readyToExportFiles.keySet()) {
                 zos.putNextEntry(new ZipEntry(readyToExportFile));
                 InputStream inputStream = readyToExportFiles.get(readyToExportFile);
-                byte[] dataBlock = new byte[1024];
-                int count = inputStream.read(dataBlock, 0, 1024);
+                byte[] dataBlock = new byte[64 * 1024];
+                int count = inputStream.read(dataBlock, 0, dataBlock.length);
                 while (count != -1) {
                     zos.write(dataBlock, 0, count);
-                    count = inputStream.read(dataBlock, 0, 1024);
+                    count = inputStream.read(dataBlock, 0, dataBlock.length);
                 }
                 zos.closeEntry();
             }
@@ -128,6 +144,12 @@ public interface IExportHandler
         return zos;
 	}
 	
+	/**
+	 * Computes a query chunk size from the collection-wide average document size.
+	 *
+	 * @deprecated runs a collStats command and ignores the fact that projected documents only hold selected samples' genotypes: let ExportManager estimate and adjust the chunk size instead
+	 */
+	@Deprecated
 	public static int computeQueryChunkSize(MongoTemplate mongoTemplate, long nExportedVariantCount) {
 		Number avgObjSize = (Number) mongoTemplate.getDb().runCommand(new Document("collStats", mongoTemplate.getCollectionName(VariantRunData.class))).get("avgObjSize");
 		return (int) Math.min(nExportedVariantCount / 20 /* no more than 5% at a time */, Math.max(1, (nMaxChunkSizeInMb*1024*1024 / avgObjSize.doubleValue())));
@@ -26,12 +26,10 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -46,11 +44,11 @@ import com.mongodb.client.MongoCollection;
 import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
 import fr.cirad.mgdb.exporting.IExportHandler;
 import fr.cirad.mgdb.exporting.tools.ExportManager;
+import fr.cirad.mgdb.exporting.tools.IndividualGenotypeMatrix;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
-import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.ExportPlan;
 import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
-import fr.cirad.tools.AlphaNumericComparator;
 import fr.cirad.tools.ProgressIndicator;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
@@ -105,13 +103,11 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 	{
 		long before = System.currentTimeMillis();
 
-		Map<String, Integer> individualPositions = new LinkedHashMap<>();
-		for (String ind : samplesToExport.stream().map(gs -> gs.getIndividual()).distinct().sorted(new AlphaNumericComparator<String>()).collect(Collectors.toList()))
-			individualPositions.put(ind, individualPositions.size());
+		ExportPlan exportPlan = new ExportPlan(samplesToExport, individuals1, individuals2, annotationFieldThresholds, annotationFieldThresholds2);
 		
-		File[] files = new File[individualPositions.size()];
+		File[] files = new File[exportPlan.getIndividualCount()];
 		int i = 0;
-		for (String individual : individualPositions.keySet()) {
+		for (String individual : exportPlan.getIndividuals()) {
 			files[i] = File.createTempFile(exportID.replaceAll("\\|", "&curren;") +  "-" + individual + "-", ".tsv");
 			if (i == 0)
 				LOG.debug("First temp file for export " + exportID + ": " + files[i].getPath());
@@ -123,21 +119,17 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 
 		final MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
 
-		final Map<Integer, String> sampleIdToIndividualMap = new HashMap<>();
-		for (GenotypingSample gs : samplesToExport)
-			sampleIdToIndividualMap.put(gs.getId(), gs.getIndividual());
-
-		int nQueryChunkSize = IExportHandler.computeQueryChunkSize(mongoTemplate, markerCount);
-
 		MongoCollection collWithPojoCodec = mongoTemplate.getDb().withCodecRegistry(ExportManager.pojoCodecRegistry).getCollection(tmpVarCollName != null ? tmpVarCollName : mongoTemplate.getCollectionName(VariantRunData.class));
 		List<Document> pipeline = new ArrayList<Document>();
 
 		if (!varQuery.isEmpty()) // already checked above
 			pipeline.add(new Document("$match", varQuery));
 
+		IndividualGenotypeMatrix genotypeMatrix = new IndividualGenotypeMatrix(exportPlan.getIndividualCount(), exportID.replaceAll("\\|", "&curren;") + "-");	// filling a single scratch matrix avoids reopening every individual's file for each chunk (keeping them all open leads to failure, see ulimit command)
 		AbstractExportWritingThread writingThread = new AbstractExportWritingThread() {
 			public void run() {
-				StringBuffer[] individualGenotypeBuffers = new StringBuffer[individualPositions.size()];	// keeping all files open leads to failure (see ulimit command), keeping them closed and reopening them each time we need to write a genotype is too time consuming: so our compromise is to reopen them only once per chunk
+				int[] variantGenotypeIds = new int[exportPlan.getIndividualCount()];
+				StringBuilder sb = new StringBuilder();
 				try
 				{
 					for (String idOfVarToWrite : markerRunsToWrite.keySet()) {
@@ -156,15 +148,14 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 //		                }
 						
 						HashMap<String, String> genotypeStringCache = new HashMap<>();
-						LinkedHashSet<String>[] individualGenotypes = new LinkedHashSet[individualPositions.size()];
+						LinkedHashSet<String>[] individualGenotypes = new LinkedHashSet[exportPlan.getIndividualCount()];
 		                if (runsToWrite != null)
 		                	for (Object vrd : runsToWrite) {
 		                    	VariantRunData run = (VariantRunData) vrd;
-								for (Integer sampleId : run.getSampleGenotypes().keySet()) {
-									SampleGenotype sampleGenotype = run.getSampleGenotypes().get(sampleId);
-									String individualId = sampleIdToIndividualMap.get(sampleId);
-									if (!VariantData.gtPassesVcfAnnotationFilters(individualId, sampleGenotype, individuals1, annotationFieldThresholds, individuals2, annotationFieldThresholds2))
-										continue;	// skip genotype
+								run.getSampleGenotypes().forEachEntry((sampleId, sampleGenotype) -> {	// primitive iteration: no boxed sample IDs nor map entries
+									Integer individualIndex = exportPlan.getIndividualIndex(sampleId);
+									if (individualIndex == null || !exportPlan.gtPassesVcfAnnotationFilters(individualIndex, sampleGenotype))
+										return;	// skip genotype
 
 				                    String exportedGT = genotypeStringCache.get(sampleGenotype.getCode());
 				                    if (exportedGT == null) {
@@ -172,36 +163,25 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 				                    	genotypeStringCache.put(sampleGenotype.getCode(), exportedGT);
 				                    }
 									
-									int individualIndex = individualPositions.get(individualId);
 									if (individualGenotypes[individualIndex] == null)
 										individualGenotypes[individualIndex] = new LinkedHashSet<String>();
 									individualGenotypes[individualIndex].add(exportedGT);
-								}
+								});
 		                	}
 
-						for (String individual : individualPositions.keySet()) {
-							int individualIndex = individualPositions.get(individual);
-							if (individualGenotypeBuffers[individualIndex] == null)
-								individualGenotypeBuffers[individualIndex] = new StringBuffer();	// we are about to write individual's first genotype for this chunk
-
+						for (int individualIndex = 0; individualIndex < variantGenotypeIds.length; individualIndex++) {
 							if (individualGenotypes[individualIndex] == null)
-								individualGenotypeBuffers[individualIndex].append(LINE_SEPARATOR);	// missing data
+								variantGenotypeIds[individualIndex] = IndividualGenotypeMatrix.MISSING_GENOTYPE_ID;
+							else if (individualGenotypes[individualIndex].size() == 1)
+								variantGenotypeIds[individualIndex] = genotypeMatrix.getGenotypeId(individualGenotypes[individualIndex].iterator().next());
 							else {
-								int j = 0;
+								sb.setLength(0);
 								for (String storedIndividualGenotype : individualGenotypes[individualIndex])
-									individualGenotypeBuffers[individualIndex].append(storedIndividualGenotype + (j++ == individualGenotypes[individualIndex].size() - 1 ? LINE_SEPARATOR : "|"));
+									sb.append(sb.length() == 0 ? "" : "|").append(storedIndividualGenotype);
+								variantGenotypeIds[individualIndex] = genotypeMatrix.getGenotypeId(sb.toString());
 							}
 						}
-					}
-
-					// write genotypes collected in this chunk to each individual's file
-					for (String individual : individualPositions.keySet()) {
-						int individualIndex = individualPositions.get(individual);
-						BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(files[individualIndex], true));
-						if (individualGenotypeBuffers[individualIndex] != null)
-							os.write(individualGenotypeBuffers[individualIndex].toString().getBytes());
-	
-						os.close();
+						genotypeMatrix.addVariant(variantGenotypeIds);
 					}
 				}
 				catch (Exception e)
@@ -214,8 +194,17 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 			}
 		};
 		
-		ExportManager exportManager = new ExportManager(mongoTemplate, collWithPojoCodec, VariantRunData.class, varQuery, samplesToExport, true, nQueryChunkSize, writingThread, markerCount, null, progress);
-		exportManager.readAndWrite();
+		try {
+			ExportManager exportManager = new ExportManager(mongoTemplate, collWithPojoCodec, VariantRunData.class, varQuery, samplesToExport, true, writingThread, markerCount, null, progress);
+			exportManager.readAndWrite();
+			
+			// write genotypes collected for all variants to each individual's file
+			if (!progress.isAborted() && progress.getError() == null)
+				genotypeMatrix.writeIndividualFiles(files, LINE_SEPARATOR, progress);
+		}
+		finally {
+			genotypeMatrix.close();
+		}
 		
 	 	if (!progress.isAborted())
 	 		LOG.info("createExportFiles took " + (System.currentTimeMillis() - before)/1000d + "s to process " + markerCount + " variants and " + files.length + " individuals");
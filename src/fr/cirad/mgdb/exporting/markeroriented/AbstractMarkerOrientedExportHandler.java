@@ -16,6 +16,10 @@
  *******************************************************************************/
 package fr.cirad.mgdb.exporting.markeroriented;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -25,16 +29,26 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.log4j.Logger;
 import org.bson.Document;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.data.mongodb.core.MongoTemplate;
 
+import com.mongodb.client.MongoCollection;
+
+import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
 import fr.cirad.mgdb.exporting.IExportHandler;
+import fr.cirad.mgdb.exporting.tools.ExportCache;
+import fr.cirad.mgdb.exporting.tools.ExportManager;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.tools.ProgressIndicator;
+import fr.cirad.tools.mongo.MongoTemplateManager;
 
 /**
  * The Class AbstractMarkerOrientedExportHandler.
@@ -47,6 +61,19 @@ public abstract class AbstractMarkerOrientedExportHandler implements IExportHand
 	
 	/** The marker oriented export handlers. */
 	static private TreeMap<String, AbstractMarkerOrientedExportHandler> markerOrientedExportHandlers = null;
+	
+	/** Cache chunked exports are served from and stored into (null if disabled) */
+	static private ExportCache exportCache = null;
+
+	/**
+	 * Sets the cache chunked exports are served from and stored into.
+	 *
+	 * @param cache the export cache (null to disable caching)
+	 */
+	public static void setExportCache(ExportCache cache)
+	{
+		exportCache = cache;
+	}
 
 	/**
 	 * Export data.
@@ -68,6 +95,137 @@ public abstract class AbstractMarkerOrientedExportHandler implements IExportHand
 	 */
 	abstract public void exportData(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, String tmpVarCollName, Document varQuery, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception;
 
+	/**
+	 * An export fed chunk by chunk with runs fetched by an ExportManager it does not own, so that exports to several formats may share a single fetch (see ExportFanOut).
+	 * Closing it releases its resources, whether or not it was finished.
+	 */
+	public static abstract class ChunkedExport implements Closeable
+	{
+		/**
+		 * Gets the writing thread chunks are to be handed over to.
+		 *
+		 * @return the writing thread
+		 */
+		public abstract AbstractExportWritingThread getWritingThread();
+
+		/**
+		 * Tells whether runs must be fetched along with their metadata (additional info and genotype annotation fields).
+		 *
+		 * @return true, if they must
+		 */
+		public abstract boolean needsMetadata();
+
+		/**
+		 * Completes the export once all chunks have been written. Not to be called if the export failed or was aborted.
+		 *
+		 * @throws Exception the exception
+		 */
+		public abstract void finish() throws Exception;
+	}
+
+	/**
+	 * Starts an export to be fed chunk by chunk. Parameters are those of exportData, minus those telling which data to fetch.
+	 *
+	 * @param outputStream the output stream
+	 * @param sModule the module
+	 * @param individuals1 the individuals in group 1
+	 * @param individuals2 the individuals in group 2
+	 * @param progress the progress
+	 * @param markerCount number of variants to export
+	 * @param markerSynonyms the marker synonyms
+	 * @param annotationFieldThresholds the annotation field thresholds for group 1
+	 * @param annotationFieldThresholds2 the annotation field thresholds for group 2
+	 * @param samplesToExport the samples to export genotyping data for
+	 * @param readyToExportFiles files to export along with the genotyping data
+	 * @return the export, or null if this handler does not support chunked exports (in which case only exportData may be used)
+	 * @throws Exception the exception
+	 */
+	public ChunkedExport startChunkedExport(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception
+	{
+		return null;
+	}
+
+	/**
+	 * Implements exportData for handlers supporting chunked exports: serves the export from the export cache if an identical one was already generated, otherwise feeds a chunked export with data it fetches itself, then finishes and closes it, storing the result into the cache if it completed.
+	 * Exports bundling ready-to-export files are never cached since those files' contents are not part of cache keys.
+	 *
+	 * @param outputStream the output stream
+	 * @param sModule the module
+	 * @param individuals1 the individuals in group 1
+	 * @param individuals2 the individuals in group 2
+	 * @param progress the progress
+	 * @param tmpVarCollName the variant collection name (null if not temporary)
+	 * @param varQuery query to apply on varColl
+	 * @param markerCount number of variants to export
+	 * @param markerSynonyms the marker synonyms
+	 * @param annotationFieldThresholds the annotation field thresholds for group 1
+	 * @param annotationFieldThresholds2 the annotation field thresholds for group 2
+	 * @param samplesToExport the samples to export genotyping data for
+	 * @param readyToExportFiles files to export along with the genotyping data
+	 * @throws Exception the exception
+	 */
+	protected void exportChunked(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, String tmpVarCollName, Document varQuery, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception
+	{
+		String sCacheKey = null;
+		if (exportCache != null && (readyToExportFiles == null || readyToExportFiles.isEmpty()))
+		{
+			Collection<Integer> projectIDs = samplesToExport.stream().map(sp -> sp.getProjectId()).collect(Collectors.toSet());
+			sCacheKey = ExportCache.computeKey(MongoTemplateManager.get(sModule), sModule, getExportFormatName(), projectIDs, tmpVarCollName, varQuery, samplesToExport, individuals1, individuals2, markerSynonyms, annotationFieldThresholds, annotationFieldThresholds2);
+			if (exportCache.serve(sCacheKey, outputStream))
+				return;
+		}
+
+		File cacheTempFile = sCacheKey == null ? null : exportCache.createTempFile(sCacheKey);
+		try
+		{
+			boolean fCompleted = false;
+			try (OutputStream cacheOS = cacheTempFile == null ? null : new BufferedOutputStream(new FileOutputStream(cacheTempFile)))
+			{
+				ChunkedExport export = startChunkedExport(cacheOS == null ? outputStream : new TeeOutputStream(outputStream, cacheOS), sModule, individuals1, individuals2, progress, markerCount, markerSynonyms, annotationFieldThresholds, annotationFieldThresholds2, samplesToExport, readyToExportFiles);
+				try
+				{
+					fetchChunks(sModule, export.getWritingThread(), export.needsMetadata(), progress, tmpVarCollName, varQuery, markerCount, samplesToExport);
+					if (!progress.isAborted() && progress.getError() == null)
+					{
+						export.finish();
+						fCompleted = true;
+					}
+				}
+				finally
+				{
+					export.close();
+				}
+			}
+			if (fCompleted && cacheTempFile != null)
+				exportCache.store(sCacheKey, cacheTempFile);
+		}
+		finally
+		{
+			if (cacheTempFile != null)
+				cacheTempFile.delete();	// no-op if it was stored
+		}
+	}
+
+	/**
+	 * Fetches the runs to export, handing them over chunk by chunk to a writing thread.
+	 *
+	 * @param sModule the module
+	 * @param writingThread the writing thread
+	 * @param fIncludeMetadata whether or not to fetch metadata
+	 * @param progress the progress
+	 * @param tmpVarCollName the variant collection name (null if not temporary)
+	 * @param varQuery query to apply on varColl
+	 * @param markerCount number of variants to export
+	 * @param samplesToExport the samples to export genotyping data for
+	 * @throws Exception the exception
+	 */
+	public static void fetchChunks(String sModule, AbstractExportWritingThread writingThread, boolean fIncludeMetadata, ProgressIndicator progress, String tmpVarCollName, Document varQuery, long markerCount, List<GenotypingSample> samplesToExport) throws Exception
+	{
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
+		MongoCollection collWithPojoCodec = mongoTemplate.getDb().withCodecRegistry(ExportManager.pojoCodecRegistry).getCollection(tmpVarCollName != null ? tmpVarCollName : mongoTemplate.getCollectionName(VariantRunData.class));
+		new ExportManager(mongoTemplate, collWithPojoCodec, VariantRunData.class, varQuery, samplesToExport, fIncludeMetadata, writingThread, markerCount, null, progress).readAndWrite();
+	}
+
 //	/**
 //	 * Gets the individuals from samples.
 //	 *
@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.markeroriented;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
+import fr.cirad.mgdb.exporting.IExportHandler;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.ExportPlan;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Exports to binary PLINK format (BED + BIM + FAM). Genotypes are packed 2 bits each, straight from genotype codes, into SNP-major BED rows.
+ * In BIM files, A1 is the first alternate allele and A2 the reference allele. Genotypes involving any further allele are exported as missing data.
+ */
+public class PlinkBedExportHandler extends AbstractMarkerOrientedExportHandler
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(PlinkBedExportHandler.class);
+
+	/** The BED file header: magic number followed by the SNP-major mode flag */
+	static final byte[] BED_HEADER = new byte[] {0x6c, 0x1b, 0x01};
+
+	/** 2-bit BED codes */
+	static final byte BED_HOM_A1 = 0, BED_MISSING = 1, BED_HET = 2, BED_HOM_A2 = 3;
+
+	/** Returned by getBedCode for genotype codes that cannot be parsed (exported as BED_MISSING) */
+	static final byte UNPARSEABLE_CODE = -1;
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportFormatName()
+	 */
+	@Override
+	public String getExportFormatName() {
+		return "PLINK-BED";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportFormatDescription()
+	 */
+	@Override
+	public String getExportFormatDescription() {
+		return "Exports zipped BED, BIM and FAM files (binary PLINK format, 2 bits per genotype). Only the reference allele and the first alternate allele are exported: genotypes involving other alleles are exported as missing data.";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportArchiveExtension()
+	 */
+	@Override
+	public String getExportArchiveExtension() {
+		return "zip";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportDataFileExtensions()
+	 */
+	@Override
+	public String[] getExportDataFileExtensions() {
+		return new String[] {"bed", "bim", "fam"};
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getStepList()
+	 */
+	@Override
+	public List<String> getStepList() {
+		return Arrays.asList(new String[] {"Exporting data to binary PLINK format"});
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.markeroriented.AbstractMarkerOrientedExportHandler#exportData(java.io.OutputStream, java.lang.String, java.util.Collection, java.util.Collection, fr.cirad.tools.ProgressIndicator, java.lang.String, org.bson.Document, long, java.util.Map, java.util.HashMap, java.util.HashMap, java.util.List, java.util.Map)
+	 */
+	@Override
+	public void exportData(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, String tmpVarCollName, Document varQuery, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception
+	{
+		exportChunked(outputStream, sModule, individuals1, individuals2, progress, tmpVarCollName, varQuery, markerCount, markerSynonyms, annotationFieldThresholds, annotationFieldThresholds2, samplesToExport, readyToExportFiles);
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.markeroriented.AbstractMarkerOrientedExportHandler#startChunkedExport(java.io.OutputStream, java.lang.String, java.util.Collection, java.util.Collection, fr.cirad.tools.ProgressIndicator, long, java.util.Map, java.util.HashMap, java.util.HashMap, java.util.List, java.util.Map)
+	 */
+	@Override
+	public ChunkedExport startChunkedExport(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception
+	{
+		return new PlinkBedExport(outputStream, sModule, progress, markerCount, markerSynonyms, new ExportPlan(samplesToExport, individuals1, individuals2, annotationFieldThresholds, annotationFieldThresholds2), readyToExportFiles);
+	}
+
+	/**
+	 * A binary PLINK export: BED rows are written to the archive as chunks come, while BIM lines go to a temporary file appended to the archive when finishing.
+	 */
+	static private class PlinkBedExport extends ChunkedExport
+	{
+		private final long before = System.currentTimeMillis();
+
+		private final String sModule;
+
+		private final ProgressIndicator progress;
+
+		private final long markerCount;
+
+		private final ExportPlan exportPlan;
+
+		private final String exportName;
+
+		private final File bimFile, warningFile;
+
+		private final FileWriter warningFileWriter;
+
+		private ZipOutputStream zos;
+
+		private OutputStream bimOS;
+
+		private final AbstractExportWritingThread writingThread;
+
+		PlinkBedExport(OutputStream outputStream, String sModule, ProgressIndicator progress, long markerCount, Map<String, String> markerSynonyms, ExportPlan exportPlan, Map<String, InputStream> readyToExportFiles) throws IOException {
+			this.sModule = sModule;
+			this.progress = progress;
+			this.markerCount = markerCount;
+			this.exportPlan = exportPlan;
+			int nIndividualCount = exportPlan.getIndividualCount();
+			exportName = sModule + "__" + markerCount + "variants__" + nIndividualCount + "individuals";
+
+			bimFile = File.createTempFile(exportName + "-", ".bim");
+			warningFile = File.createTempFile(exportName + "-warnings-", ".txt");
+			warningFileWriter = new FileWriter(warningFile);
+			try {
+				zos = IExportHandler.createArchiveOutputStream(outputStream, readyToExportFiles);
+				bimOS = new BufferedOutputStream(new FileOutputStream(bimFile));
+				zos.putNextEntry(new ZipEntry(exportName + ".bed"));
+				zos.write(BED_HEADER);
+			}
+			catch (IOException ioe) {
+				close();
+				throw ioe;
+			}
+
+			writingThread = new AbstractExportWritingThread() {
+				final byte[] bedRow = new byte[(nIndividualCount + 3) / 4];
+				final HashMap<String, Byte> bedCodeCache = new HashMap<>();	// genotype code -> 2-bit BED code, valid for any variant
+				final int[] bedCodeCounts = new int[4];
+				final String[] bedCodeExamples = new String[4];
+
+				public void run() {
+					try {
+						for (String variantId : markerRunsToWrite.keySet()) {
+							if (progress.isAborted() || progress.getError() != null)
+								break;
+
+							List<VariantRunData> runs = markerRunsToWrite.get(variantId);
+							if (runs.isEmpty())
+								continue;
+
+							String exportedId = variantId;
+							if (markerSynonyms != null) {
+								String syn = markerSynonyms.get(variantId);
+								if (syn != null)
+									exportedId = syn;
+							}
+
+							List<String> alleles = runs.get(0).getKnownAlleleList();
+							for (VariantRunData run : runs)
+								if (run.getKnownAlleleList().size() > alleles.size())
+									alleles = run.getKnownAlleleList();
+							boolean fFoundExtraAlleles = false;
+							String sUnparseableCode = null;
+
+							Arrays.fill(bedRow, (byte) 0);
+							for (int nIndividualIndex = 0; nIndividualIndex < nIndividualCount; nIndividualIndex++) {
+								Arrays.fill(bedCodeCounts, 0);
+								byte nMostFrequentBedCode = BED_MISSING;
+								int nDistinctCallCount = 0;
+								for (int sampleId : exportPlan.getIndividualSampleIDs(nIndividualIndex))
+									for (VariantRunData run : runs) {
+										SampleGenotype sg = run.getSampleGenotypes().get(sampleId);
+										if (sg == null || sg.getCode() == null || !exportPlan.gtPassesVcfAnnotationFilters(nIndividualIndex, sg))
+											continue;
+
+										Byte bedCode = bedCodeCache.get(sg.getCode());
+										if (bedCode == null) {
+											bedCode = getBedCode(sg.getCode());
+											bedCodeCache.put(sg.getCode(), bedCode);
+										}
+										if (bedCode == BED_MISSING) {
+											fFoundExtraAlleles = true;
+											continue;
+										}
+										if (bedCode == UNPARSEABLE_CODE) {
+											sUnparseableCode = sg.getCode();
+											continue;
+										}
+
+										if (bedCodeCounts[bedCode]++ == 0) {
+											nDistinctCallCount++;
+											bedCodeExamples[bedCode] = sg.getCode();
+										}
+										if (nMostFrequentBedCode == BED_MISSING || bedCodeCounts[bedCode] > bedCodeCounts[nMostFrequentBedCode])
+											nMostFrequentBedCode = bedCode;
+									}
+
+								if (nDistinctCallCount > 1)
+									warningFileWriter.write("- Dissimilar genotypes found for variant " + exportedId + ", individual " + exportPlan.getIndividual(nIndividualIndex) + ". Exporting most frequent: " + bedCodeExamples[nMostFrequentBedCode] + "\n");
+								bedRow[nIndividualIndex >> 2] |= nMostFrequentBedCode << ((nIndividualIndex & 3) << 1);
+							}
+							zos.write(bedRow);
+
+							if (fFoundExtraAlleles)
+								warningFileWriter.write("- Variant " + exportedId + " has more than 2 alleles: genotypes involving alleles other than the first two were exported as missing data\n");
+							if (sUnparseableCode != null)
+								warningFileWriter.write("- Variant " + exportedId + " has genotype codes that could not be parsed (e.g. '" + sUnparseableCode + "'): they were exported as missing data\n");
+
+							ReferencePosition refPos = runs.get(0).getReferencePosition();
+							bimOS.write(((refPos == null || refPos.getSequence() == null ? "0" : refPos.getSequence()) + "\t" + exportedId + "\t0\t" + (refPos == null ? 0 : refPos.getStartSite()) + "\t" + (alleles.size() > 1 ? alleles.get(1) : "0") + "\t" + (alleles.isEmpty() ? "0" : alleles.get(0)) + LINE_SEPARATOR).getBytes());
+						}
+					}
+					catch (Exception e) {
+						if (progress.getError() == null)	// only log this once
+							LOG.debug("Unable to export data for " + sModule, e);
+						progress.setError("Unable to export data for " + sModule + ": " + e.getMessage());
+					}
+				}
+			};
+		}
+
+		@Override
+		public AbstractExportWritingThread getWritingThread() {
+			return writingThread;
+		}
+
+		@Override
+		public boolean needsMetadata() {
+			return false;
+		}
+
+		@Override
+		public void finish() throws Exception {
+			bimOS.close();
+			zos.closeEntry();
+
+			zos.putNextEntry(new ZipEntry(exportName + ".bim"));
+			try (InputStream bimIS = new FileInputStream(bimFile)) {
+				byte[] dataBlock = new byte[64 * 1024];
+				int count;
+				while ((count = bimIS.read(dataBlock)) != -1)
+					zos.write(dataBlock, 0, count);
+			}
+			zos.closeEntry();
+
+			zos.putNextEntry(new ZipEntry(exportName + ".fam"));
+			LinkedHashMap<String, String> populations = MgdbDao.getIndividualPopulations(sModule, exportPlan.getIndividuals());
+			for (String individual : exportPlan.getIndividuals()) {
+				String population = populations.get(individual);
+				zos.write(((population == null ? individual : population) + "\t" + individual + "\t0\t0\t0\t-9" + LINE_SEPARATOR).getBytes());
+			}
+			zos.closeEntry();
+
+			warningFileWriter.close();
+			if (warningFile.length() > 0) {
+				zos.putNextEntry(new ZipEntry(exportName + "-REMARKS.txt"));
+				try (InputStream warningIS = new FileInputStream(warningFile)) {
+					byte[] dataBlock = new byte[64 * 1024];
+					int count;
+					while ((count = warningIS.read(dataBlock)) != -1)
+						zos.write(dataBlock, 0, count);
+				}
+				zos.closeEntry();
+			}
+			zos.finish();
+			progress.setCurrentStepProgress(100);
+			LOG.info("Binary PLINK export took " + (System.currentTimeMillis() - before)/1000d + "s to process " + markerCount + " variants and " + exportPlan.getIndividualCount() + " individuals");
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (bimOS != null)
+					bimOS.close();
+				if (zos != null)
+					zos.close();
+			}
+			finally {
+				warningFileWriter.close();
+				if (!bimFile.delete())
+					LOG.warn("Unable to delete temporary file " + bimFile.getPath());
+				if (!warningFile.delete())
+					LOG.warn("Unable to delete temporary file " + warningFile.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Converts a genotype code into a 2-bit BED code (A1 being allele 1 and A2 allele 0). Haploid genotypes are treated as homozygous.
+	 *
+	 * @param code the genotype code (e.g. 0/1 or 1|1)
+	 * @return the BED code, BED_MISSING if the genotype involves alleles other than 0 and 1, UNPARSEABLE_CODE if it cannot be parsed
+	 */
+	static byte getBedCode(String code) {
+		int nRefAlleleCount = 0, nAltAlleleCount = 0, nAllele = -1;
+		for (int i=0; i<=code.length(); i++) {
+			char c = i == code.length() ? '/' : code.charAt(i);
+			if (c >= '0' && c <= '9')
+				nAllele = (nAllele == -1 ? 0 : nAllele * 10) + c - '0';
+			else if (c == '/' || c == '|') {
+				if (nAllele == 0)
+					nRefAlleleCount++;
+				else if (nAllele == 1)
+					nAltAlleleCount++;
+				else if (nAllele == -1)
+					return UNPARSEABLE_CODE;	// empty allele
+				else
+					return BED_MISSING;
+				nAllele = -1;
+			}
+			else
+				return UNPARSEABLE_CODE;
+		}
+		if (nAltAlleleCount == 0)
+			return nRefAlleleCount == 0 ? UNPARSEABLE_CODE : BED_HOM_A2;
+		return nRefAlleleCount == 0 ? BED_HOM_A1 : BED_HET;
+	}
+}
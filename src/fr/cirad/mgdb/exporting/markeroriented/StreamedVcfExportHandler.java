@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.markeroriented;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
+import fr.cirad.mgdb.exporting.IExportHandler;
+import fr.cirad.mgdb.exporting.tools.BgzfOutputStream;
+import fr.cirad.mgdb.exporting.tools.VcfLineWriter;
+import fr.cirad.mgdb.model.mongo.maintypes.DBVCFHeader;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.ExportPlan;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.tools.ProgressIndicator;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.variant.vcf.VCFConstants;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFStandardHeaderLines;
+
+/**
+ * Exports to VCF format, writing lines straight from runs with a VcfLineWriter instead of building htsjdk VariantContext objects.
+ * The VCF file is BGZF-compressed in parallel and its tabix index is built in the same pass, so that the export may be queried by region as is.
+ * Both are already compressed, so they are stored into the zip archive without being deflated again: the VCF file is thus first written to a temporary file, which gives its size and CRC.
+ * The header is made of the lines found in VCF headers stored for exported projects.
+ */
+public class StreamedVcfExportHandler extends AbstractMarkerOrientedExportHandler
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(StreamedVcfExportHandler.class);
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportFormatName()
+	 */
+	@Override
+	public String getExportFormatName() {
+		return "VCF-STREAMED";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportFormatDescription()
+	 */
+	@Override
+	public String getExportFormatDescription() {
+		return "Exports a zipped, bgzipped VCF file along with its tabix index, written line by line straight from genotyping data. When several genotypes are available for an individual, the most frequent one is exported.";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportArchiveExtension()
+	 */
+	@Override
+	public String getExportArchiveExtension() {
+		return "zip";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getExportDataFileExtensions()
+	 */
+	@Override
+	public String[] getExportDataFileExtensions() {
+		return new String[] {"vcf.gz", "vcf.gz.tbi"};
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.IExportHandler#getStepList()
+	 */
+	@Override
+	public List<String> getStepList() {
+		return Arrays.asList(new String[] {"Exporting data to VCF format"});
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.markeroriented.AbstractMarkerOrientedExportHandler#exportData(java.io.OutputStream, java.lang.String, java.util.Collection, java.util.Collection, fr.cirad.tools.ProgressIndicator, java.lang.String, org.bson.Document, long, java.util.Map, java.util.HashMap, java.util.HashMap, java.util.List, java.util.Map)
+	 */
+	@Override
+	public void exportData(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, String tmpVarCollName, Document varQuery, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception
+	{
+		exportChunked(outputStream, sModule, individuals1, individuals2, progress, tmpVarCollName, varQuery, markerCount, markerSynonyms, annotationFieldThresholds, annotationFieldThresholds2, samplesToExport, readyToExportFiles);
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.cirad.mgdb.exporting.markeroriented.AbstractMarkerOrientedExportHandler#startChunkedExport(java.io.OutputStream, java.lang.String, java.util.Collection, java.util.Collection, fr.cirad.tools.ProgressIndicator, long, java.util.Map, java.util.HashMap, java.util.HashMap, java.util.List, java.util.Map)
+	 */
+	@Override
+	public ChunkedExport startChunkedExport(OutputStream outputStream, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, Map<String, InputStream> readyToExportFiles) throws Exception
+	{
+		ExportPlan exportPlan = new ExportPlan(samplesToExport, individuals1, individuals2, annotationFieldThresholds, annotationFieldThresholds2);
+		VcfLineWriter lineWriter = new VcfLineWriter(buildHeader(MongoTemplateManager.get(sModule), samplesToExport, exportPlan), exportPlan);
+		return new StreamedVcfExport(outputStream, sModule, progress, markerCount, markerSynonyms, exportPlan, lineWriter, readyToExportFiles);
+	}
+
+	/**
+	 * A streamed VCF export, whose lines get compressed and indexed as chunks come.
+	 */
+	static private class StreamedVcfExport extends ChunkedExport
+	{
+		private final long before = System.currentTimeMillis();
+
+		private final ProgressIndicator progress;
+
+		private final long markerCount;
+
+		private final int nIndividualCount;
+
+		private final String exportName;
+
+		private final File warningFile;
+
+		private final FileWriter warningFileWriter;
+
+		private ZipOutputStream zos;
+
+		/** Temporary file the BGZF-compressed VCF gets written to before being copied into the archive */
+		private File vcfFile;
+
+		private CheckedOutputStream vcfFileOS;
+
+		private BgzfOutputStream vcfOS;
+
+		private final AbstractExportWritingThread writingThread;
+
+		StreamedVcfExport(OutputStream outputStream, String sModule, ProgressIndicator progress, long markerCount, Map<String, String> markerSynonyms, ExportPlan exportPlan, VcfLineWriter lineWriter, Map<String, InputStream> readyToExportFiles) throws IOException {
+			this.progress = progress;
+			this.markerCount = markerCount;
+			nIndividualCount = exportPlan.getIndividualCount();
+			exportName = sModule + "__" + markerCount + "variants__" + nIndividualCount + "individuals";
+
+			warningFile = File.createTempFile(exportName + "-warnings-", ".txt");
+			warningFileWriter = new FileWriter(warningFile);
+			try {
+				zos = IExportHandler.createArchiveOutputStream(outputStream, readyToExportFiles);
+				vcfFile = File.createTempFile(exportName + "-", ".vcf.gz");
+				vcfFileOS = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(vcfFile)), new CRC32());
+				vcfOS = new BgzfOutputStream(vcfFileOS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), TabixFormat.VCF);
+				lineWriter.writeHeader(vcfOS);
+			}
+			catch (IOException ioe) {
+				close();
+				throw ioe;
+			}
+
+			HashMap<Integer, Object> previousPhasingIds = new HashMap<>();
+			writingThread = new AbstractExportWritingThread() {
+				public void run() {
+					try {
+						for (Map.Entry<String, List<VariantRunData>> markerRuns : markerRunsToWrite.entrySet()) {
+							if (progress.isAborted() || progress.getError() != null)
+								break;
+
+							List<VariantRunData> runs = markerRuns.getValue();
+							if (runs.isEmpty())
+								continue;
+
+							VariantRunData variant = runs.get(0);	// the run knowing the most alleles stands for the variant
+							for (VariantRunData run : runs)
+								if (run.getKnownAlleleList().size() > variant.getKnownAlleleList().size())
+									variant = run;
+							lineWriter.writeVariant(vcfOS, variant, runs, true, previousPhasingIds, warningFileWriter, markerSynonyms == null ? null : markerSynonyms.get(markerRuns.getKey()));	// also declares the line to vcfOS for indexing
+						}
+					}
+					catch (Exception e) {
+						if (progress.getError() == null)	// only log this once
+							LOG.debug("Unable to export data for " + sModule, e);
+						progress.setError("Unable to export data for " + sModule + ": " + e.getMessage());
+					}
+				}
+			};
+		}
+
+		@Override
+		public AbstractExportWritingThread getWritingThread() {
+			return writingThread;
+		}
+
+		@Override
+		public boolean needsMetadata() {
+			return true;
+		}
+
+		/**
+		 * Starts an archive entry whose contents will be written as is rather than deflated.
+		 *
+		 * @param sName the entry name
+		 * @param nSize the contents' size
+		 * @param nCrc the contents' CRC-32
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private void putStoredEntry(String sName, long nSize, long nCrc) throws IOException {
+			ZipEntry entry = new ZipEntry(sName);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(nSize);
+			entry.setCompressedSize(nSize);
+			entry.setCrc(nCrc);
+			zos.putNextEntry(entry);
+		}
+
+		@Override
+		public void finish() throws Exception {
+			vcfOS.close();
+			putStoredEntry(exportName + ".vcf.gz", vcfFile.length(), vcfFileOS.getChecksum().getValue());
+			try (InputStream vcfIS = new FileInputStream(vcfFile)) {
+				byte[] dataBlock = new byte[64 * 1024];
+				int count;
+				while ((count = vcfIS.read(dataBlock)) != -1)
+					zos.write(dataBlock, 0, count);
+			}
+			zos.closeEntry();
+
+			if (vcfOS.getIndex() != null) {
+				ByteArrayOutputStream indexOS = new ByteArrayOutputStream();
+				BgzfOutputStream.writeIndex(vcfOS.getIndex(), indexOS);
+				CRC32 indexCrc = new CRC32();
+				indexCrc.update(indexOS.toByteArray());
+				putStoredEntry(exportName + ".vcf.gz.tbi", indexOS.size(), indexCrc.getValue());
+				indexOS.writeTo(zos);
+				zos.closeEntry();
+			}
+
+			warningFileWriter.close();
+			if (warningFile.length() > 0) {
+				zos.putNextEntry(new ZipEntry(exportName + "-REMARKS.txt"));
+				try (InputStream warningIS = new FileInputStream(warningFile)) {
+					byte[] dataBlock = new byte[64 * 1024];
+					int count;
+					while ((count = warningIS.read(dataBlock)) != -1)
+						zos.write(dataBlock, 0, count);
+				}
+				zos.closeEntry();
+			}
+			zos.finish();
+			progress.setCurrentStepProgress(100);
+			LOG.info("Streamed VCF export took " + (System.currentTimeMillis() - before)/1000d + "s to process " + markerCount + " variants and " + nIndividualCount + " individuals");
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (vcfOS != null)
+					try {
+						vcfOS.close();	// no-op unless we are failing, in which case compressor threads still need to be released
+					}
+					catch (IOException ioe) {
+						LOG.debug("Unable to close BGZF stream after export failure", ioe);
+					}
+				else if (vcfFileOS != null)
+					vcfFileOS.close();
+				if (zos != null)
+					zos.close();
+			}
+			finally {
+				warningFileWriter.close();
+				if (!warningFile.delete())
+					LOG.warn("Unable to delete temporary file " + warningFile.getPath());
+				if (vcfFile != null && !vcfFile.delete())
+					LOG.warn("Unable to delete temporary file " + vcfFile.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Builds the export's VCF header from the headers stored for the projects involved, with exported individuals as samples.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param samplesToExport the samples to export
+	 * @param exportPlan the export plan
+	 * @return the VCF header
+	 */
+	static VCFHeader buildHeader(MongoTemplate mongoTemplate, Collection<GenotypingSample> samplesToExport, ExportPlan exportPlan) {
+		LinkedHashSet<VCFHeaderLine> headerLines = new LinkedHashSet<>();
+		samplesToExport.stream().map(GenotypingSample::getProjectId).distinct().forEach(projId -> {
+			for (DBVCFHeader vcfHeader : MgdbDao.getVcfHeaders(mongoTemplate, projId))
+				headerLines.addAll(vcfHeader.getHeaderLines());
+		});
+		headerLines.add(VCFStandardHeaderLines.getFormatLine(VCFConstants.GENOTYPE_KEY));
+		return new VCFHeader(headerLines, exportPlan.getIndividuals());
+	}
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+
+/**
+ * Output stream producing BGZF (block-gzipped) data, with blocks compressed in parallel and written in order.
+ * If an index format is provided, callers may declare each record by invoking startRecord(...) just before writing it, so that a tabix index gets built in the same pass.
+ * Records must then be written sorted by sequence (contiguously) and start position.
+ * Writing is meant to be done by a single thread.
+ */
+public class BgzfOutputStream extends OutputStream
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(BgzfOutputStream.class);
+
+	static private final AtomicInteger compressorPoolCount = new AtomicInteger();
+
+	private final OutputStream out;
+
+	private final int nCompressionLevel;
+
+	/** Null when compressing in the calling thread */
+	private final ExecutorService compressors;
+
+	private final int nMaxPendingBlocks;
+
+	private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+	private byte[] currentBlock = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+
+	private int nCurrentBlockLength = 0;
+
+	private long nSubmittedBlockCount = 0, nWrittenBlockCount = 0;
+
+	/** Number of compressed bytes written so far, i.e. address of the next block */
+	private long nCompressedBytesWritten = 0;
+
+	private TabixIndexCreator indexCreator;
+
+	/** Records whose block has not been written yet, hence whose virtual file pointer is still unknown */
+	private final ArrayDeque<PendingRecord> pendingRecords = new ArrayDeque<>();
+
+	private Index index = null;
+
+	private boolean fFinished = false;
+
+	static private class PendingRecord
+	{
+		final Feature feature;
+		final long nBlockIndex;
+		final int nOffsetInBlock;
+
+		PendingRecord(Feature feature, long nBlockIndex, int nOffsetInBlock) {
+			this.feature = feature;
+			this.nBlockIndex = nBlockIndex;
+			this.nOffsetInBlock = nOffsetInBlock;
+		}
+	}
+
+	/**
+	 * Instantiates a new BGZF output stream.
+	 *
+	 * @param out the underlying output stream
+	 * @param nCompressorThreadCount number of threads to compress blocks with (if lower than 2, compression happens in the calling thread)
+	 * @param indexFormat the tabix format of the written data, or null if no index shall be built
+	 */
+	public BgzfOutputStream(OutputStream out, int nCompressorThreadCount, TabixFormat indexFormat) {
+		this.out = out;
+		nCompressionLevel = BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL;
+		if (nCompressorThreadCount > 1) {
+			String sPoolName = "BgzfCompressor-" + compressorPoolCount.incrementAndGet() + "-";
+			AtomicInteger threadCount = new AtomicInteger();
+			compressors = Executors.newFixedThreadPool(nCompressorThreadCount, r -> {
+				Thread t = new Thread(r, sPoolName + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		else
+			compressors = null;
+		nMaxPendingBlocks = 2 * Math.max(1, nCompressorThreadCount);
+		indexCreator = indexFormat == null ? null : new TabixIndexCreator(indexFormat);
+	}
+
+	/**
+	 * Declares the record about to be written, so it gets indexed. Has no effect if no index format was provided.
+	 *
+	 * @param sSequence the sequence
+	 * @param nStart the 1-based start position
+	 * @param nEnd the 1-based, inclusive end position
+	 */
+	public void startRecord(String sSequence, int nStart, int nEnd) {
+		if (indexCreator != null)
+			pendingRecords.add(new PendingRecord(new SimpleFeature(sSequence, nStart, nEnd), nSubmittedBlockCount, nCurrentBlockLength));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		currentBlock[nCurrentBlockLength++] = (byte) b;
+		if (nCurrentBlockLength == currentBlock.length)
+			submitCurrentBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int nBytesToCopy = Math.min(len, currentBlock.length - nCurrentBlockLength);
+			System.arraycopy(b, off, currentBlock, nCurrentBlockLength, nBytesToCopy);
+			nCurrentBlockLength += nBytesToCopy;
+			off += nBytesToCopy;
+			len -= nBytesToCopy;
+			if (nCurrentBlockLength == currentBlock.length)
+				submitCurrentBlock();
+		}
+	}
+
+	/**
+	 * Only flushes blocks that were already compressed: data in the block being filled stays there, so that blocks remain as large as possible.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeCompressedBlocks(false);
+		out.flush();
+	}
+
+	private void submitCurrentBlock() throws IOException {
+		if (nCurrentBlockLength == 0)
+			return;
+
+		final byte[] block = currentBlock;
+		final int nBlockLength = nCurrentBlockLength;
+		if (compressors == null)
+			writeBlock(compressBlock(block, nBlockLength, nCompressionLevel));
+		else {
+			pendingBlocks.add(compressors.submit(() -> compressBlock(block, nBlockLength, nCompressionLevel)));
+			currentBlock = new byte[block.length];	// the previous one now belongs to the compression task
+		}
+		nSubmittedBlockCount++;
+		nCurrentBlockLength = 0;
+		writeCompressedBlocks(false);
+	}
+
+	/**
+	 * Writes compressed blocks in submission order.
+	 *
+	 * @param fAll whether to wait for all pending blocks, or only until there are less than nMaxPendingBlocks ones left, also writing those that are already done
+	 */
+	private void writeCompressedBlocks(boolean fAll) throws IOException {
+		while (!pendingBlocks.isEmpty() && (fAll || pendingBlocks.size() >= nMaxPendingBlocks || pendingBlocks.peek().isDone()))
+			try {
+				writeBlock(pendingBlocks.poll().get());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for BGZF block compression", e);
+			}
+			catch (ExecutionException e) {
+				throw new IOException("Unable to compress BGZF block", e.getCause());
+			}
+	}
+
+	private void writeBlock(byte[] compressedBlock) throws IOException {
+		long nBlockAddress = nCompressedBytesWritten;
+		out.write(compressedBlock);
+		nCompressedBytesWritten += compressedBlock.length;
+
+		while (!pendingRecords.isEmpty() && pendingRecords.peek().nBlockIndex == nWrittenBlockCount)
+			indexRecord(pendingRecords.poll(), nBlockAddress);
+		nWrittenBlockCount++;
+	}
+
+	private void indexRecord(PendingRecord record, long nBlockAddress) {
+		if (indexCreator == null)
+			return;
+		try {
+			indexCreator.addFeature(record.feature, nBlockAddress << 16 | record.nOffsetInBlock);
+		}
+		catch (IllegalArgumentException e) {	// typically records not being sorted
+			LOG.warn("Giving up building index: " + e.getMessage());
+			indexCreator = null;
+			pendingRecords.clear();
+		}
+	}
+
+	/**
+	 * Compresses a block, returning it with its BGZF header and footer.
+	 */
+	static private byte[] compressBlock(byte[] block, int nBlockLength, int nCompressionLevel) {
+		byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		int nDataOffset = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, nMaxDataLength = compressed.length - nDataOffset - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		Deflater deflater = new Deflater(nCompressionLevel, true);
+		int nCompressedLength;
+		try {
+			deflater.setInput(block, 0, nBlockLength);
+			deflater.finish();
+			nCompressedLength = deflater.deflate(compressed, nDataOffset, nMaxDataLength);
+			if (!deflater.finished()) {	// did not fit (incompressible data): store it as is
+				deflater.end();
+				deflater = new Deflater(Deflater.NO_COMPRESSION, true);
+				deflater.setInput(block, 0, nBlockLength);
+				deflater.finish();
+				nCompressedLength = deflater.deflate(compressed, nDataOffset, nMaxDataLength);
+				if (!deflater.finished())
+					throw new IllegalStateException("Unable to fit BGZF block into " + nMaxDataLength + " bytes");
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		int nTotalBlockSize = nDataOffset + nCompressedLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, compressed, 0, BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+		writeShort(compressed, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, nTotalBlockSize - 1);
+
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, nBlockLength);
+		writeInt(compressed, nDataOffset + nCompressedLength, (int) crc.getValue());
+		writeInt(compressed, nDataOffset + nCompressedLength + 4, nBlockLength);
+
+		byte[] result = new byte[nTotalBlockSize];
+		System.arraycopy(compressed, 0, result, 0, nTotalBlockSize);
+		return result;
+	}
+
+	static private void writeShort(byte[] buffer, int nOffset, int nValue) {
+		buffer[nOffset] = (byte) nValue;
+		buffer[nOffset + 1] = (byte) (nValue >> 8);
+	}
+
+	static private void writeInt(byte[] buffer, int nOffset, int nValue) {
+		writeShort(buffer, nOffset, nValue);
+		writeShort(buffer, nOffset + 2, nValue >> 16);
+	}
+
+	/**
+	 * Writes all remaining data followed by the BGZF end-of-file marker, and finalizes the index, without closing the underlying stream.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void finish() throws IOException {
+		if (fFinished)
+			return;
+
+		try {
+			submitCurrentBlock();
+			writeCompressedBlocks(true);
+			if (indexCreator != null) {
+				while (!pendingRecords.isEmpty())	// may only happen for records declared after the last byte was written
+					indexRecord(pendingRecords.poll(), nCompressedBytesWritten);
+				if (indexCreator != null)
+					index = indexCreator.finalizeIndex(nCompressedBytesWritten << 16);
+			}
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			out.flush();
+			fFinished = true;
+		}
+		finally {
+			if (compressors != null)
+				compressors.shutdownNow();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Gets the index built while writing.
+	 *
+	 * @return the index, or null if it was not requested, could not be built, or the stream is not finished yet
+	 */
+	public Index getIndex() {
+		return index;
+	}
+
+	/**
+	 * Writes an index in its BGZF-compressed on-disk form (e.g. .tbi contents), leaving the output stream open.
+	 *
+	 * @param index the index
+	 * @param os the output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void writeIndex(Index index, OutputStream os) throws IOException {
+		BgzfOutputStream bgzfOS = new BgzfOutputStream(new FilterOutputStream(os) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();	// leave the target stream open
+			}
+		}, 1, null);
+		LittleEndianOutputStream leos = new LittleEndianOutputStream(bgzfOS);
+		index.write(leos);
+		leos.close();
+	}
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.tools.Helper;
+
+/**
+ * On-disk cache of export results, so that identical exports (typically those triggered by links shared to popular public datasets) are served from disk instead of being regenerated.
+ * Chunked marker-oriented exports go through it once registered via AbstractMarkerOrientedExportHandler.setExportCache.
+ * Entries are keyed by a hash of the export parameters, of the data versions of the projects involved (see MgdbDao.getProjectDataVersion) and of the identity of the temporary collection exported from, if any, so that importing or cleaning up data, or running a new search, makes previous entries unreachable. Those are then removed by the age- and size-based eviction.
+ */
+public class ExportCache
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(ExportCache.class);
+
+	static final private String ENTRY_EXTENSION = ".export";
+
+	static final private String TEMP_EXTENSION = ".tmp";
+
+	private final File cacheFolder;
+
+	private final long nMaxSizeBytes;
+
+	private final long nMaxAgeMillis;
+
+	/** Last time each entry was served, used to evict least recently used entries first */
+	private final ConcurrentHashMap<String, Long> lastAccessTimes = new ConcurrentHashMap<>();
+
+	/**
+	 * Instantiates a new export cache.
+	 *
+	 * @param cacheFolder the folder to store cached exports in (created if needed)
+	 * @param nMaxSizeBytes the maximum total size of cached exports
+	 * @param nMaxAgeMillis the time after which a cached export is discarded
+	 * @throws IOException if the folder can't be created
+	 */
+	public ExportCache(File cacheFolder, long nMaxSizeBytes, long nMaxAgeMillis) throws IOException {
+		if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs())
+			throw new IOException("Unable to create export cache folder " + cacheFolder.getAbsolutePath());
+		this.cacheFolder = cacheFolder;
+		this.nMaxSizeBytes = nMaxSizeBytes;
+		this.nMaxAgeMillis = nMaxAgeMillis;
+	}
+
+	/**
+	 * Computes the cache key for an export.
+	 *
+	 * @param mongoTemplate the module's mongo template
+	 * @param sModule the module
+	 * @param sExportFormat the export format
+	 * @param projectIDs the IDs of the projects whose data is exported
+	 * @param tmpVarCollName the temporary variant collection the export runs from (null if not temporary)
+	 * @param varQuery query to apply on the variant collection
+	 * @param samplesToExport the samples to export
+	 * @param otherParameters any other parameter that influences the export's contents (annotation thresholds, etc.): maps and sets are considered regardless of their ordering
+	 * @return the key
+	 */
+	public static String computeKey(MongoTemplate mongoTemplate, String sModule, String sExportFormat, Collection<Integer> projectIDs, String tmpVarCollName, Document varQuery, Collection<GenotypingSample> samplesToExport, Object... otherParameters) {
+		StringBuilder sb = new StringBuilder(sModule).append('\n').append(sExportFormat);
+		for (Integer projId : new TreeSet<>(projectIDs))
+			sb.append('\n').append(projId).append('@').append(MgdbDao.getProjectDataVersion(mongoTemplate, projId));
+		if (tmpVarCollName != null)
+			sb.append('\n').append(tmpVarCollName).append('@').append(getCollectionVersion(mongoTemplate, tmpVarCollName));
+		sb.append('\n').append(varQuery == null ? "" : varQuery.toJson());
+		sb.append('\n').append(samplesToExport.stream().map(sp -> sp.getId()).sorted().map(id -> id.toString()).collect(Collectors.joining(",")));
+		for (Object param : otherParameters)
+			sb.append('\n').append(toCanonicalString(param));
+
+		try {
+			return Helper.bytesToHex(MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);	// every Java platform is required to support SHA-256
+		}
+	}
+
+	/**
+	 * Identifies a collection's current incarnation by the UUID the server assigns it when it gets created, which changes each time a temporary collection is dropped and filled with new search results.
+	 * Returns a random value if the collection does not exist or has no UUID (MongoDB before 3.6), so that exports from it never get served from cache.
+	 */
+	private static String getCollectionVersion(MongoTemplate mongoTemplate, String sCollName) {
+		Document collInfo = mongoTemplate.getDb().listCollections().filter(new Document("name", sCollName)).first();
+		Object uuid = collInfo == null || !(collInfo.get("info") instanceof Document) ? null : ((Document) collInfo.get("info")).get("uuid");
+		if (uuid instanceof Binary)
+			return Helper.bytesToHex(((Binary) uuid).getData());
+		return uuid != null ? uuid.toString() : UUID.randomUUID().toString();
+	}
+
+	private static String toCanonicalString(Object param) {
+		if (param == null)
+			return "";
+		if (param instanceof Map) {
+			TreeMap<String, String> sortedMap = new TreeMap<>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) param).entrySet())
+				sortedMap.put(toCanonicalString(entry.getKey()), toCanonicalString(entry.getValue()));
+			return sortedMap.toString();
+		}
+		if (param instanceof Collection) {
+			List<String> elements = ((Collection<?>) param).stream().map(ExportCache::toCanonicalString).collect(Collectors.toList());
+			if (param instanceof Set)
+				elements.sort(null);
+			return elements.toString();
+		}
+		if (param instanceof Object[])
+			return toCanonicalString(Arrays.asList((Object[]) param));
+		if (param instanceof Document)
+			return ((Document) param).toJson();
+		return param.toString();
+	}
+
+	private File getEntryFile(String sKey) {
+		return new File(cacheFolder, sKey + ENTRY_EXTENSION);
+	}
+
+	/**
+	 * Gets the cached export for a key.
+	 *
+	 * @param sKey the key
+	 * @return the cached file, or null if there is none or if it is too old
+	 */
+	public File getCachedFile(String sKey) {
+		File entryFile = getEntryFile(sKey);
+		long nLastModified = entryFile.lastModified();	// 0 if it does not exist
+		if (nLastModified == 0 || System.currentTimeMillis() - nLastModified > nMaxAgeMillis)
+			return null;
+
+		lastAccessTimes.put(sKey, System.currentTimeMillis());
+		return entryFile;
+	}
+
+	/**
+	 * Writes the cached export for a key to an output stream, if available.
+	 *
+	 * @param sKey the key
+	 * @param os the output stream
+	 * @return true, if the export was served from cache
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public boolean serve(String sKey, OutputStream os) throws IOException {
+		File entryFile = getCachedFile(sKey);
+		if (entryFile == null)
+			return false;
+
+		try {
+			Files.copy(entryFile.toPath(), os);
+		}
+		catch (java.nio.file.NoSuchFileException e) {
+			return false;	// it was evicted in the meantime
+		}
+		LOG.debug("Served export " + sKey + " from cache");
+		return true;
+	}
+
+	/**
+	 * Creates a temporary file to write an export to, before storing it with store().
+	 *
+	 * @param sKey the key
+	 * @return the temporary file
+	 */
+	public File createTempFile(String sKey) {
+		return new File(cacheFolder, sKey + "." + UUID.randomUUID() + TEMP_EXTENSION);
+	}
+
+	/**
+	 * Stores a fully written export as the cached entry for a key, then evicts entries if needed.
+	 *
+	 * @param sKey the key
+	 * @param tempFile the temporary file the export was written to (obtained via createTempFile)
+	 * @return the cached file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public File store(String sKey, File tempFile) throws IOException {
+		File entryFile = getEntryFile(sKey);
+		Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);	// readers thus never see partially written entries
+		lastAccessTimes.put(sKey, System.currentTimeMillis());
+		evict();
+		return entryFile;
+	}
+
+	/**
+	 * Removes entries that are too old, then least recently used entries until the total size is within limits. Orphan temporary files are removed once too old.
+	 */
+	synchronized public void evict() {
+		File[] files = cacheFolder.listFiles();
+		if (files == null)
+			return;
+
+		long now = System.currentTimeMillis(), nTotalSize = 0;
+		List<File> entries = new ArrayList<>();
+		for (File f : files) {
+			boolean fIsEntry = f.getName().endsWith(ENTRY_EXTENSION);
+			if (!fIsEntry && !f.getName().endsWith(TEMP_EXTENSION))
+				continue;
+
+			if (now - f.lastModified() > nMaxAgeMillis)
+				delete(f);
+			else if (fIsEntry) {
+				entries.add(f);
+				nTotalSize += f.length();
+			}
+		}
+
+		if (nTotalSize <= nMaxSizeBytes)
+			return;
+
+		entries.sort(Comparator.comparingLong(f -> lastAccessTimes.getOrDefault(getKey(f), f.lastModified())));
+		for (File f : entries) {
+			if (nTotalSize <= nMaxSizeBytes)
+				break;
+			nTotalSize -= f.length();
+			delete(f);
+		}
+	}
+
+	private void delete(File f) {
+		if (f.delete()) {
+			if (f.getName().endsWith(ENTRY_EXTENSION))
+				lastAccessTimes.remove(getKey(f));
+			LOG.debug("Evicted " + f.getName() + " from export cache");
+		}
+	}
+
+	private static String getKey(File entryFile) {
+		return entryFile.getName().substring(0, entryFile.getName().length() - ENTRY_EXTENSION.length());
+	}
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
+import fr.cirad.mgdb.exporting.markeroriented.AbstractMarkerOrientedExportHandler;
+import fr.cirad.mgdb.exporting.markeroriented.AbstractMarkerOrientedExportHandler.ChunkedExport;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Writing thread that hands each chunk fetched by a single ExportManager over to several writing threads (typically one per export format), so that N formats only cost one database scan.
+ * Consumers write one after the other, on the ExportManager's writer thread: they share the runs, which are not thread-safe (e.g. VariantRunData.safelyGetAllelesFromGenotypeCode may modify them).
+ * Fetching still overlaps with writing, within the limit of the ExportManager's pipeline depth.
+ */
+public class ExportFanOut extends AbstractExportWritingThread
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(ExportFanOut.class);
+
+	private final List<AbstractExportWritingThread> consumers;
+
+	/**
+	 * Instantiates a new export fan-out.
+	 *
+	 * @param consumers the writing threads to feed, each of them receiving every chunk
+	 */
+	public ExportFanOut(List<AbstractExportWritingThread> consumers) {
+		this.consumers = new ArrayList<>(consumers);
+	}
+
+	/**
+	 * Hands the current chunk over to each consumer in turn. Each consumer gets its own copy of the map because writing threads may modify it.
+	 */
+	public void run() {
+		for (AbstractExportWritingThread consumer : consumers)
+			consumer.writeRuns(new LinkedHashMap<>(markerRunsToWrite), Runnable::run).join();
+	}
+
+	/**
+	 * Exports the same data to several formats, fetching it only once. Parameters are those of AbstractMarkerOrientedExportHandler.exportData, except for those provided per handler.
+	 *
+	 * @param exportHandlers the export handlers, which must all support chunked exports
+	 * @param outputStreams the output streams, one per handler
+	 * @param sModule the module
+	 * @param individuals1 the individuals in group 1
+	 * @param individuals2 the individuals in group 2
+	 * @param progress the progress
+	 * @param tmpVarCollName the variant collection name (null if not temporary)
+	 * @param varQuery query to apply on varColl
+	 * @param markerCount number of variants to export
+	 * @param markerSynonyms the marker synonyms
+	 * @param annotationFieldThresholds the annotation field thresholds for group 1
+	 * @param annotationFieldThresholds2 the annotation field thresholds for group 2
+	 * @param samplesToExport the samples to export genotyping data for
+	 * @param readyToExportFiles files to export along with the genotyping data, one map per handler (null if none), since their streams may only be read once
+	 * @throws Exception the exception
+	 */
+	public static void exportToAll(List<AbstractMarkerOrientedExportHandler> exportHandlers, List<OutputStream> outputStreams, String sModule, Collection<String> individuals1, Collection<String> individuals2, ProgressIndicator progress, String tmpVarCollName, Document varQuery, long markerCount, Map<String, String> markerSynonyms, HashMap<String, Float> annotationFieldThresholds, HashMap<String, Float> annotationFieldThresholds2, List<GenotypingSample> samplesToExport, List<Map<String, InputStream>> readyToExportFiles) throws Exception
+	{
+		if (outputStreams.size() != exportHandlers.size() || (readyToExportFiles != null && readyToExportFiles.size() != exportHandlers.size()))
+			throw new IllegalArgumentException("Output streams and ready-to-export files must be provided for each export handler");
+
+		List<ChunkedExport> exports = new ArrayList<>();
+		try {
+			for (int i=0; i<exportHandlers.size(); i++) {
+				ChunkedExport export = exportHandlers.get(i).startChunkedExport(outputStreams.get(i), sModule, individuals1, individuals2, progress, markerCount, markerSynonyms, annotationFieldThresholds, annotationFieldThresholds2, samplesToExport, readyToExportFiles == null ? null : readyToExportFiles.get(i));
+				if (export == null)
+					throw new UnsupportedOperationException("Export handler for " + exportHandlers.get(i).getExportFormatName() + " format does not support chunked exports");
+				exports.add(export);
+			}
+
+			ExportFanOut fanOut = new ExportFanOut(exports.stream().map(ChunkedExport::getWritingThread).collect(Collectors.toList()));
+			AbstractMarkerOrientedExportHandler.fetchChunks(sModule, fanOut, exports.stream().anyMatch(ChunkedExport::needsMetadata), progress, tmpVarCollName, varQuery, markerCount, samplesToExport);
+			if (!progress.isAborted() && progress.getError() == null)
+				for (ChunkedExport export : exports)
+					export.finish();
+		}
+		finally {
+			for (ChunkedExport export : exports)
+				try {
+					export.close();
+				}
+				catch (IOException ioe) {
+					LOG.warn("Unable to close export", ioe);
+				}
+		}
+	}
+}
@@ -16,43 +16,66 @@
  *******************************************************************************/
 package fr.cirad.mgdb.exporting.tools;
 
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
 import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.codecs.pojo.IntKeyMapPropertyCodecProvider;
 import org.bson.codecs.pojo.PojoCodecProvider;
+import org.bson.conversions.Bson;
 import org.springframework.data.mongodb.core.MongoTemplate;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.ClientSessionOptions;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.UpdateOneModel;
 
 import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
 import fr.cirad.mgdb.exporting.IExportHandler;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
 import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
 import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.AlphaNumericComparator;
 import fr.cirad.tools.Helper;
 import fr.cirad.tools.ProgressIndicator;
+import fr.cirad.tools.mongo.IndexBuildCoordinator;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
 /**
@@ -64,7 +87,7 @@ public class ExportManager
 	/** The Constant LOG. */
 	static final Logger LOG = Logger.getLogger(ExportManager.class);
 	
-	static public final AlphaNumericComparator<String> alphaNumericStringComparator = new AlphaNumericComparator<String>();
+	static public final AlphaNumericComparator<String> alphaNumericStringComparator = new AlphaNumericComparator<String>(10000);	// mostly fed with sequence names, hence the key cache
 	
 	static public final Comparator<VariantRunData> vrdComparator = new Comparator<VariantRunData>() {
 		@Override
@@ -78,13 +101,16 @@ public class ExportManager
 				return 1;	// only vrd1 is positioned
 			
 			// both are positioned
+			Integer ordinal1 = vrd1.getReferencePosition().getSequenceOrdinal(), ordinal2 = vrd2.getReferencePosition().getSequenceOrdinal();
+			if (ordinal1 != null && ordinal2 != null)
+				return ordinal1.equals(ordinal2) ? Long.compare(vrd1.getReferencePosition().getStartSite(), vrd2.getReferencePosition().getStartSite()) : Integer.compare(ordinal1, ordinal2);
 			int chrComparison = alphaNumericStringComparator.compare(vrd1.getReferencePosition().getSequence(), vrd2.getReferencePosition().getSequence());
 			return chrComparison != 0 ? chrComparison : (int) (vrd1.getReferencePosition().getStartSite() - vrd2.getReferencePosition().getStartSite());
 		}
 	};
 	
 	@SuppressWarnings("rawtypes")
-	private MongoCursor markerCursor;
+	private AdjustableBatchCursor markerCursor;
 	
 	private ProgressIndicator progress;
 	
@@ -92,6 +118,12 @@ public class ExportManager
 	
 	private boolean fWorkingOnTempColl;
 	
+	/** Whether records may be sorted by {sequence ordinal, start site}, which requires no collation */
+	private boolean fUseSequenceOrdinals;
+	
+	/** Whether runs may lack alleles added to their variant by an import that was not reconciled yet */
+	private boolean fCompleteAlleleLists;
+	
 	private FileWriter warningFileWriter;
 	
 	private List<BasicDBObject> pipeline = new ArrayList<>();
@@ -101,16 +133,77 @@ public class ExportManager
 	private AbstractExportWritingThread writingThread;
 	
 	private Long markerCount;
+	
+	/** Default maximum number of chunks that may be fetched but not yet written */
+	static public final int DEFAULT_PIPELINE_DEPTH = 3;
+	
+	private int nPipelineDepth = DEFAULT_PIPELINE_DEPTH;
+	
+	/** Chunks handed over to the writer and not yet known to be written, oldest first */
+	private ArrayDeque<CompletableFuture<Void>> inFlightChunks = new ArrayDeque<>();
+	
+	private ExecutorService writerExecutor;
+	
+	/** Time spent by the fetcher waiting for the writer to free a slot in the pipeline */
+	private long nFetcherWaitMillis = 0;
+	
+	/** Time spent by the writer waiting for the fetcher to provide a chunk (only accessed from the writer thread) */
+	private volatile long nWriterWaitMillis = 0;
+	
+	private volatile long nLastWriteEnd;
+	
+	/** Memory footprint we aim at for each chunk of decoded runs */
+	static public final long DEFAULT_CHUNK_MEMORY_BUDGET = IExportHandler.nMaxChunkSizeInMb * 1024L * 1024L;
+	
+	/** Time we aim at spending on fetching each chunk, so that progress gets regularly reported and the writer regularly fed */
+	static public final long DEFAULT_CHUNK_FETCH_TARGET_MILLIS = 2000;
+	
+	/** Rough decoded footprints used for estimating chunk sizes in memory (variant-level fields, genotype entry, annotation field) */
+	static private final int ESTIMATED_VARIANT_BYTES = 1024, ESTIMATED_GENOTYPE_BYTES = 128, ESTIMATED_GENOTYPE_FIELD_BYTES = 96;
+	
+	private boolean fAdaptiveChunkSize = true;
+	
+	private long nChunkMemoryBudget = DEFAULT_CHUNK_MEMORY_BUDGET;
+	
+	private long nChunkFetchTargetMillis = DEFAULT_CHUNK_FETCH_TARGET_MILLIS;
+	
+	/** Upper bound for nQueryChunkSize: no more than 5% of the variants at a time, so that progress gets regularly reported */
+	private int nMaxQueryChunkSize = Integer.MAX_VALUE;
 
 	public static final CodecRegistry pojoCodecRegistry = CodecRegistries.fromRegistries(MongoClientSettings.getDefaultCodecRegistry(), CodecRegistries.fromProviders(PojoCodecProvider.builder().register(new IntKeyMapPropertyCodecProvider()).automatic(true).build()));
 	
+	/**
+	 * Instantiates a new export manager, estimating the initial query chunk size from the number of samples and annotation fields to export.
+	 * 
+	 * @see #ExportManager(MongoTemplate, MongoCollection, Class, Document, List, boolean, int, AbstractExportWritingThread, long, FileWriter, ProgressIndicator)
+	 */
+	public ExportManager(MongoTemplate mongoTemplate, MongoCollection<Document> varColl, Class resultType, Document varQuery, List<GenotypingSample> samplesToExport, boolean fIncludeMetadata, AbstractExportWritingThread writingThread, long markerCount, FileWriter warningFileWriter, ProgressIndicator progress) {
+		this(mongoTemplate, varColl, resultType, varQuery, samplesToExport, fIncludeMetadata, 0, writingThread, markerCount, warningFileWriter, progress);
+	}
+	
+	/**
+	 * Instantiates a new export manager. Unless disabled via setAdaptiveChunkSize, the query chunk size is then adjusted between chunks according to measured memory footprint and fetch time.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param varColl the collection to read variants from (VariantRunData, or a temporary collection)
+	 * @param resultType the result type
+	 * @param varQuery the variant query
+	 * @param samplesToExport the samples to export
+	 * @param fIncludeMetadata whether or not to include metadata
+	 * @param nQueryChunkSize the initial number of variants per chunk, or 0 to have it estimated
+	 * @param writingThread the writing thread
+	 * @param markerCount number of variants to export
+	 * @param warningFileWriter the warning file writer
+	 * @param progress the progress
+	 */
 	public ExportManager(MongoTemplate mongoTemplate, MongoCollection<Document> varColl, Class resultType, Document varQuery, List<GenotypingSample> samplesToExport, boolean fIncludeMetadata, int nQueryChunkSize, AbstractExportWritingThread writingThread, long markerCount, FileWriter warningFileWriter, ProgressIndicator progress) {
 		this.progress = progress;
-		this.nQueryChunkSize = nQueryChunkSize;
 		this.warningFileWriter = warningFileWriter;
 		this.mongoTemplate = mongoTemplate;
 		this.writingThread = writingThread;
 		this.markerCount = markerCount;
+		if (markerCount > 0)
+			nMaxQueryChunkSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, markerCount / 20));
 
 		String varCollName = varColl.getNamespace().getCollectionName();
 		fWorkingOnTempColl = varCollName.startsWith(MongoTemplateManager.TEMP_COLL_PREFIX);
@@ -119,7 +212,9 @@ public class ExportManager
 			pipeline.add(new BasicDBObject("$match", varQuery));
 
 		String refPosPath = AbstractVariantData.FIELDNAME_REFERENCE_POSITION;
-		BasicDBObject sortStage = new BasicDBObject("$sort", new Document(refPosPath  + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(refPosPath + "." + ReferencePosition.FIELDNAME_START_SITE, 1));
+		fUseSequenceOrdinals = !fWorkingOnTempColl && MgdbDao.hasSequenceOrdinals(mongoTemplate);	// temporary collections may hold copies made before ordinals were assigned
+		fCompleteAlleleLists = MgdbDao.haveStaleAlleleLists(mongoTemplate);
+		BasicDBObject sortStage = new BasicDBObject("$sort", new Document(refPosPath  + "." + (fUseSequenceOrdinals ? ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL : ReferencePosition.FIELDNAME_SEQUENCE), 1).append(refPosPath + "." + ReferencePosition.FIELDNAME_START_SITE, 1));
 		pipeline.add(sortStage);
 
 		Document projection = new Document();
@@ -131,8 +226,8 @@ public class ExportManager
 		if (fIncludeMetadata)
 			projection.append(AbstractVariantData.SECTION_ADDITIONAL_INFO, 1);
 
+		TreeSet<String> annotationFields = new TreeSet<>();
 		if (samplesToExport != null && !samplesToExport.isEmpty()) {	// project sample-level fields
-			TreeSet<String> annotationFields = new TreeSet<>();
 			if (fIncludeMetadata)
 				for (GenotypingSample sample : samplesToExport.stream().filter(Helper.distinctByKey(GenotypingSample::getProjectId)).collect(Collectors.toList()))
 					annotationFields.addAll(MgdbDao.getAnnotationFields(mongoTemplate, sample.getProjectId(), false));
@@ -142,19 +237,279 @@ public class ExportManager
 		}
 		pipeline.add(new BasicDBObject("$project", projection));
 		LOG.debug("Export pipeline: " + pipeline);
+
+		this.nQueryChunkSize = nQueryChunkSize > 0 ? nQueryChunkSize : estimateQueryChunkSize(samplesToExport == null ? 0 : samplesToExport.size(), annotationFields.size());
 		
+    	try {	// sorting relies on position indexes, which may still be being built (e.g. right after an import or a restart)
+    		IndexBuildCoordinator.awaitBuilds(varColl.getNamespace(), progress);
+    	}
+    	catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	catch (ExecutionException e) {
+    		LOG.warn("Index creation failed on " + varColl.getNamespace() + ", export may be slow", e.getCause());
+    	}
+
 //    	long before = System.currentTimeMillis();
-    	markerCursor = varColl.aggregate(fWorkingOnTempColl ? Arrays.asList(sortStage, new BasicDBObject("$project", new BasicDBObject("_id", 1))) : pipeline, fWorkingOnTempColl ? Document.class : resultType).collation(IExportHandler.collationObj).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();	/*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
+    	markerCursor = new AdjustableBatchCursor(mongoTemplate, varColl, fWorkingOnTempColl ? Arrays.asList(sortStage, new BasicDBObject("$project", new BasicDBObject("_id", 1))) : pipeline, fUseSequenceOrdinals ? null : IExportHandler.collationObj, fWorkingOnTempColl ? Document.class : resultType, () -> this.nQueryChunkSize);	/*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
 //		System.err.println("cursor obtained in " + (System.currentTimeMillis() - before) + "ms");
 	}
 	
-    public void readAndWrite() throws IOException, InterruptedException, ExecutionException {		
-		if (fWorkingOnTempColl)
-			exportFromTempColl();
-		else
-			exportDirectlyFromRuns();
+    public void readAndWrite() throws IOException, InterruptedException, ExecutionException {
+    	writerExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "ExportWriter-" + progress.getProcessId()));
+    	nLastWriteEnd = System.currentTimeMillis();
+    	try {
+			if (fWorkingOnTempColl)
+				exportFromTempColl();
+			else
+				exportDirectlyFromRuns();
+    	}
+    	finally {
+    		markerCursor.close();
+    		writerExecutor.shutdownNow();
+    		LOG.debug(progress.getProcessId() + ": fetcher waited " + nFetcherWaitMillis + "ms for writer, writer waited " + nWriterWaitMillis + "ms for fetcher (pipeline depth: " + nPipelineDepth + ", final chunk size: " + nQueryChunkSize + ")");
+    	}
     }
     
+    /**
+     * Aggregation cursor whose batch size follows the current query chunk size, which MongoCursor does not allow (its batch size is fixed once opened).
+     * Batches are therefore fetched with explicit getMore commands, issued within a dedicated session since servers refuse getMore commands from a session other than the cursor's.
+     */
+    static private class AdjustableBatchCursor<T> implements Iterator<T>, Closeable
+    {
+    	private final MongoDatabase db;
+
+    	private final String sCollName;
+
+    	private final Codec<T> codec;
+
+    	private final IntSupplier batchSizeSupplier;
+
+    	private final ClientSession session;
+
+    	private long nCursorId;
+
+    	private Iterator<BsonValue> currentBatch;
+
+    	AdjustableBatchCursor(MongoTemplate mongoTemplate, MongoCollection<?> coll, List<? extends Bson> pipeline, Collation collation, Class<T> resultType, IntSupplier batchSizeSupplier) {
+    		db = mongoTemplate.getDb();
+    		sCollName = coll.getNamespace().getCollectionName();
+    		codec = coll.getCodecRegistry().get(resultType);
+    		this.batchSizeSupplier = batchSizeSupplier;
+    		Document command = new Document("aggregate", sCollName).append("pipeline", pipeline).append("allowDiskUse", true).append("cursor", new Document("batchSize", batchSizeSupplier.getAsInt()));
+    		if (collation != null)
+    			command.append("collation", collation.asDocument());
+    		session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().causallyConsistent(false).build());
+    		try {
+    			readBatch(db.runCommand(session, command, RawBsonDocument.class), "firstBatch");
+    		}
+    		catch (RuntimeException e) {
+    			session.close();
+    			throw e;
+    		}
+    	}
+
+    	private void readBatch(RawBsonDocument response, String sBatchField) {
+    		BsonDocument cursor = response.getDocument("cursor");
+    		nCursorId = cursor.getNumber("id").longValue();
+    		currentBatch = cursor.getArray(sBatchField).iterator();
+    	}
+
+    	@Override
+    	public boolean hasNext() {
+    		while (!currentBatch.hasNext() && nCursorId != 0)
+    			readBatch(db.runCommand(session, new Document("getMore", nCursorId).append("collection", sCollName).append("batchSize", batchSizeSupplier.getAsInt()), RawBsonDocument.class), "nextBatch");
+    		return currentBatch.hasNext();
+    	}
+
+    	@Override
+    	public T next() {
+    		if (!hasNext())
+    			throw new NoSuchElementException();
+    		BsonValue doc = currentBatch.next();
+    		if (doc instanceof RawBsonDocument)
+    			return ((RawBsonDocument) doc).decode(codec);
+    		return codec.decode(new BsonDocumentReader(doc.asDocument()), DecoderContext.builder().build());
+    	}
+
+    	@Override
+    	public void close() {
+    		try {
+    			if (nCursorId != 0)
+    				db.runCommand(session, new Document("killCursors", sCollName).append("cursors", Arrays.asList(nCursorId)));
+    		}
+    		catch (Exception e) {
+    			LOG.debug("Unable to kill cursor " + nCursorId + " on " + sCollName, e);
+    		}
+    		finally {
+    			nCursorId = 0;
+    			session.close();
+    		}
+    	}
+    }
+
+    /**
+     * Hands a chunk over to the writing thread. If nPipelineDepth chunks are already waiting to be written, blocks until the oldest one is.
+     * Chunks are written in submission order because the writer executor is single-threaded.
+     *
+     * @param chunk the chunk to write, which must not be modified afterwards
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void submitChunk(LinkedHashMap<String, List<VariantRunData>> chunk) throws InterruptedException, ExecutionException {
+    	while (!inFlightChunks.isEmpty() && inFlightChunks.peek().isDone())
+    		inFlightChunks.poll().get();	// get() makes sure writing exceptions are propagated
+
+    	if (inFlightChunks.size() >= nPipelineDepth) {
+    		long b4 = System.currentTimeMillis();
+    		inFlightChunks.poll().get();
+    		nFetcherWaitMillis += System.currentTimeMillis() - b4;
+    	}
+
+    	Executor timedExecutor = task -> writerExecutor.execute(() -> {
+    		nWriterWaitMillis += System.currentTimeMillis() - nLastWriteEnd;
+    		try {
+    			task.run();
+    		}
+    		finally {
+    			nLastWriteEnd = System.currentTimeMillis();
+    		}
+    	});
+    	inFlightChunks.add(writingThread.writeRuns(chunk, timedExecutor));
+    }
+    
+    /**
+     * Makes sure each run's known allele list is as long as its variant's. Runs may lack alleles added to their variant by subsequent imports (until MgdbDao.reconcileRunAlleleLists is run, hence only called while MgdbDao.haveStaleAlleleLists):
+     * those get completed using a single query per chunk, which only returns variants knowing more alleles than the chunk's shortest run, and fixed in the database using a single bulk update, rather than having writing threads repair them one by one.
+     *
+     * @param chunk the chunk to check
+     */
+    private void completeAlleleLists(LinkedHashMap<String, List<VariantRunData>> chunk) {
+    	int nMinAlleleCount = Integer.MAX_VALUE;
+    	for (List<VariantRunData> runs : chunk.values())
+    		for (VariantRunData vrd : runs)
+    			nMinAlleleCount = Math.min(nMinAlleleCount, vrd.getKnownAlleleList() == null ? 0 : vrd.getKnownAlleleList().size());
+    	if (nMinAlleleCount == Integer.MAX_VALUE)
+    		return;
+
+    	List<UpdateOneModel<Document>> updates = new ArrayList<>();
+    	Document longerAlleleListQuery = new Document("_id", new Document("$in", chunk.keySet())).append(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST + "." + nMinAlleleCount, new Document("$exists", true));
+    	for (Document variant : mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(longerAlleleListQuery).projection(new Document(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST, 1))) {
+    		List<String> alleles = (List<String>) variant.get(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST);
+    		List<VariantRunData> runs = chunk.get(variant.get("_id").toString());
+    		if (runs == null)
+    			continue;
+    		for (VariantRunData vrd : runs) {
+    			if (vrd.getKnownAlleleList() != null && vrd.getKnownAlleleList().size() >= alleles.size())
+    				continue;
+    			vrd.setKnownAlleleList(new ArrayList<>(alleles));
+    			Document runFilter = new Document("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, vrd.getId().getVariantId()).append("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, vrd.getId().getProjectId()).append("_id." + VariantRunDataId.FIELDNAME_RUNNAME, vrd.getId().getRunName());
+    			updates.add(new UpdateOneModel<>(runFilter, new Document("$set", new Document(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST, alleles))));
+    		}
+    	}
+    	if (!updates.isEmpty()) {
+    		mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)).bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    		LOG.debug(progress.getProcessId() + ": completed allele lists for " + updates.size() + " runs");
+    	}
+    }
+    
+    /**
+     * Waits for all chunks handed over to the writing thread to be written.
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void waitForInFlightChunks() throws InterruptedException, ExecutionException {
+    	long b4 = System.currentTimeMillis();
+    	while (!inFlightChunks.isEmpty())
+    		inFlightChunks.poll().get();
+    	nFetcherWaitMillis += System.currentTimeMillis() - b4;
+    }
+    
+    /**
+     * Sets the maximum number of chunks that may be waiting to be written while the next one is being fetched. 
+     *
+     * @param nPipelineDepth the pipeline depth (values below 1 are treated as 1)
+     */
+    public void setPipelineDepth(int nPipelineDepth) {
+    	this.nPipelineDepth = Math.max(1, nPipelineDepth);
+    }
+    
+    /**
+     * Estimates how many variants may be fetched at once without exceeding the chunk memory budget (cheap initial guess, refined between chunks).
+     *
+     * @param nSampleCount the number of exported samples
+     * @param nGenotypeFieldCount the number of genotype-level annotation fields (FORMAT fields for VCF data)
+     * @return the estimated query chunk size
+     */
+    private int estimateQueryChunkSize(int nSampleCount, int nGenotypeFieldCount) {
+    	long nBytesPerVariant = ESTIMATED_VARIANT_BYTES + (long) nSampleCount * (ESTIMATED_GENOTYPE_BYTES + nGenotypeFieldCount * ESTIMATED_GENOTYPE_FIELD_BYTES);
+    	return (int) Math.max(1, Math.min(nMaxQueryChunkSize, nChunkMemoryBudget / nBytesPerVariant));
+    }
+
+    /**
+     * Estimates the memory footprint of a decoded run from its actual contents.
+     *
+     * @param vrd the run
+     * @return the estimated footprint in bytes
+     */
+    private static long estimateDecodedSize(VariantRunData vrd) {
+    	long nBytes = ESTIMATED_VARIANT_BYTES;
+    	for (SampleGenotype sg : vrd.getSampleGenotypes().values())
+    		nBytes += ESTIMATED_GENOTYPE_BYTES + 2 * (sg.getCode() == null ? 0 : sg.getCode().length()) + (sg.getAdditionalInfo() == null ? 0 : sg.getAdditionalInfo().size() * ESTIMATED_GENOTYPE_FIELD_BYTES);
+    	return nBytes;
+    }
+
+    /**
+     * Resizes nQueryChunkSize towards the memory budget and fetch time target, based on what was measured for the last chunk. Changes are limited to a factor 2 per chunk to dampen fluctuations.
+     *
+     * @param nChunkVariantCount the number of variants in the last chunk
+     * @param nChunkBytes the estimated memory footprint of the last chunk
+     * @param nFetchMillis the time it took to fetch the last chunk
+     */
+    private void adjustQueryChunkSize(int nChunkVariantCount, long nChunkBytes, long nFetchMillis) {
+    	if (!fAdaptiveChunkSize || nChunkVariantCount == 0)
+    		return;
+
+    	double nWantedSize = nChunkMemoryBudget * (double) nChunkVariantCount / Math.max(1, nChunkBytes);
+    	if (nFetchMillis > 0)
+    		nWantedSize = Math.min(nWantedSize, nChunkFetchTargetMillis * (double) nChunkVariantCount / nFetchMillis);
+    	nWantedSize = Math.max(nQueryChunkSize / 2d, Math.min(nQueryChunkSize * 2d, nWantedSize));
+    	nQueryChunkSize = (int) Math.max(1, Math.min(nMaxQueryChunkSize, nWantedSize));
+    }
+
+    /**
+     * Enables or disables adjusting the query chunk size between chunks (enabled by default).
+     *
+     * @param fAdaptiveChunkSize whether or not to adjust the query chunk size
+     */
+    public void setAdaptiveChunkSize(boolean fAdaptiveChunkSize) {
+    	this.fAdaptiveChunkSize = fAdaptiveChunkSize;
+    }
+
+    /**
+     * Sets the targets the query chunk size gets adjusted towards.
+     *
+     * @param nChunkMemoryBudget the memory footprint to aim at for each chunk of decoded runs, in bytes
+     * @param nChunkFetchTargetMillis the time to aim at spending on fetching each chunk
+     */
+    public void setChunkSizeTargets(long nChunkMemoryBudget, long nChunkFetchTargetMillis) {
+    	this.nChunkMemoryBudget = Math.max(1, nChunkMemoryBudget);
+    	this.nChunkFetchTargetMillis = Math.max(1, nChunkFetchTargetMillis);
+    }
+
+	public int getQueryChunkSize() {
+		return nQueryChunkSize;
+	}
+
+	public long getFetcherWaitMillis() {
+		return nFetcherWaitMillis;
+	}
+
+	public long getWriterWaitMillis() {
+		return nWriterWaitMillis;
+	}
+
     /**
      * Exports by $match-ing successive chunks of variant IDs in VariantRunData. Would have thought using $lookup with a single cursor would be faster, but it's much slower
      * 
@@ -163,12 +518,12 @@ public class ExportManager
      * @throws ExecutionException
      */
 	private void exportFromTempColl() throws IOException, InterruptedException, ExecutionException {
-		CompletableFuture<Void> future = null;
 		LinkedHashMap<String, List<VariantRunData>> tempMarkerRunsToWrite = new LinkedHashMap<>(nQueryChunkSize);
 		List<VariantRunData> currentMarkerRuns = new ArrayList<>();
 		List<String> currentMarkerIDs = new ArrayList<>();
 		String varId = null, previousVarId = null;
 		int nWrittenmarkerCount = 0;
+		long nChunkStart = System.currentTimeMillis();
 		
 		MongoCollection<VariantRunData> runColl = mongoTemplate.getDb().withCodecRegistry(ExportManager.pojoCodecRegistry).getCollection(mongoTemplate.getCollectionName(VariantRunData.class), VariantRunData.class);
 		
@@ -189,10 +544,13 @@ public class ExportManager
 					pipeline.set(0, initialMatchStage);	// replace existing $match
 
 				ArrayList<VariantRunData> runs = runColl.aggregate(pipeline, VariantRunData.class).allowDiskUse(true).into(new ArrayList<>()); // we don't use collation here because it leads to unexpected behaviour (sometimes fetches some additional variants to those in currentMarkerIDs) => we'll have to sort each chunk by hand
-				Collections.sort(runs, vrdComparator);	// make sure variants within this chunk are correctly sorted
+				if (!fUseSequenceOrdinals)	// otherwise the pipeline's $sort stage is reliable
+					Collections.sort(runs, vrdComparator);	// make sure variants within this chunk are correctly sorted
+				long nFetchMillis = System.currentTimeMillis() - nChunkStart, nChunkBytes = 0;
 				
 				for (VariantRunData vrd : runs) {
 					varId = vrd.getId().getVariantId();
+					nChunkBytes += estimateDecodedSize(vrd);
 					
 					if (previousVarId != null && !varId.equals(previousVarId)) {
 						tempMarkerRunsToWrite.put(previousVarId, currentMarkerRuns);
@@ -206,36 +564,31 @@ public class ExportManager
 					previousVarId = varId;
 				}
 				
+				adjustQueryChunkSize(currentMarkerIDs.size(), nChunkBytes, nFetchMillis);
 				currentMarkerIDs.clear();
+				if (fCompleteAlleleLists)
+					completeAlleleLists(tempMarkerRunsToWrite);
 
-				if (future != null && !future.isDone()) {
-//					long b4 = System.currentTimeMillis();
-					future.get();
-//					long delay = System.currentTimeMillis() - b4;
-//					if (delay > 100)
-//						LOG.debug(progress.getProcessId() + " waited " + delay + "ms before writing variant " + nWrittenmarkerCount/* + ", increasing nQueryChunkSize from " + nQueryChunkSize + " to " + nQueryChunkSize*2*/);
-				}
-				
 				if (markerCount != null)
 					progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
-				future = writingThread.writeRuns(tempMarkerRunsToWrite);
-				tempMarkerRunsToWrite.clear();
+				submitChunk(tempMarkerRunsToWrite);
+				tempMarkerRunsToWrite = new LinkedHashMap<>(nQueryChunkSize);	// the previous one now belongs to the writer
+				nChunkStart = System.currentTimeMillis();
 			}
 		}
 
-		if (future != null && !future.isDone())
-			future.get();
+		waitForInFlightChunks();
 		if (markerCount != null)
 			progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
 	}
 
 
 	private void exportDirectlyFromRuns() throws IOException, InterruptedException, ExecutionException {
-		CompletableFuture<Void> future = null;
 		LinkedHashMap<String, List<VariantRunData>> tempMarkerRunsToWrite = new LinkedHashMap<>(nQueryChunkSize);
 		List<VariantRunData> currentMarkerRuns = new ArrayList<>();
 		String varId = null, previousVarId = null;
 		int nWrittenmarkerCount = 0;
+		long nChunkStart = System.currentTimeMillis(), nChunkBytes = 0;
 		
 		while (markerCursor.hasNext()) {
             if (progress.isAborted() || progress.getError() != null ) {
@@ -254,29 +607,26 @@ public class ExportManager
 			}
 
 			currentMarkerRuns.add(vrd);
+			nChunkBytes += estimateDecodedSize(vrd);
 
 			if (!markerCursor.hasNext())
 				tempMarkerRunsToWrite.put(varId, currentMarkerRuns);	// special case, when the end of the cursor is being reached
 
 			if (tempMarkerRunsToWrite.size() >= nQueryChunkSize || !markerCursor.hasNext()) {
-				if (future != null && !future.isDone()) {
-//					long b4 = System.currentTimeMillis();
-					future.get();
-//					long delay = System.currentTimeMillis() - b4;
-//					if (delay > 100) {
-//						LOG.debug(progress.getProcessId() + " waited " + delay + "ms before writing variant " + nWrittenmarkerCount/* + ", increasing nQueryChunkSize from " + nQueryChunkSize + " to " + nQueryChunkSize*2*/);
-				}
-
 				if (markerCount != null && markerCount > 0)
 					progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
-				future = writingThread.writeRuns(tempMarkerRunsToWrite);
-				tempMarkerRunsToWrite.clear();
+				adjustQueryChunkSize(tempMarkerRunsToWrite.size(), nChunkBytes, System.currentTimeMillis() - nChunkStart);
+				if (fCompleteAlleleLists)
+					completeAlleleLists(tempMarkerRunsToWrite);
+				submitChunk(tempMarkerRunsToWrite);
+				tempMarkerRunsToWrite = new LinkedHashMap<>(nQueryChunkSize);	// the previous one now belongs to the writer
+				nChunkStart = System.currentTimeMillis();
+				nChunkBytes = 0;
 			}
 			previousVarId = varId;
 		}
 
-		if (future != null && !future.isDone())
-			future.get();
+		waitForInFlightChunks();
 		if (markerCount != null && markerCount > 0)
 			progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
 	}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Scratch storage for individual-oriented exports: a variants x individuals matrix of genotype-string IDs kept in a temporary file.
+ * Rows (variants) are appended by the export writing thread, then each individual's column can be streamed out once all variants have been added.
+ * Data is stored by blocks of consecutive variants, individual-major within each block, so that writing is sequential and reading an individual's genotypes only involves contiguous reads.
+ */
+public class IndividualGenotypeMatrix implements Closeable
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(IndividualGenotypeMatrix.class);
+
+	/** Maximum number of cells held in memory for the block being filled */
+	static final int MAX_CELLS_PER_BLOCK = 4 * 1024 * 1024;
+
+	/** Maximum number of individual files to keep open at the same time when streaming the matrix out */
+	static final int MAX_SIMULTANEOUSLY_OPEN_FILES = 256;
+
+	/** Genotype-string ID used for missing data */
+	static public final int MISSING_GENOTYPE_ID = 0;
+
+	private final int nIndividualCount;
+
+	private final int nVariantsPerBlock;
+
+	private final long nBlockSizeInBytes;
+
+	private final File scratchFile;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer blockBuffer;
+
+	private final IntBuffer blockCells;
+
+	private int nRowsInCurrentBlock = 0;
+
+	private int nFlushedBlockCount = 0;
+
+	private long nVariantCount = 0;
+
+	private final HashMap<String, Integer> genotypeIDs = new HashMap<>();
+
+	private final List<String> genotypeStrings = new ArrayList<>();
+
+	/**
+	 * Instantiates a new individual genotype matrix.
+	 *
+	 * @param nIndividualCount the number of individuals (columns)
+	 * @param sTempFilePrefix prefix for the scratch file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public IndividualGenotypeMatrix(int nIndividualCount, String sTempFilePrefix) throws IOException {
+		this.nIndividualCount = Math.max(1, nIndividualCount);
+		nVariantsPerBlock = Math.max(1, Math.min(4096, MAX_CELLS_PER_BLOCK / this.nIndividualCount));
+		nBlockSizeInBytes = 4l * nVariantsPerBlock * this.nIndividualCount;
+		scratchFile = File.createTempFile(sTempFilePrefix, ".gtmatrix");
+		channel = new RandomAccessFile(scratchFile, "rw").getChannel();
+		blockBuffer = ByteBuffer.allocateDirect((int) nBlockSizeInBytes);
+		blockCells = blockBuffer.asIntBuffer();
+		getGenotypeId("");	// reserve MISSING_GENOTYPE_ID
+	}
+
+	/**
+	 * Gets the ID associated to a genotype string, creating it if necessary.
+	 *
+	 * @param genotype the genotype string, as it shall appear in the individual's file (empty for missing data)
+	 * @return the genotype ID
+	 */
+	public int getGenotypeId(String genotype) {
+		Integer id = genotypeIDs.get(genotype);
+		if (id == null) {
+			id = genotypeStrings.size();
+			genotypeIDs.put(genotype, id);
+			genotypeStrings.add(genotype);
+		}
+		return id;
+	}
+
+	/**
+	 * Appends a variant row to the matrix.
+	 *
+	 * @param individualGenotypeIds one genotype ID per individual, indexed by individual position
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void addVariant(int[] individualGenotypeIds) throws IOException {
+		for (int i=0; i<nIndividualCount; i++)
+			blockCells.put(i * nVariantsPerBlock + nRowsInCurrentBlock, individualGenotypeIds[i]);
+		nVariantCount++;
+		if (++nRowsInCurrentBlock == nVariantsPerBlock)
+			flushBlock();
+	}
+
+	private void flushBlock() throws IOException {
+		if (nRowsInCurrentBlock == 0)
+			return;
+
+		blockBuffer.clear();
+		long nPos = nFlushedBlockCount * nBlockSizeInBytes;
+		while (blockBuffer.hasRemaining())
+			nPos += channel.write(blockBuffer, nPos);
+		nFlushedBlockCount++;
+		nRowsInCurrentBlock = 0;
+	}
+
+	/**
+	 * Streams each individual's column into its file, one line per variant. Files are opened in append mode, a limited number of them at a time.
+	 *
+	 * @param individualFiles one file per individual, indexed by individual position
+	 * @param lineSeparator the line separator
+	 * @param progress the progress indicator (checked for abortion)
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void writeIndividualFiles(File[] individualFiles, String lineSeparator, ProgressIndicator progress) throws IOException {
+		long nRowsInLastBlock = nRowsInCurrentBlock;
+		flushBlock();
+		int nBlockCount = nFlushedBlockCount;
+
+		byte[][] genotypeLines = new byte[genotypeStrings.size()][];
+		for (int i=0; i<genotypeLines.length; i++)
+			genotypeLines[i] = (genotypeStrings.get(i) + lineSeparator).getBytes();
+
+		int nGroupSize = Math.min(nIndividualCount, MAX_SIMULTANEOUSLY_OPEN_FILES);
+		ByteBuffer readBuffer = ByteBuffer.allocateDirect(4 * nGroupSize * nVariantsPerBlock);
+		for (int nFirstIndividual = 0; nFirstIndividual < individualFiles.length; nFirstIndividual += nGroupSize) {
+			if (progress != null && progress.isAborted())
+				return;
+
+			int nIndividualsInGroup = Math.min(nGroupSize, individualFiles.length - nFirstIndividual);
+			OutputStream[] outputStreams = new OutputStream[nIndividualsInGroup];
+			try {
+				for (int i=0; i<nIndividualsInGroup; i++)
+					outputStreams[i] = new BufferedOutputStream(new FileOutputStream(individualFiles[nFirstIndividual + i], true));
+
+				for (int nBlock = 0; nBlock < nBlockCount; nBlock++) {
+					int nRowsInBlock = (int) (nBlock == nBlockCount - 1 && nRowsInLastBlock > 0 ? nRowsInLastBlock : nVariantsPerBlock);
+					readBuffer.clear().limit(4 * nIndividualsInGroup * nVariantsPerBlock);
+					long nPos = nBlock * nBlockSizeInBytes + 4l * nFirstIndividual * nVariantsPerBlock;
+					while (readBuffer.hasRemaining() && channel.read(readBuffer, nPos) > 0)
+						nPos = nBlock * nBlockSizeInBytes + 4l * nFirstIndividual * nVariantsPerBlock + readBuffer.position();
+					readBuffer.flip();
+					IntBuffer cells = readBuffer.asIntBuffer();
+
+					for (int i=0; i<nIndividualsInGroup; i++)
+						for (int nRow=0; nRow<nRowsInBlock; nRow++)
+							outputStreams[i].write(genotypeLines[cells.get(i * nVariantsPerBlock + nRow)]);
+				}
+			}
+			finally {
+				for (OutputStream os : outputStreams)
+					if (os != null)
+						os.close();
+			}
+		}
+		LOG.debug("Wrote " + nVariantCount + " variants for " + individualFiles.length + " individuals from " + scratchFile.getName() + " (" + genotypeStrings.size() + " distinct genotype strings)");
+	}
+
+	/**
+	 * Gets the number of variants added so far.
+	 *
+	 * @return the variant count
+	 */
+	public long getVariantCount() {
+		return nVariantCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		if (!scratchFile.delete())
+			LOG.warn("Unable to delete scratch file " + scratchFile.getPath());
+	}
+}
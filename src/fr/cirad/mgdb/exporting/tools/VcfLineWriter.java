@@ -0,0 +1,576 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
+import fr.cirad.mgdb.model.mongo.subtypes.ExportPlan;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.tools.Helper;
+import htsjdk.variant.variantcontext.GenotypeLikelihoods;
+import htsjdk.variant.vcf.VCFConstants;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFHeaderLineCount;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+
+/**
+ * Writes VCF data lines straight from VariantRunData, without building htsjdk VariantContext / Genotype / Allele objects.
+ * Output is meant to be identical to what a VariantContextWriter (with missing header fields allowed) produces for AbstractVariantData.toVariantContext(...):
+ * same most-frequent-genotype selection, phasing, annotation filtering, AD/PL correction, field ordering and value formatting.
+ * Each line is assembled in a reusable byte buffer, as is per-individual state, so instances are not thread-safe and are meant to be used by a single writing thread.
+ */
+public class VcfLineWriter
+{
+	/** Run-level additional info fields that do not end up in the INFO column */
+	static private final HashSet<String> nonInfoFields = new HashSet<>(Arrays.asList(AbstractVariantData.FIELD_SOURCE, AbstractVariantData.FIELD_FULLYDECODED, AbstractVariantData.FIELD_FILTERS, AbstractVariantData.FIELD_PHREDSCALEDQUAL, VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME, VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE));
+
+	/** Genotype-level additional info fields that are either treated specifically or internal, and therefore not exported as extended FORMAT attributes */
+	static private final HashSet<String> nonExtendedGenotypeFields = new HashSet<>(Arrays.asList(VCFConstants.GENOTYPE_ALLELE_DEPTHS, VCFConstants.DEPTH_KEY, VCFConstants.GENOTYPE_QUALITY_KEY, VCFConstants.GENOTYPE_PL_KEY, VCFConstants.GENOTYPE_LIKELIHOODS_KEY, VariantData.GT_FIELD_PHASED_GT, VariantData.GT_FIELD_PHASED_ID, VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE, VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME));
+
+	/** Allele index used for no-calls */
+	static private final int NO_CALL_INDEX = -1;
+
+	private final VCFHeader header;
+
+	private final ExportPlan exportPlan;
+
+	/** For each header sample, the position of the corresponding individual in the export plan (-1 if not exported) */
+	private final int[] headerSampleIndividualPositions;
+
+	/** The line being built */
+	private byte[] lineBytes = new byte[64 * 1024];
+
+	private int nLineLength = 0;
+
+	/* per-individual state, only valid for individuals flagged in individualHasGenotype, reset for each variant */
+	private final boolean[] individualHasGenotype;
+	private final SampleGenotype[] individualSampleGenotypes;
+	private final int[][] individualAlleleIndexes;
+	private final boolean[] individualPhasing;
+	private final int[][] individualADs, individualPLs;
+	private final Integer[] individualDPs, individualGQs;
+
+	/* per-variant state */
+	private final HashMap<String, int[]> genotypeCodeAlleleIndexes = new HashMap<>();
+	private final HashMap<String, Integer> altAlleleIndexes = new HashMap<>();
+
+	/** Allele strings as htsjdk would display them (i.e. upper-cased unless symbolic), kept for the whole export */
+	private final HashMap<String, String> alleleDisplayStrings = new HashMap<>();
+	private final TreeSet<String> sortedKeys = new TreeSet<>();
+
+	/**
+	 * Instantiates a new VCF line writer.
+	 *
+	 * @param header the VCF header that was (or will be) written, used for sample order and FORMAT field counts
+	 * @param exportPlan the export plan
+	 */
+	public VcfLineWriter(VCFHeader header, ExportPlan exportPlan) {
+		this.header = header;
+		this.exportPlan = exportPlan;
+
+		HashMap<String, Integer> individualPositions = new HashMap<>();
+		for (int i=0; i<exportPlan.getIndividualCount(); i++)
+			individualPositions.put(exportPlan.getIndividual(i), i);
+		List<String> headerSamples = header.getGenotypeSamples();
+		headerSampleIndividualPositions = new int[headerSamples.size()];
+		for (int i=0; i<headerSampleIndividualPositions.length; i++) {
+			Integer nPos = individualPositions.get(headerSamples.get(i));
+			headerSampleIndividualPositions[i] = nPos == null ? -1 : nPos;
+		}
+
+		int nIndividualCount = exportPlan.getIndividualCount();
+		individualHasGenotype = new boolean[nIndividualCount];
+		individualSampleGenotypes = new SampleGenotype[nIndividualCount];
+		individualAlleleIndexes = new int[nIndividualCount][];
+		individualPhasing = new boolean[nIndividualCount];
+		individualADs = new int[nIndividualCount][];
+		individualPLs = new int[nIndividualCount][];
+		individualDPs = new Integer[nIndividualCount];
+		individualGQs = new Integer[nIndividualCount];
+	}
+
+	/**
+	 * Writes the VCF header (meta-information lines and column header line), as a VariantContextWriter would.
+	 *
+	 * @param os the output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void writeHeader(OutputStream os) throws IOException
+	{
+		StringBuilder sb = new StringBuilder(VCFHeader.METADATA_INDICATOR).append(VCFHeaderVersion.VCF4_2.getFormatString()).append('=').append(VCFHeaderVersion.VCF4_2.getVersionString()).append('\n');
+		for (VCFHeaderLine line : header.getMetaDataInSortedOrder())
+			if (!VCFHeaderVersion.isFormatString(line.getKey()))
+				sb.append(VCFHeader.METADATA_INDICATOR).append(line).append('\n');
+
+		sb.append(VCFHeader.HEADER_INDICATOR);
+		boolean fFirstField = true;
+		for (VCFHeader.HEADER_FIELDS field : header.getHeaderFields()) {
+			if (!fFirstField)
+				sb.append('\t');
+			sb.append(field);
+			fFirstField = false;
+		}
+		if (header.hasGenotypingData()) {
+			sb.append("\tFORMAT");
+			for (String sample : header.getGenotypeSamples())
+				sb.append('\t').append(sample);
+		}
+		os.write(sb.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes a variant's VCF line (terminated by a line feed) to an output stream. If the stream is a BgzfOutputStream, the line is declared to it for indexing.
+	 *
+	 * @param os the output stream
+	 * @param variant the variant
+	 * @param runs the variant's runs
+	 * @param exportVariantIDs whether or not to fill the ID column
+	 * @param previousPhasingIds the previous phasing ids
+	 * @param warningFileWriter the warning file writer
+	 * @param synonym the synonym
+	 * @throws Exception the exception
+	 */
+	public void writeVariant(OutputStream os, AbstractVariantData variant, Collection<VariantRunData> runs, boolean exportVariantIDs, HashMap<Integer, Object> previousPhasingIds, FileWriter warningFileWriter, Comparable synonym) throws Exception
+	{
+		int nIndividualCount = exportPlan.getIndividualCount();
+		List<String> knownAlleleList = variant.getKnownAlleleList();
+		String sRefAllele = null;
+		if (runs != null && nIndividualCount > 0)
+			for (VariantRunData run : runs)
+				if (!run.getKnownAlleleList().isEmpty()) {
+					sRefAllele = run.getKnownAlleleList().get(0);
+					break;
+				}
+
+		genotypeCodeAlleleIndexes.clear();
+		altAlleleIndexes.clear();
+		String[] alleleStrings = new String[] {sRefAllele == null ? null : getAlleleDisplayString(sRefAllele, true)};	// grown when alternate alleles are found (rarely more than a handful)
+		int nAlleleCount = 1, nMaxPloidy = 0;
+		boolean fSawGQ = false, fSawDP = false, fSawAD = false, fSawPL = false, fSawFilter = false;
+		sortedKeys.clear();
+
+		HashSet<VariantRunData> runsWhereDataWasFound = new HashSet<>();
+		for (int nIndividualIndex = 0; nIndividualIndex < nIndividualCount; nIndividualIndex++) {
+			individualHasGenotype[nIndividualIndex] = false;
+
+			ExportPlan.SelectedGenotype selectedGenotype = exportPlan.selectGenotype(nIndividualIndex, runs, runsWhereDataWasFound);
+			if (selectedGenotype == null)
+				continue;	// no genotype for this individual
+			String mostFrequentGenotype = selectedGenotype.getCode();
+			int spId = selectedGenotype.getSampleId();
+			SampleGenotype sampleGenotype = selectedGenotype.getSampleGenotype();
+
+			if (warningFileWriter != null && selectedGenotype.getDistinctGenotypeCount() > 1)
+				warningFileWriter.write("- Dissimilar genotypes found for variant " + (synonym == null ? variant.getVariantId() : synonym) + ", individual " + exportPlan.getIndividual(nIndividualIndex) + ". Exporting most frequent: " + mostFrequentGenotype + "\n");
+
+			HashMap<String, Object> gtInfo = sampleGenotype.getAdditionalInfo();
+			Object currentPhId = gtInfo.get(VariantData.GT_FIELD_PHASED_ID);
+			boolean isPhased = currentPhId != null && currentPhId.equals(previousPhasingIds.get(spId));
+			String gtCode = isPhased ? (String) gtInfo.get(VariantData.GT_FIELD_PHASED_GT) : mostFrequentGenotype;
+			previousPhasingIds.put(spId, currentPhId == null ? variant.getVariantId() : currentPhId);
+
+			int[] gtAlleleIndexes = genotypeCodeAlleleIndexes.get(gtCode);
+			if (gtAlleleIndexes == null) {
+				List<String> alleles = variant.getAllelesFromGenotypeCode(gtCode);
+				boolean fAllAllelesNoCall = true;
+				for (String allele : alleles)
+					if (allele.length() > 0) {
+						fAllAllelesNoCall = false;
+						break;
+					}
+
+				gtAlleleIndexes = new int[alleles.size()];
+				for (int i=0; i<gtAlleleIndexes.length; i++) {
+					String sAllele = alleles.get(i);
+					if (sAllele.length() == 0 && fAllAllelesNoCall)
+						gtAlleleIndexes[i] = NO_CALL_INDEX;
+					else if (sAllele.equals(sRefAllele))
+						gtAlleleIndexes[i] = 0;
+					else {
+						String sAlleleString = getAlleleDisplayString(sAllele.length() == 0 ? "<DEL>" : sAllele, false);
+						Integer nAlleleIndex = altAlleleIndexes.get(sAlleleString);
+						if (nAlleleIndex == null) {
+							nAlleleIndex = nAlleleCount++;
+							altAlleleIndexes.put(sAlleleString, nAlleleIndex);
+							if (nAlleleIndex == alleleStrings.length)
+								alleleStrings = Arrays.copyOf(alleleStrings, alleleStrings.length * 2);
+							alleleStrings[nAlleleIndex] = sAlleleString;
+						}
+						gtAlleleIndexes[i] = nAlleleIndex;
+					}
+				}
+				genotypeCodeAlleleIndexes.put(gtCode, gtAlleleIndexes);
+			}
+			if (gtAlleleIndexes.length == 0)
+				continue;	/* skip this individual because there is no genotype for it */
+
+			individualHasGenotype[nIndividualIndex] = true;
+			individualSampleGenotypes[nIndividualIndex] = sampleGenotype;
+			individualAlleleIndexes[nIndividualIndex] = gtAlleleIndexes;
+			individualPhasing[nIndividualIndex] = isPhased;
+			individualADs[nIndividualIndex] = individualPLs[nIndividualIndex] = null;
+			individualDPs[nIndividualIndex] = individualGQs[nIndividualIndex] = null;
+			nMaxPloidy = Math.max(nMaxPloidy, gtAlleleIndexes.length);
+
+			String genotypeFilters = (String) gtInfo.get(AbstractVariantData.FIELD_FILTERS);
+			if (genotypeFilters != null && genotypeFilters.length() > 0)
+				fSawFilter = true;
+
+			List<String> alleleListAtImportTimeIfDifferentFromNow = null;
+			for (String key : gtInfo.keySet())
+			{
+				if (VCFConstants.GENOTYPE_ALLELE_DEPTHS.equals(key))
+				{
+					String ad = (String) gtInfo.get(key);
+					if (ad != null)
+					{
+						int[] adArray = Helper.csvToIntArray(ad);
+						if (knownAlleleList.size() > adArray.length)
+						{
+							alleleListAtImportTimeIfDifferentFromNow = knownAlleleList.subList(0, adArray.length);
+							adArray = VariantData.fixAdFieldValue(adArray, alleleListAtImportTimeIfDifferentFromNow, knownAlleleList);
+						}
+						individualADs[nIndividualIndex] = adArray;
+						fSawAD = true;
+					}
+				}
+				else if (VCFConstants.DEPTH_KEY.equals(key) || VCFConstants.GENOTYPE_QUALITY_KEY.equals(key))
+				{
+					Integer value = (Integer) gtInfo.get(key);
+					if (value != null)
+					{
+						if (VCFConstants.DEPTH_KEY.equals(key)) {
+							individualDPs[nIndividualIndex] = value;
+							fSawDP = true;
+						}
+						else {
+							individualGQs[nIndividualIndex] = value;
+							fSawGQ = true;
+						}
+					}
+				}
+				else if (VCFConstants.GENOTYPE_PL_KEY.equals(key) || VCFConstants.GENOTYPE_LIKELIHOODS_KEY.equals(key))
+				{
+					String fieldVal = (String) gtInfo.get(key);
+					if (fieldVal != null)
+					{
+						int[] plArray = VCFConstants.GENOTYPE_PL_KEY.equals(key) ? Helper.csvToIntArray(fieldVal) : GenotypeLikelihoods.fromGLField(fieldVal).getAsPLs();
+						if (alleleListAtImportTimeIfDifferentFromNow != null)
+							plArray = VariantData.fixPlFieldValue(plArray, gtAlleleIndexes.length, alleleListAtImportTimeIfDifferentFromNow, knownAlleleList);
+						individualPLs[nIndividualIndex] = plArray;
+						fSawPL = true;
+					}
+				}
+				else if (!nonExtendedGenotypeFields.contains(key))
+					sortedKeys.add(key);	// looks like we have an extended attribute
+			}
+		}
+
+		VariantRunData run = runsWhereDataWasFound.size() == 1 ? runsWhereDataWasFound.iterator().next() : null;	// if there is not exactly one run involved then we do not export meta-data
+		nLineLength = 0;
+
+		// CHROM, POS, ID
+		ReferencePosition referencePosition = variant.getReferencePosition();
+		String chr = referencePosition == null ? null : referencePosition.getSequence();
+		Long start = referencePosition == null ? null : referencePosition.getStartSite();
+		append(chr != null ? chr : "").append('\t').append(start != null ? start : 0).append('\t');
+		append(exportVariantIDs ? (synonym == null ? variant.getVariantId() : synonym).toString() : VCFConstants.EMPTY_ID_FIELD).append('\t');
+
+		// REF, ALT
+		append(alleleStrings[0]).append('\t');
+		if (nAlleleCount == 1)
+			append(VCFConstants.EMPTY_ALTERNATE_ALLELE_FIELD);
+		else
+			for (int i=1; i<nAlleleCount; i++) {
+				if (i > 1)
+					append(',');
+				append(alleleStrings[i]);
+			}
+		append('\t');
+
+		// QUAL, FILTER, INFO
+		HashMap<String, Object> runInfo = run == null ? null : run.getAdditionalInfo();
+		Number qual = runInfo == null ? null : (Number) runInfo.get(AbstractVariantData.FIELD_PHREDSCALEDQUAL);
+		if (qual == null)
+			append(VCFConstants.MISSING_VALUE_v4);
+		else {
+			String sQual = String.format("%.2f", qual.doubleValue());	// same as VCFEncoder.formatQualValue
+			append(sQual.endsWith(".00") ? sQual.substring(0, sQual.length() - 3) : sQual);
+		}
+		append('\t');
+
+		String filters = runInfo == null ? null : (String) runInfo.get(AbstractVariantData.FIELD_FILTERS);
+		if (filters == null)
+			append(VCFConstants.UNFILTERED);
+		else {
+			boolean fFirst = true;
+			for (String filter : new TreeSet<>(Arrays.asList(filters.split(",")))) {	// de-duplicated and sorted, as VariantContext / VCFEncoder do
+				if (!fFirst)
+					append(';');
+				append(filter);
+				fFirst = false;
+			}
+		}
+		append('\t');
+
+		boolean fWroteInfo = false;
+		if (runInfo != null) {
+			TreeSet<String> infoKeys = new TreeSet<>();
+			for (String attrName : runInfo.keySet())
+				if (!nonInfoFields.contains(attrName))
+					infoKeys.add(attrName);
+			for (String attrName : infoKeys) {
+				String sValue = formatVCFField(runInfo.get(attrName));
+				if (sValue == null)
+					continue;
+				if (fWroteInfo)
+					append(';');
+				append(attrName);
+				VCFInfoHeaderLine metaData = header.getInfoHeaderLine(attrName);
+				if (!sValue.isEmpty() && (metaData == null || metaData.getCountType() != VCFHeaderLineCount.INTEGER || metaData.getCount() != 0))
+					append('=').append(sValue);	// flags are written without a value
+				fWroteInfo = true;
+			}
+		}
+		if (!fWroteInfo)
+			append(VCFConstants.EMPTY_INFO_FIELD);
+
+		// FORMAT and genotypes
+		if (header.hasGenotypingData()) {
+			if (fSawGQ)
+				sortedKeys.add(VCFConstants.GENOTYPE_QUALITY_KEY);
+			if (fSawDP)
+				sortedKeys.add(VCFConstants.DEPTH_KEY);
+			if (fSawAD)
+				sortedKeys.add(VCFConstants.GENOTYPE_ALLELE_DEPTHS);
+			if (fSawPL)
+				sortedKeys.add(VCFConstants.GENOTYPE_PL_KEY);
+			if (fSawFilter)
+				sortedKeys.add(VCFConstants.GENOTYPE_FILTER_KEY);
+			boolean fWriteGT = nMaxPloidy > 0 || sortedKeys.isEmpty();	// GT is always there when any genotype is available, and on its own when nothing else is
+
+			append('\t');
+			if (fWriteGT)
+				append(VCFConstants.GENOTYPE_KEY);
+			boolean fFirstKey = !fWriteGT;
+			for (String key : sortedKeys) {
+				if (!fFirstKey)
+					append(':');
+				append(key);
+				fFirstKey = false;
+			}
+
+			String[] keys = sortedKeys.toArray(new String[sortedKeys.size()]);
+			String[] formatValues = new String[keys.length];
+			int nMissingGenotypePloidy = nMaxPloidy == 0 ? 2 : nMaxPloidy;
+			for (int nIndividualIndex : headerSampleIndividualPositions) {
+				append('\t');
+				boolean fHasGenotype = nIndividualIndex != -1 && individualHasGenotype[nIndividualIndex];
+				if (fWriteGT) {
+					if (!fHasGenotype)
+						for (int i=0; i<nMissingGenotypePloidy; i++) {
+							if (i > 0)
+								append(VCFConstants.UNPHASED);
+							append(VCFConstants.EMPTY_ALLELE);
+						}
+					else {
+						int[] gtAlleleIndexes = individualAlleleIndexes[nIndividualIndex];
+						String separator = individualPhasing[nIndividualIndex] ? VCFConstants.PHASED : VCFConstants.UNPHASED;
+						for (int i=0; i<gtAlleleIndexes.length; i++) {
+							if (i > 0)
+								append(separator);
+							if (gtAlleleIndexes[i] == NO_CALL_INDEX)
+								append(VCFConstants.EMPTY_ALLELE);
+							else
+								append(gtAlleleIndexes[i]);
+						}
+					}
+				}
+
+				int nValueCount = 0;
+				for (String key : keys) {
+					String sValue;
+					if (VCFConstants.GENOTYPE_FILTER_KEY.equals(key)) {
+						String genotypeFilters = fHasGenotype ? (String) individualSampleGenotypes[nIndividualIndex].getAdditionalInfo().get(AbstractVariantData.FIELD_FILTERS) : null;
+						sValue = genotypeFilters != null && genotypeFilters.length() > 0 ? genotypeFilters : VCFConstants.PASSES_FILTERS_v4;
+					}
+					else if (VCFConstants.GENOTYPE_QUALITY_KEY.equals(key))
+						sValue = fHasGenotype && individualGQs[nIndividualIndex] != null ? individualGQs[nIndividualIndex].toString() : VCFConstants.MISSING_VALUE_v4;
+					else if (VCFConstants.DEPTH_KEY.equals(key))
+						sValue = fHasGenotype && individualDPs[nIndividualIndex] != null ? individualDPs[nIndividualIndex].toString() : VCFConstants.MISSING_VALUE_v4;
+					else if (VCFConstants.GENOTYPE_ALLELE_DEPTHS.equals(key))
+						sValue = fHasGenotype && individualADs[nIndividualIndex] != null ? Helper.arrayToCsv(",", individualADs[nIndividualIndex]) : VCFConstants.MISSING_VALUE_v4;
+					else if (VCFConstants.GENOTYPE_PL_KEY.equals(key))
+						sValue = fHasGenotype && individualPLs[nIndividualIndex] != null ? Helper.arrayToCsv(",", individualPLs[nIndividualIndex]) : VCFConstants.MISSING_VALUE_v4;
+					else {
+						Map<String, Object> gtInfo = fHasGenotype ? individualSampleGenotypes[nIndividualIndex].getAdditionalInfo() : null;
+						Object val = gtInfo != null && gtInfo.containsKey(key) ? gtInfo.get(key) : VCFConstants.MISSING_VALUE_v4;
+						if (VCFConstants.MISSING_VALUE_v4.equals(val)) {
+							int nExpectedValueCount = getFormatFieldCount(key, nAlleleCount, nMaxPloidy == 0 ? 2 : nMaxPloidy);
+							if (nExpectedValueCount > 1) {
+								StringBuilder sb = new StringBuilder(VCFConstants.MISSING_VALUE_v4);
+								for (int i=1; i<nExpectedValueCount; i++)
+									sb.append(",").append(VCFConstants.MISSING_VALUE_v4);
+								val = sb.toString();
+							}
+						}
+						sValue = formatVCFField(val);
+					}
+					if (sValue != null)
+						formatValues[nValueCount++] = sValue;
+				}
+
+				while (nValueCount > 0 && isMissingValue(formatValues[nValueCount - 1]))
+					nValueCount--;	// strip off trailing missing values
+				for (int i=0; i<nValueCount; i++) {
+					if (i > 0 || fWriteGT)
+						append(':');
+					append(formatValues[i]);
+				}
+			}
+		}
+
+		append('\n');
+		if (os instanceof BgzfOutputStream) {
+			Long end = referencePosition == null ? null : referencePosition.getEndSite();
+			((BgzfOutputStream) os).startRecord(chr != null ? chr : "", start != null ? start.intValue() : 0, end != null ? end.intValue() : (start != null ? start.intValue() : 0));
+		}
+		os.write(lineBytes, 0, nLineLength);
+	}
+
+	private String getAlleleDisplayString(String sAllele, boolean fIsRef) {
+		String sDisplayString = alleleDisplayStrings.get(sAllele);
+		if (sDisplayString == null) {
+			sDisplayString = exportPlan.getAllele(sAllele, fIsRef).getDisplayString();
+			alleleDisplayStrings.put(sAllele, sDisplayString);
+		}
+		return sDisplayString;
+	}
+
+	private int getFormatFieldCount(String key, int nAlleleCount, int nPloidy) {
+		VCFFormatHeaderLine metaData = header.getFormatHeaderLine(key);
+		if (metaData == null)
+			return 0;
+		switch (metaData.getCountType()) {
+			case INTEGER:
+				return metaData.getCount();
+			case A:
+				return nAlleleCount - 1;
+			case R:
+				return nAlleleCount;
+			case G:
+				return GenotypeLikelihoods.numLikelihoods(nAlleleCount, nPloidy);
+			default:
+				return -1;
+		}
+	}
+
+	/* same as VCFEncoder.formatVCFField */
+	static private String formatVCFField(Object val) {
+		if (val == null)
+			return VCFConstants.MISSING_VALUE_v4;
+		if (val instanceof Double)
+			return VCFEncoder.formatVCFDouble((Double) val);
+		if (val instanceof Boolean)
+			return (Boolean) val ? "" : null;
+		if (val instanceof List)
+			return formatVCFField(((List) val).toArray());
+		if (val.getClass().isArray()) {
+			int nLength = java.lang.reflect.Array.getLength(val);
+			if (nLength == 0)
+				return VCFConstants.MISSING_VALUE_v4;
+			StringBuilder sb = new StringBuilder(formatVCFField(java.lang.reflect.Array.get(val, 0)));
+			for (int i=1; i<nLength; i++)
+				sb.append(",").append(formatVCFField(java.lang.reflect.Array.get(val, i)));
+			return sb.toString();
+		}
+		return val.toString();
+	}
+
+	/* same as VCFEncoder.isMissingValue */
+	static private boolean isMissingValue(String s) {
+		for (int i=0; i<s.length(); i++)
+			if (s.charAt(i) != '.' && s.charAt(i) != ',')
+				return false;
+		return true;
+	}
+
+	private void ensureCapacity(int nAdditionalBytes) {
+		if (nLineLength + nAdditionalBytes > lineBytes.length)
+			lineBytes = Arrays.copyOf(lineBytes, Math.max(lineBytes.length * 2, nLineLength + nAdditionalBytes));
+	}
+
+	private VcfLineWriter append(char c) {
+		ensureCapacity(1);
+		lineBytes[nLineLength++] = (byte) c;
+		return this;
+	}
+
+	private VcfLineWriter append(String s) {
+		int nLength = s.length();
+		ensureCapacity(nLength);
+		for (int i=0; i<nLength; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {	// not ASCII: let the JDK encode what remains
+				byte[] bytes = s.substring(i).getBytes(StandardCharsets.UTF_8);
+				ensureCapacity(bytes.length);
+				System.arraycopy(bytes, 0, lineBytes, nLineLength, bytes.length);
+				nLineLength += bytes.length;
+				return this;
+			}
+			lineBytes[nLineLength++] = (byte) c;
+		}
+		return this;
+	}
+
+	private VcfLineWriter append(long n) {
+		if (n < 0) {
+			if (n == Long.MIN_VALUE)
+				return append(Long.toString(n));
+			append('-');
+			n = -n;
+		}
+		int nDigitCount = 1;
+		for (long m = n / 10; m > 0; m /= 10)
+			nDigitCount++;
+		ensureCapacity(nDigitCount);
+		for (int i = nLineLength + nDigitCount - 1; i >= nLineLength; i--) {
+			lineBytes[i] = (byte) ('0' + n % 10);
+			n /= 10;
+		}
+		nLineLength += nDigitCount;
+		return this;
+	}
+}
@@ -171,6 +171,7 @@ public class BrapiImport extends AbstractGenotypeImport {
 
 			GenotypingProject project = mongoTemplate.findOne(new Query(Criteria.where(GenotypingProject.FIELDNAME_NAME).is(sProject)), GenotypingProject.class);
 
+			lockProjectForImport(mongoTemplate, sModule, sProject, m_processID);
 			cleanupBeforeImport(mongoTemplate, sModule, project, importMode, sRun);
 
 			Integer createdProject = null;
@@ -182,6 +183,7 @@ public class BrapiImport extends AbstractGenotypeImport {
 				project.setTechnology(sTechnology);
 				createdProject = project.getId();
 			}
+			MgdbDao.markAlleleListsStale(mongoTemplate, project.getId());	// other projects' runs may lack alleles this import adds to their variants until MgdbDao.prepareDatabaseForSearches reconciles them
 
 			BrapiClient client = new BrapiClient();	
 			client.initService(endpointUrl, null);
@@ -571,6 +573,7 @@ public class BrapiImport extends AbstractGenotypeImport {
 							}
 						}
 						
+						checkImportLock();
 						genotypePager.paginate(br.getMetadata());
 						tempFileWriter.flush();				
 					}
@@ -610,6 +613,8 @@ public class BrapiImport extends AbstractGenotypeImport {
 		}
 		finally
 		{
+			unlockProjectForImport();
+
 			if (tempFile.exists())
 			{
 //				System.out.println("temp file size: " + tempFile.length());
@@ -725,6 +730,7 @@ public class BrapiImport extends AbstractGenotypeImport {
             }
 			mongoTemplate.save(project);	// always save project before samples otherwise the sample cleaning procedure in MgdbDao.prepareDatabaseForSearches may remove them if called in the meantime
 			mongoTemplate.insert(previouslyCreatedSamples.values(), GenotypingSample.class);
+			MgdbDao.bumpProjectDataVersion(mongoTemplate, project.getId());
 	
 	    	LOG.info("Import took " + (System.currentTimeMillis() - before)/1000 + "s for " + lineCount + " CSV lines (" + nVariantSaveCount + " variants were saved)");
 	    	if (unsavedVariants.size() > 0)
@@ -732,7 +738,7 @@ public class BrapiImport extends AbstractGenotypeImport {
 	    	
 			progress.addStep("Preparing database for searches");
 			progress.moveToNextStep();
-			MgdbDao.prepareDatabaseForSearches(mongoTemplate);
+			MgdbDao.prepareDatabaseForSearches(mongoTemplate, project.getId(), sRun);
 			progress.markAsComplete();
 		}
 		finally
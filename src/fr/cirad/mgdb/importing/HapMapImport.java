@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -190,6 +189,7 @@ public class HapMapImport extends AbstractGenotypeImport {
             if (importMode == 0 && project != null && project.getPloidyLevel() != 2)
             	throw new Exception("Ploidy levels differ between existing (" + project.getPloidyLevel() + ") and provided (" + 2 + ") data!");
 
+            lockProjectForImport(mongoTemplate, sModule, sProject, m_processID);
             cleanupBeforeImport(mongoTemplate, sModule, project, importMode, sRun);
 
 			Integer createdProject = null;
@@ -202,6 +202,7 @@ public class HapMapImport extends AbstractGenotypeImport {
 				project.setTechnology(sTechnology);
 				createdProject = project.getId();
 			}
+			MgdbDao.markAlleleListsStale(mongoTemplate, project.getId());	// other projects' runs may lack alleles this import adds to their variants until MgdbDao.prepareDatabaseForSearches reconciles them
 			project.setPloidyLevel(2);
 
 			HashMap<String, String> existingVariantIDs = buildSynonymToIdMapForExistingVariants(mongoTemplate, false);		
@@ -219,7 +220,6 @@ public class HapMapImport extends AbstractGenotypeImport {
 			progress.addStep("Processing variant lines");
 			progress.moveToNextStep();
 			final MongoTemplate finalMongoTemplate = mongoTemplate;
-            Thread asyncThread = null;
 			while (it.hasNext())
 			{
 				if (progress.getError() != null || progress.isAborted())
@@ -235,11 +235,12 @@ public class HapMapImport extends AbstractGenotypeImport {
 						if (variantId != null)
 							break;
 					}
-					VariantData variant = variantId == null ? null : mongoTemplate.findById(variantId, VariantData.class);
+					VariantData variant = variantId == null ? null : findExistingVariant(mongoTemplate, variantId);
 					if (variant == null)
 						variant = new VariantData(hmFeature.getName() != null && hmFeature.getName().length() > 0 ? ((ObjectId.isValid(hmFeature.getName()) ? "_" : "") + hmFeature.getName()) : (generatedIdBaseString + String.format(String.format("%09x", count))));
 
 					VariantRunData runToSave = addHapMapDataToVariant(mongoTemplate, variant, hmFeature, project, sRun, previouslyCreatedSamples);
+					recordImportedAlleles(variant);
 
 					if (!project.getSequences().contains(hmFeature.getChr()))
 						project.getSequences().add(hmFeature.getChr());
@@ -264,34 +265,7 @@ public class HapMapImport extends AbstractGenotypeImport {
 					}
 					if (count % nNumberOfVariantsToSaveAtOnce == 0)
 					{
-                        List<VariantData> finalUnsavedVariants = unsavedVariants;
-                        List<VariantRunData> finalUnsavedRuns = unsavedRuns;
-                        
-	                    Thread insertionThread = new Thread() {
-	                        @Override
-	                        public void run() {
-                        		try {
-									persistVariantsAndGenotypes(!existingVariantIDs.isEmpty(), finalMongoTemplate, finalUnsavedVariants, finalUnsavedRuns);
-								} catch (InterruptedException e) {
-									progress.setError(e.getMessage());
-									LOG.error(e);
-								}
-	                        }
-	                    };
-
-	                    if (asyncThread == null)
-                        {	// every second insert is run asynchronously for better speed
-//                        	System.out.println("async");
-                        	asyncThread = insertionThread;
-                        	asyncThread.start();
-                        }
-                        else
-                        {
-//                        	System.out.println("sync");
-                        	insertionThread.run();
-                        	asyncThread.join();	// make sure previous thread has executed before going further
-                        	asyncThread = null;
-                        }
+                        persistVariantsAndGenotypesAsync(sModule, !existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);	// blocks while previous chunks are still being written or the host is busy
                         
 	                    unsavedVariants = new ArrayList<>();
 	                    unsavedRuns = new ArrayList<>();
@@ -312,24 +286,31 @@ public class HapMapImport extends AbstractGenotypeImport {
 			}
 			reader.close();
 
-			persistVariantsAndGenotypes(!existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);
+			persistVariantsAndGenotypesAsync(sModule, !existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);
+			awaitPendingChunkWrites();
+			mergeStagedChunks();
 
 			// save project data
 			if (!project.getRuns().contains(sRun))
 				project.getRuns().add(sRun);
 			mongoTemplate.save(project);	// always save project before samples otherwise the sample cleaning procedure in MgdbDao.prepareDatabaseForSearches may remove them if called in the meantime
             mongoTemplate.insert(previouslyCreatedSamples.values(), GenotypingSample.class);
+            MgdbDao.bumpProjectDataVersion(mongoTemplate, project.getId());
 
 			LOG.info("HapMapImport took " + (System.currentTimeMillis() - before) / 1000 + "s for " + count + " records");
 
 			progress.addStep("Preparing database for searches");
 			progress.moveToNextStep();
-			MgdbDao.prepareDatabaseForSearches(mongoTemplate);
+			MgdbDao.prepareDatabaseForSearches(mongoTemplate, project.getId(), sRun);
 			progress.markAsComplete();
 			return createdProject;
 		}
 		finally
 		{
+			discardPendingChunkWrites();
+			discardStagedChunks();	// only left if the import failed before merging them
+			unlockProjectForImport();
+
 			if (m_fCloseContextOpenAfterImport && ctx != null)
 				ctx.close();
 
@@ -46,6 +46,7 @@ import fr.cirad.io.brapi.BrapiClient.Pager;
 import fr.cirad.io.brapi.BrapiService;
 import fr.cirad.mgdb.model.mongo.maintypes.CustomIndividualMetadata;
 import fr.cirad.mgdb.model.mongo.maintypes.Individual;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.Helper;
 import fr.cirad.tools.ProgressIndicator;
 import fr.cirad.tools.mongo.MongoTemplateManager;
@@ -156,6 +157,7 @@ public class IndividualMetadataImport {
 					throw new Exception("The following individuals do not exist in the selected database: " + StringUtils.join(CollectionUtils.disjunction(passedIndList, foundIndList), ", "));
 			}
 			BulkWriteResult wr = bulkOperations.execute();
+			MgdbDao.invalidateIndividualCache(sModule);
 			if (passedIndList.size() == 0)
 				LOG.info("Database " + sModule + ": metadata was deleted for " + wr.getModifiedCount() + " individuals");
 			else
@@ -297,6 +299,7 @@ public class IndividualMetadataImport {
 		progress.addStep("Persisting metadata found at " + endpointUrl);
 		progress.moveToNextStep();
 		BulkWriteResult wr = bulkOperations.execute();
+		MgdbDao.invalidateIndividualCache(sModule);
 		return wr.getModifiedCount() + wr.getUpserts().size();
 	}
 
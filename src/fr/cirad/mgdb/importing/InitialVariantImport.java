@@ -36,6 +36,7 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.Helper;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
@@ -141,6 +142,7 @@ public class InitialVariantImport {
 				if (sLine != null)
 					sLine = sLine.trim();
 				
+				MgdbDao.invalidateSequenceOrdinals(mongoTemplate);
 				long count = 0;
 				int nNumberOfVariantsToSaveAtOnce = 50000;
 				ArrayList<VariantData> unsavedVariants = new ArrayList<VariantData>();
@@ -209,6 +211,7 @@ public class InitialVariantImport {
 					mongoTemplate.insert(unsavedVariants, VariantData.class);
 					unsavedVariants.clear();
 				}
+				MgdbDao.updateSequenceOrdinals(mongoTemplate);
 				LOG.info("InitialVariantImport took " + (System.currentTimeMillis() - before) / 1000 + "s for " + count + " records");
 			}
 			finally
@@ -194,6 +194,7 @@ public class PlinkImport extends AbstractGenotypeImport {
             if (importMode == 0 && project != null && project.getPloidyLevel() != 2)
             	throw new Exception("Ploidy levels differ between existing (" + project.getPloidyLevel() + ") and provided (" + 2 + ") data!");
             
+            lockProjectForImport(mongoTemplate, sModule, sProject, m_processID);
             cleanupBeforeImport(mongoTemplate, sModule, project, importMode, sRun);
 
 			Integer createdProject = null;
@@ -206,6 +207,7 @@ public class PlinkImport extends AbstractGenotypeImport {
 				project.setTechnology(sTechnology);
 				createdProject = project.getId();
 			}
+			MgdbDao.markAlleleListsStale(mongoTemplate, project.getId());	// other projects' runs may lack alleles this import adds to their variants until MgdbDao.prepareDatabaseForSearches reconciles them
 			project.setPloidyLevel(2);
 
 			HashMap<String, String> existingVariantIDs = buildSynonymToIdMapForExistingVariants(mongoTemplate, false);			
@@ -240,23 +242,27 @@ public class PlinkImport extends AbstractGenotypeImport {
 			if (progress.getError() != null)
 				return 0;
 			
-			long count = importTempFileContents(progress, mongoTemplate, tempFiles, variantsAndPositions, existingVariantIDs, project, sRun, inconsistencies, userIndividualToPopulationMapToFill);
+			long count = importTempFileContents(progress, sModule, mongoTemplate, tempFiles, variantsAndPositions, existingVariantIDs, project, sRun, inconsistencies, userIndividualToPopulationMapToFill);
 			LOG.info("Import took " + (System.currentTimeMillis() - before) / 1000 + "s for " + count + " records");
 
 			progress.addStep("Preparing database for searches");
 			progress.moveToNextStep();
-			MgdbDao.prepareDatabaseForSearches(mongoTemplate);
+			MgdbDao.prepareDatabaseForSearches(mongoTemplate, project.getId(), sRun);
 			progress.markAsComplete();
 			return createdProject;
 		}
 		finally
 		{
+			discardPendingChunkWrites();
+			discardStagedChunks();	// only left if the import failed before merging them
+			unlockProjectForImport();
+
 			if (m_fCloseContextOpenAfterImport && ctx != null)
 				ctx.close();
 		}
 	}
 
-	public long importTempFileContents(ProgressIndicator progress, MongoTemplate mongoTemplate, File[] tempFiles, LinkedHashMap<String, String> variantsAndPositions, HashMap<String, String> existingVariantIDs, GenotypingProject project, String sRun, HashMap<String, ArrayList<String>> inconsistencies, Map<String, String> userIndividualToPopulationMap) throws Exception			
+	public long importTempFileContents(ProgressIndicator progress, String sModule, MongoTemplate mongoTemplate, File[] tempFiles, LinkedHashMap<String, String> variantsAndPositions, HashMap<String, String> existingVariantIDs, GenotypingProject project, String sRun, HashMap<String, ArrayList<String>> inconsistencies, Map<String, String> userIndividualToPopulationMap) throws Exception			
 	{
 		String[] individuals = userIndividualToPopulationMap.keySet().toArray(new String[userIndividualToPopulationMap.size()]);
 		HashSet<VariantData> unsavedVariants = new HashSet<VariantData>();	// HashSet allows no duplicates
@@ -280,7 +286,6 @@ public class PlinkImport extends AbstractGenotypeImport {
 				scanner = new Scanner(tempFile);
 				long nPreviousProgressPercentage = -1;
 				final MongoTemplate finalMongoTemplate = mongoTemplate;
-	            Thread asyncThread = null;
 				while (scanner.hasNextLine())
 				{
 					if (progress.getError() != null || progress.isAborted())
@@ -322,7 +327,7 @@ public class PlinkImport extends AbstractGenotypeImport {
 					}
 					else
 					{
-						VariantData variant = mongoTemplate.findById(variantId == null ? providedVariantId : variantId, VariantData.class);							
+						VariantData variant = findExistingVariant(mongoTemplate, variantId == null ? providedVariantId : variantId);							
 						if (variant == null)
 							variant = new VariantData((ObjectId.isValid(providedVariantId) ? "_" : "") + providedVariantId);
 
@@ -341,6 +346,7 @@ public class PlinkImport extends AbstractGenotypeImport {
 						}
 
 						VariantRunData runToSave = addPlinkDataToVariant(mongoTemplate, variant, sequence, bpPosition, userIndividualToPopulationMap, alleles, project, sRun, previouslyCreatedSamples, fImportUnknownVariants);
+						recordImportedAlleles(variant);
 						
 						if (variant.getReferencePosition() != null && !project.getSequences().contains(variant.getReferencePosition().getSequence()))
 							project.getSequences().add(variant.getReferencePosition().getSequence());
@@ -364,32 +370,7 @@ public class PlinkImport extends AbstractGenotypeImport {
 						}
 						if (count % nNumberOfVariantsToSaveAtOnce == 0)
 						{
-	                        HashSet<VariantData> finalUnsavedVariants = unsavedVariants;
-	                        HashSet<VariantRunData> finalUnsavedRuns = unsavedRuns;
-	                        
-		                    Thread insertionThread = new Thread() {
-		                        @Override
-		                        public void run() {
-	                        		try {
-										persistVariantsAndGenotypes(!existingVariantIDs.isEmpty(), finalMongoTemplate, finalUnsavedVariants, finalUnsavedRuns);
-									} catch (InterruptedException e) {
-										progress.setError(e.getMessage());
-										LOG.error(e);
-									}
-		                        }
-		                    };
-
-		                    if (asyncThread == null)
-	                        {	// every second insert is run asynchronously for better speed
-	                        	asyncThread = insertionThread;
-	                        	asyncThread.start();
-	                        }
-	                        else
-	                        {
-	                        	insertionThread.run();
-	                        	asyncThread.join();	// make sure previous thread has executed before going further
-	                        	asyncThread = null;
-	                        }
+	                        persistVariantsAndGenotypesAsync(sModule, !existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);	// blocks while previous chunks are still being written or the host is busy
 	                        
 		                    unsavedVariants = new HashSet<>();
 		                    unsavedRuns = new HashSet<>();
@@ -417,7 +398,9 @@ public class PlinkImport extends AbstractGenotypeImport {
 				}
 				scanner.close();
 				
-				persistVariantsAndGenotypes(!existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);
+				persistVariantsAndGenotypesAsync(sModule, !existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);
+				awaitPendingChunkWrites();
+				mergeStagedChunks();
 			}
 
 			// save project data
@@ -425,6 +408,7 @@ public class PlinkImport extends AbstractGenotypeImport {
 				project.getRuns().add(sRun);
 			mongoTemplate.save(project);	// always save project before samples otherwise the sample cleaning procedure in MgdbDao.prepareDatabaseForSearches may remove them if called in the meantime
             mongoTemplate.insert(previouslyCreatedSamples.values(), GenotypingSample.class);
+            MgdbDao.bumpProjectDataVersion(mongoTemplate, project.getId());
 		}
 		finally
 		{
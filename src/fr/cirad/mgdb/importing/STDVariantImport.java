@@ -137,6 +137,7 @@ public class STDVariantImport extends AbstractGenotypeImport {
             
 			fImportUnknownVariants = doesDatabaseSupportImportingUnknownVariants(sModule);
 			
+			lockProjectForImport(mongoTemplate, sModule, sProject, m_processID);
 			cleanupBeforeImport(mongoTemplate, sModule, project, importMode, sRun);
 			
 			progress.addStep("Reading marker IDs");
@@ -201,6 +202,7 @@ public class STDVariantImport extends AbstractGenotypeImport {
 				project.setTechnology(sTechnology);
 				project.getVariantTypes().add(Type.SNP.toString());
 			}
+			MgdbDao.markAlleleListsStale(mongoTemplate, project.getId());	// other projects' runs may lack alleles this import adds to their variants until MgdbDao.prepareDatabaseForSearches reconciles them
 
 			// import genotyping data
 			progress.addStep("Processing genotype lines by thousands");
@@ -245,6 +247,7 @@ public class STDVariantImport extends AbstractGenotypeImport {
 				progress.setCurrentStepProgress((int) lineCount/1000);
 				if (++lineCount % 100000 == 0)
 				{
+					checkImportLock();
 					String info = lineCount + " lines processed"/*"(" + (System.currentTimeMillis() - before) / 1000 + ")\t"*/;
 					LOG.info(info);
 				}
@@ -275,6 +278,7 @@ public class STDVariantImport extends AbstractGenotypeImport {
             	project.setPloidyLevel(m_ploidy);
 			mongoTemplate.save(project);	// always save project before samples otherwise the sample cleaning procedure in MgdbDao.prepareDatabaseForSearches may remove them if called in the meantime
 			mongoTemplate.insert(previouslyCreatedSamples.values(), GenotypingSample.class);
+			MgdbDao.bumpProjectDataVersion(mongoTemplate, project.getId());
 	
 	    	LOG.info("Import took " + (System.currentTimeMillis() - before)/1000 + "s for " + lineCount + " CSV lines (" + nVariantSaveCount + " variants were saved)");
 	    	if (unsavedVariants.size() > 0)
@@ -282,11 +286,13 @@ public class STDVariantImport extends AbstractGenotypeImport {
 	    	
 			progress.addStep("Preparing database for searches");
 			progress.moveToNextStep();
-			MgdbDao.prepareDatabaseForSearches(mongoTemplate);
+			MgdbDao.prepareDatabaseForSearches(mongoTemplate, project.getId(), sRun);
 			progress.markAsComplete();
 		}
 		finally
 		{
+			unlockProjectForImport();
+
 			if (ctx != null)
 				ctx.close();
 		}
@@ -211,7 +211,7 @@ public class VcfImport extends AbstractGenotypeImport {
             if (importMode == 0 && project != null && project.getPloidyLevel() != nPloidy)
             	throw new Exception("Ploidy levels differ between existing (" + project.getPloidyLevel() + ") and provided (" + nPloidy + ") data!");
             
-            currentlyImportedProjects.put(sModule, sProject);
+            lockProjectForImport(mongoTemplate, sModule, sProject, m_processID);
 
             cleanupBeforeImport(mongoTemplate, sModule, project, importMode, sRun);
 
@@ -242,9 +242,11 @@ public class VcfImport extends AbstractGenotypeImport {
                 project.setTechnology(sTechnology);
                 createdProject = project.getId();
             }
+            MgdbDao.markAlleleListsStale(mongoTemplate, project.getId());	// other projects' runs may lack alleles this import adds to their variants until MgdbDao.prepareDatabaseForSearches reconciles them
             project.setPloidyLevel(nPloidy);
 
             mongoTemplate.save(new DBVCFHeader(new VcfHeaderId(project.getId(), sRun), header));
+            MgdbDao.invalidateVcfHeaderCache(mongoTemplate, project.getId());
 
             String info = "Header was written for project " + sProject + " and run " + sRun;
             LOG.info(info);
@@ -268,7 +270,6 @@ public class VcfImport extends AbstractGenotypeImport {
             // loop over each variation
             long count = 0;
             String generatedIdBaseString = Long.toHexString(System.currentTimeMillis());
-            Thread asyncThread = null;
             while (variantIterator.hasNext()) {
 				if (progress.getError() != null || progress.isAborted())
 					return null;
@@ -289,12 +290,13 @@ public class VcfImport extends AbstractGenotypeImport {
 						if (variantId != null)
 							break;
 					}
-                    VariantData variant = variantId == null ? null : mongoTemplate.findById(variantId, VariantData.class);
+                    VariantData variant = variantId == null ? null : findExistingVariant(mongoTemplate, variantId);
                     if (variant == null)
                 		variant = new VariantData(vcfEntry.hasID() ? ((ObjectId.isValid(vcfEntry.getID()) ? "_" : "") + vcfEntry.getID()) : (generatedIdBaseString + String.format(String.format("%09x", count))));
                     
                     unsavedVariants.add(variant);
                     VariantRunData runToSave = addVcfDataToVariant(mongoTemplate, header, variant, vcfEntry, project, sRun, phasingGroups, previouslyCreatedSamples, effectAnnotationPos, geneIdAnnotationPos);
+                    recordImportedAlleles(variant);
                     if (!unsavedRuns.contains(runToSave))
                         unsavedRuns.add(runToSave);
 
@@ -303,34 +305,7 @@ public class VcfImport extends AbstractGenotypeImport {
                         LOG.info("Importing by chunks of size " + nNumberOfVariantsToSaveAtOnce);
                     }
                     if (count % nNumberOfVariantsToSaveAtOnce == 0) {
-                        List<VariantData> finalUnsavedVariants = unsavedVariants;
-                        List<VariantRunData> finalUnsavedRuns = unsavedRuns;
-                        
-	                    Thread insertionThread = new Thread() {
-	                        @Override
-	                        public void run() {
-                        		try {
-									persistVariantsAndGenotypes(!existingVariantIDs.isEmpty(), finalMongoTemplate, finalUnsavedVariants, finalUnsavedRuns);
-								} catch (InterruptedException e) {
-									progress.setError(e.getMessage());
-									LOG.error(e);
-								}
-	                        }
-	                    };
-
-	                    if (asyncThread == null)
-                        {	// every second insert is run asynchronously for better speed
-//                        	System.out.println("async");
-                        	asyncThread = insertionThread;
-                        	asyncThread.start();
-                        }
-                        else
-                        {
-//                        	System.out.println("sync");
-                        	insertionThread.run();
-                        	asyncThread.join();	// make sure previous thread has executed before going further
-                        	asyncThread = null;
-                        }
+                        persistVariantsAndGenotypesAsync(sModule, !existingVariantIDs.isEmpty(), finalMongoTemplate, unsavedVariants, unsavedRuns);	// blocks while previous chunks are still being written or the host is busy
 
 	                    unsavedVariants = new ArrayList<>();
 	                    unsavedRuns = new ArrayList<>();
@@ -355,7 +330,9 @@ public class VcfImport extends AbstractGenotypeImport {
             }
             reader.close();
 
-            persistVariantsAndGenotypes(!existingVariantIDs.isEmpty(), mongoTemplate, unsavedVariants, unsavedRuns);
+            persistVariantsAndGenotypesAsync(sModule, !existingVariantIDs.isEmpty(), mongoTemplate, unsavedVariants, unsavedRuns);
+            awaitPendingChunkWrites();
+            mergeStagedChunks();
 
         	// always save project before samples otherwise the sample cleaning procedure in MgdbDao.prepareDatabaseForSearches may remove them if called in the meantime
             if (!project.getRuns().contains(sRun))
@@ -365,18 +342,21 @@ public class VcfImport extends AbstractGenotypeImport {
             else
             	mongoTemplate.insert(project);
             mongoTemplate.insert(previouslyCreatedSamples.values(), GenotypingSample.class);
+            MgdbDao.bumpProjectDataVersion(mongoTemplate, project.getId());
 
             LOG.info("VariantImport took " + (System.currentTimeMillis() - before) / 1000 + "s for " + count + " records");
 
             progress.addStep("Preparing database for searches");
             progress.moveToNextStep();
-            MgdbDao.prepareDatabaseForSearches(mongoTemplate);
+            MgdbDao.prepareDatabaseForSearches(mongoTemplate, project.getId(), sRun);
             progress.markAsComplete();
             return createdProject;
         }
         finally
         {
-        	currentlyImportedProjects.remove(sModule);
+        	discardPendingChunkWrites();
+        	discardStagedChunks();	// only left if the import failed before merging them
+        	unlockProjectForImport();
 
 			if (m_fCloseContextOpenAfterImport && ctx != null)
                 ctx.close();
@@ -16,17 +16,20 @@
  *******************************************************************************/
 package fr.cirad.mgdb.importing.base;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Sort;
@@ -45,8 +48,12 @@ import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongodao.GenotypeBitmapIndex;
 import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.mgdb.model.mongodao.VariantSummaryStats;
 import fr.cirad.tools.Helper;
+import fr.cirad.tools.mongo.JobQueue;
+import fr.cirad.tools.mongo.LeaseLock;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
 public class AbstractGenotypeImport {
@@ -55,12 +62,30 @@ public class AbstractGenotypeImport {
 	
 	protected static final int nMaxChunkSize = 10000;
 
+	/** The maximum number of chunks an import may have waiting to be written while parsing the next one */
+	protected static final int nMaxPendingChunkWrites = 2;
+
+	/** Chunk writes submitted by this import and not complete yet, oldest first */
+	private final ArrayDeque<Future<Void>> pendingChunkWrites = new ArrayDeque<>();
+
 	private boolean m_fAllowDbDropIfNoGenotypingData = true;
 
+	private boolean m_fUseStagingCollections = false;
+
+	/** Where chunks are staged when using staging collections (created along with the first chunk) */
+	private ImportStagingArea stagingArea = null;
+
+	/** Allele lists of existing variants as extended so far by this import, by variant ID. Chunks being written asynchronously (and possibly only staged), the live collection may lack alleles added by previous chunks */
+	private final HashMap<String, List<String>> importedAlleleLists = new HashMap<>();
+
 	/** String representing nucleotides considered as valid */
 	protected static HashSet<String> validNucleotides = new HashSet<>(Arrays.asList(new String[] {"a", "A", "t", "T", "g", "G", "c", "C"}));
 	
-	protected static HashMap<String /*module*/, String /*project*/> currentlyImportedProjects = new HashMap<>();
+	/** The kind of LeaseLock held on a project while importing into it */
+	static final public String LOCK_KIND_IMPORT = "import";
+
+	/** The lock held by this import on the project it imports into (visible to all application nodes) */
+	private LeaseLock importLock = null;
 	
 	public static ArrayList<String> getIdentificationStrings(String sType, String sSeq, Long nStartPos, Collection<String> idAndSynonyms) throws Exception
 	{
@@ -80,7 +105,65 @@ public class AbstractGenotypeImport {
 	
 	public static String getCurrentlyImportedProjectForModule(String sModule)
 	{
-		return currentlyImportedProjects.get(sModule);
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
+		if (mongoTemplate == null)
+			return null;
+		List<Document> importLocks = LeaseLock.getActiveLocks(mongoTemplate, LOCK_KIND_IMPORT);
+		return importLocks.isEmpty() ? null : importLocks.get(0).getString("_id").substring(LOCK_KIND_IMPORT.length() + 1);
+	}
+
+	/**
+	 * Acquires the lock preventing other imports (from any application node) into the same project, until unlockProjectForImport is called.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param sModule the module
+	 * @param sProject the project name
+	 * @param sProcessId the import's process ID
+	 * @throws Exception if the project is already being imported into
+	 */
+	protected void lockProjectForImport(MongoTemplate mongoTemplate, String sModule, String sProject, String sProcessId) throws Exception
+	{
+		importLock = LeaseLock.tryAcquire(mongoTemplate, LOCK_KIND_IMPORT, LOCK_KIND_IMPORT + "¤" + sProject, sProcessId);
+		if (importLock == null)
+			throw new Exception("Project " + sProject + " in database " + sModule + " is already being imported into, please try again later");
+	}
+
+	/**
+	 * Aborts the import if the lock acquired by lockProjectForImport has been lost (e.g. heartbeats failed for too long and another node acquired it), since another import may then be writing into the same project.
+	 *
+	 * @throws IllegalStateException if the lock is no longer held
+	 */
+	protected void checkImportLock()
+	{
+		if (importLock != null && !importLock.isHeld())
+			throw new IllegalStateException("Lock on project lost, aborting import");
+	}
+
+	/**
+	 * Drops the database, then writes the import lock, the documents of jobs this node is running in it (typically the one running the import), and its settings, again.
+	 *
+	 * @param mongoTemplate the mongo template
+	 */
+	private void dropDatabase(MongoTemplate mongoTemplate)
+	{
+		boolean fWeightVariantTaggingByRunData = MgdbDao.isWeightVariantTaggingByRunData(mongoTemplate);
+		mongoTemplate.getDb().drop();
+		if (fWeightVariantTaggingByRunData)
+			MgdbDao.setWeightVariantTaggingByRunData(mongoTemplate, true);
+		JobQueue.reassertRunningJobs(mongoTemplate);
+		if (importLock != null && !importLock.reassert())
+			throw new IllegalStateException("Lock on project lost while cleaning up database, aborting import");
+	}
+
+	/**
+	 * Releases the lock acquired by lockProjectForImport, if any.
+	 */
+	protected void unlockProjectForImport()
+	{
+		if (importLock != null) {
+			importLock.release();
+			importLock = null;
+		}
 	}
 
 //	public static void buildSynonymMappings(MongoTemplate mongoTemplate) throws Exception
@@ -168,6 +251,39 @@ public class AbstractGenotypeImport {
         }
         return existingVariantIDs;
 	}
+
+	/**
+	 * Loads a variant from the database for this import to add data to it. If the import already added data to it, its allele list is the one this import left it with,
+	 * so that allele indexes used in genotype codes remain consistent between all runs written for the variant, whether or not previous chunks have reached the live collection yet.
+	 * Callers must call recordImportedAlleles once they are done adding data to the variant.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param sVariantId the variant ID
+	 * @return the variant (null if it does not exist)
+	 */
+	protected VariantData findExistingVariant(MongoTemplate mongoTemplate, String sVariantId)
+	{
+		VariantData variant = mongoTemplate.findById(sVariantId, VariantData.class);
+		if (variant == null)
+			return null;
+
+		List<String> importedAlleles = importedAlleleLists.get(variant.getId());
+		if (importedAlleles != null)
+			variant.setKnownAlleleList(new ArrayList<>(importedAlleles));	// copied because the previous list may be in the process of being written
+		else
+			importedAlleleLists.put(variant.getId(), variant.getKnownAlleleList());
+		return variant;
+	}
+
+	/**
+	 * Records the allele list of a variant obtained via findExistingVariant, after this import has added data to it.
+	 *
+	 * @param variant the variant
+	 */
+	protected void recordImportedAlleles(VariantData variant)
+	{
+		importedAlleleLists.replace(variant.getId(), variant.getKnownAlleleList());
+	}
 	
 	static public boolean doesDatabaseSupportImportingUnknownVariants(String sModule)
 	{
@@ -191,66 +307,161 @@ public class AbstractGenotypeImport {
 
     public void persistVariantsAndGenotypes(boolean fDBAlreadyContainsVariants, MongoTemplate mongoTemplate, Collection<VariantData> unsavedVariants, Collection<VariantRunData> unsavedRuns) throws InterruptedException
     {
+    	checkImportLock();
 //    	long b4 = System.currentTimeMillis();
-		Thread vdAsyncThread = new Thread() {	// using 2 threads is faster when calling save, but slower when calling insert 
-			public void run() {
-				if (!fDBAlreadyContainsVariants)	// we benefit from the fact that it's the first variant import into this database to use bulk insert which is much faster
-					mongoTemplate.insert(unsavedVariants, VariantData.class);
-		        else
-			    	for (VariantData vd : unsavedVariants)
-			        	try {
-			        		mongoTemplate.save(vd);
-			        	}
-						catch (OptimisticLockingFailureException olfe) {
-							mongoTemplate.save(vd);	// try again
-						}
-			}
-		};
-		vdAsyncThread.start();
+		ImportStagingArea staging = fDBAlreadyContainsVariants && m_fUseStagingCollections ? getStagingArea(mongoTemplate) : null;	// insert-only: conflicts get resolved by mergeStagedChunks
+		Future<?> vdWrite = ImportWriteExecutor.fork(() -> {	// using 2 threads is faster when calling save, but slower when calling insert 
+			if (staging != null)
+				staging.stageVariants(unsavedVariants);
+			else if (!fDBAlreadyContainsVariants)	// we benefit from the fact that it's the first variant import into this database to use bulk insert which is much faster
+				mongoTemplate.insert(unsavedVariants, VariantData.class);
+	        else
+		    	for (VariantData vd : unsavedVariants)
+		        	try {
+		        		mongoTemplate.save(vd);
+		        	}
+					catch (OptimisticLockingFailureException olfe) {
+						mongoTemplate.save(vd);	// try again
+					}
+		});
     	
 //		long t1 = System.currentTimeMillis() - b4;
 //		b4 = System.currentTimeMillis();
 		
-		List<VariantRunData> syncList = new ArrayList<>(), asyncList = new ArrayList<>();
+		int nSliceCount = Math.max(1, Math.min(ImportWriteExecutor.getThreadsPerChunkWrite(), unsavedRuns.size()));
+		List<List<VariantRunData>> slices = new ArrayList<>();
+		for (int i=0; i<nSliceCount; i++)
+			slices.add(new ArrayList<>());
 		int i = 0;
 		for (VariantRunData vrd : unsavedRuns)
-			(i++ < unsavedRuns.size() / 2 ? syncList : asyncList).add(vrd);
+			slices.get(i++ * nSliceCount / unsavedRuns.size()).add(vrd);
 	    		
-		try {
-			Thread vrdAsyncThread = new Thread() {
-				public void run() {
-			    	mongoTemplate.insert(asyncList, VariantRunData.class);	// this should always work but fails when a same variant is provided several times (using different synonyms)
-				}
-			};
-			vrdAsyncThread.start();
-	    	mongoTemplate.insert(syncList, VariantRunData.class);	// this should always work but fails when a same variant is provided several times (using different synonyms)
-			vrdAsyncThread.join();
-		}
-		catch (DuplicateKeyException dke)
-		{
-			LOG.info("Persisting runs using save() because of synonym variants: " + dke.getMessage());
-			Thread vrdAsyncThread = new Thread() {	// using 2 threads is faster when calling save, but slower when calling insert 
-				public void run() {
-			    	asyncList.stream().forEach(vrd -> mongoTemplate.save(vrd));
-				}
-			};
-			vrdAsyncThread.start();
-    		syncList.stream().forEach(vrd -> mongoTemplate.save(vrd));
-			vrdAsyncThread.join();
-		}
+		if (staging != null)
+			ImportWriteExecutor.runInParallel(slices.stream().map(slice -> (Runnable) () -> staging.stageRuns(slice)).collect(Collectors.toList()));
+		else
+			try {
+				ImportWriteExecutor.runInParallel(slices.stream().map(slice -> (Runnable) () -> mongoTemplate.insert(slice, VariantRunData.class)).collect(Collectors.toList()));	// this should always work but fails when a same variant is provided several times (using different synonyms)
+			}
+			catch (DuplicateKeyException dke)
+			{
+				LOG.info("Persisting runs using save() because of synonym variants: " + dke.getMessage());
+				ImportWriteExecutor.runInParallel(slices.stream().map(slice -> (Runnable) () -> slice.forEach(vrd -> mongoTemplate.save(vrd))).collect(Collectors.toList()));
+			}
 
-		vdAsyncThread.join();	
+		if (VariantSummaryStats.isEnabled())
+			VariantSummaryStats.countRuns(mongoTemplate, unsavedRuns);	// genotypes are at hand, counting them now spares re-reading runs later
+
+		ImportWriteExecutor.await(vdWrite);
 //		System.err.println("VD: " + t1 + " / VRD: " + (System.currentTimeMillis() - b4));
     }
+
+    /**
+     * Hands a chunk over to the shared ImportWriteExecutor so that it gets persisted while the next one is being parsed.
+     * Blocks while this import already has nMaxPendingChunkWrites chunks waiting, or while the module's host has no write permit left.
+     *
+     * @param sModule the module
+     * @param fDBAlreadyContainsVariants whether the database already contained variants before this import
+     * @param mongoTemplate the mongo template
+     * @param unsavedVariants the variants to persist
+     * @param unsavedRuns the runs to persist
+     * @throws Exception if a previous chunk could not be written
+     */
+    protected void persistVariantsAndGenotypesAsync(String sModule, boolean fDBAlreadyContainsVariants, MongoTemplate mongoTemplate, Collection<VariantData> unsavedVariants, Collection<VariantRunData> unsavedRuns) throws Exception
+    {
+    	checkImportLock();
+    	while (pendingChunkWrites.size() >= nMaxPendingChunkWrites)
+    		ImportWriteExecutor.await(pendingChunkWrites.poll());
+    	pendingChunkWrites.add(ImportWriteExecutor.submit(MongoTemplateManager.getModuleHost(sModule), () -> {
+			persistVariantsAndGenotypes(fDBAlreadyContainsVariants, mongoTemplate, unsavedVariants, unsavedRuns);
+			return null;
+		}));
+    }
+
+    /**
+     * Waits for all chunks handed over by persistVariantsAndGenotypesAsync to be written.
+     *
+     * @throws InterruptedException
+     */
+    protected void awaitPendingChunkWrites() throws InterruptedException
+    {
+    	while (!pendingChunkWrites.isEmpty())
+    		ImportWriteExecutor.await(pendingChunkWrites.poll());
+    }
+
+    /**
+     * Waits for chunks handed over by persistVariantsAndGenotypesAsync and not awaited yet (i.e. because the import failed or returned early), ignoring their failures.
+     * To be called before discarding staged chunks or releasing the import lock, so that no write remains running against the project once it is unlocked.
+     */
+    protected void discardPendingChunkWrites()
+    {
+    	boolean fInterrupted = false;
+    	while (!pendingChunkWrites.isEmpty()) {
+    		try {
+    			ImportWriteExecutor.await(pendingChunkWrites.peek());
+    		}
+    		catch (InterruptedException ie) {
+    			fInterrupted = true;	// keep waiting: the write would otherwise go on after the staging collections are dropped
+    			continue;
+    		}
+    		catch (Throwable t) {
+    			LOG.debug("Ignoring failure of chunk write pending when import ended", t);
+    		}
+    		pendingChunkWrites.poll();
+    	}
+    	if (fInterrupted)
+    		Thread.currentThread().interrupt();
+    }
+
+    synchronized private ImportStagingArea getStagingArea(MongoTemplate mongoTemplate)
+    {
+    	if (stagingArea == null)
+    		stagingArea = new ImportStagingArea(mongoTemplate, new ObjectId().toHexString());
+    	return stagingArea;
+    }
+
+    /**
+     * Folds chunks staged by persistVariantsAndGenotypes (if staging collections are used) into the live collections. To be called once all chunks have been written.
+     */
+    synchronized protected void mergeStagedChunks()
+    {
+    	if (stagingArea != null) {
+    		checkImportLock();
+    		stagingArea.merge();
+    		stagingArea = null;
+    	}
+    }
+
+    /**
+     * Drops chunks staged by persistVariantsAndGenotypes and not merged (i.e. because the import failed).
+     */
+    synchronized protected void discardStagedChunks()
+    {
+    	if (stagingArea != null) {
+    		try {
+    			stagingArea.drop();
+    		}
+    		catch (Exception e) {
+    			LOG.warn("Unable to drop staging collections, they will be dropped when the webapp restarts", e);
+    		}
+    		stagingArea = null;
+    	}
+    }
     
     protected void cleanupBeforeImport(MongoTemplate mongoTemplate, String sModule, GenotypingProject project, int importMode, String sRun) {
-        if (importMode == 2)
-            mongoTemplate.getDb().drop(); // drop database before importing
+    	MgdbDao.invalidateSequenceOrdinals(mongoTemplate);	// records about to be imported will lack them until MgdbDao.prepareDatabaseForSearches is called
+    	MgdbDao.invalidateIndividualCache(sModule);
+        if (importMode == 2) {
+            dropDatabase(mongoTemplate); // drop database before importing
+            MgdbDao.invalidateVcfHeaderCache(mongoTemplate, null);
+        }
         else if (project != null)
         {
+        	MgdbDao.bumpProjectDataVersion(mongoTemplate, project.getId());
+        	GenotypeBitmapIndex.removeProject(mongoTemplate, project.getId());	// rebuilt by MgdbDao.prepareDatabaseForSearches if enabled
 			if (importMode == 1 || (project.getRuns().size() == 1 && project.getRuns().get(0).equals(sRun)))
 			{	// empty project data before importing
 				DeleteResult dr = mongoTemplate.remove(new Query(Criteria.where("_id." + VcfHeaderId.FIELDNAME_PROJECT).is(project.getId())), DBVCFHeader.class);
+				MgdbDao.invalidateVcfHeaderCache(mongoTemplate, project.getId());
 				if (dr.getDeletedCount() > 0)
 					LOG.info(dr.getDeletedCount() + " records removed from vcf_header");
 				dr = mongoTemplate.remove(new Query(Criteria.where("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID).is(project.getId())), VariantRunData.class);
@@ -260,10 +471,13 @@ public class AbstractGenotypeImport {
 				if (dr.getDeletedCount() > 0)
 					LOG.info(dr.getDeletedCount() + " samples were removed while cleaning up project " + project.getId() + "'s data");
 				mongoTemplate.remove(new Query(Criteria.where("_id").is(project.getId())), GenotypingProject.class);
+				MgdbDao.invalidateCachedCounts(mongoTemplate, project.getId());
+				VariantSummaryStats.removeProject(mongoTemplate, project.getId());
 			}
 			else
 			{	// empty run data before importing
 				DeleteResult dr = mongoTemplate.remove(new Query(Criteria.where("_id." + VcfHeaderId.FIELDNAME_PROJECT).is(project.getId()).and("_id." + VcfHeaderId.FIELDNAME_RUN).is(sRun)), DBVCFHeader.class);
+				MgdbDao.invalidateVcfHeaderCache(mongoTemplate, project.getId());
                 if (dr.getDeletedCount() > 0)
                 	LOG.info(dr.getDeletedCount() + " records removed from vcf_header");
                 if (project.getRuns().contains(sRun))
@@ -279,11 +493,14 @@ public class AbstractGenotypeImport {
     				dr = mongoTemplate.remove(new Query(new Criteria().andOperator(Criteria.where(GenotypingSample.FIELDNAME_PROJECT_ID).is(project.getId()), Criteria.where(GenotypingSample.FIELDNAME_RUN).is(sRun))), GenotypingSample.class);
     				if (dr.getDeletedCount() > 0)
     					LOG.info(dr.getDeletedCount() + " samples were removed while cleaning up project " + project.getId() + "'s data");
-
+    				MgdbDao.invalidateCachedCounts(mongoTemplate, project.getId());
+    				VariantSummaryStats.removeRun(mongoTemplate, project.getId(), sRun);
                 }
             }
-			if (Helper.estimDocCount(mongoTemplate,VariantRunData.class) == 0 && m_fAllowDbDropIfNoGenotypingData && doesDatabaseSupportImportingUnknownVariants(sModule))
-                mongoTemplate.getDb().drop();	// if there is no genotyping data left and we are not working on a fixed list of variants then any other data is irrelevant
+			if (Helper.estimDocCount(mongoTemplate,VariantRunData.class) == 0 && m_fAllowDbDropIfNoGenotypingData && doesDatabaseSupportImportingUnknownVariants(sModule)) {
+                dropDatabase(mongoTemplate);	// if there is no genotyping data left and we are not working on a fixed list of variants then any other data is irrelevant
+                MgdbDao.invalidateVcfHeaderCache(mongoTemplate, null);
+			}
         }
 	}
     
@@ -294,4 +511,17 @@ public class AbstractGenotypeImport {
 	public void allowDbDropIfNoGenotypingData(boolean fAllowDbDropIfNoGenotypingData) {
 		this.m_fAllowDbDropIfNoGenotypingData = fAllowDbDropIfNoGenotypingData;
 	}
+
+	public boolean isUsingStagingCollections() {
+		return m_fUseStagingCollections;
+	}
+
+	/**
+	 * Makes imports into non-empty databases insert chunks into staging collections, merged into live ones at the end of the import (requires MongoDB 4.2+), rather than saving records one by one.
+	 *
+	 * @param fUseStagingCollections whether to use staging collections
+	 */
+	public void useStagingCollections(boolean fUseStagingCollections) {
+		this.m_fUseStagingCollections = fUseStagingCollections;
+	}
 }
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.importing.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Per-import pair of staging collections, that an import into a non-empty database may only ever insert into (unordered, without any conflict handling),
+ * and which get folded into the live variants and variantRunData collections by a single server-side $merge each once all chunks have been staged (requires MongoDB 4.2+).
+ * Staged documents keep their original ID in a separate field, so that a record staged several times (e.g. a variant provided under different synonyms) is merged only once.
+ */
+public class ImportStagingArea
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(ImportStagingArea.class);
+
+	/** Staging collections are temporary ones, so that leftovers from interrupted imports get dropped when the webapp restarts */
+	static final public String STAGING_COLL_PREFIX = MongoTemplateManager.TEMP_COLL_PREFIX + "staging_";
+
+	/** Field holding a staged document's original _id */
+	static final private String FIELDNAME_STAGED_ID = "_si";
+
+	private final MongoTemplate mongoTemplate;
+
+	private final String sVariantCollName, sRunCollName;
+
+	/**
+	 * Instantiates a new staging area.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param sImportId an ID unique to the import
+	 */
+	public ImportStagingArea(MongoTemplate mongoTemplate, String sImportId) {
+		this.mongoTemplate = mongoTemplate;
+		String sPrefix = STAGING_COLL_PREFIX + sImportId.replaceAll("[^A-Za-z0-9_-]", "_") + "_";
+		sVariantCollName = sPrefix + MongoTemplateManager.getMongoCollectionName(VariantData.class);
+		sRunCollName = sPrefix + MongoTemplateManager.getMongoCollectionName(VariantRunData.class);
+	}
+
+	/**
+	 * Stages variants.
+	 *
+	 * @param variants the variants
+	 */
+	public void stageVariants(Collection<VariantData> variants) {
+		stage(sVariantCollName, variants);
+	}
+
+	/**
+	 * Stages runs.
+	 *
+	 * @param runs the runs
+	 */
+	public void stageRuns(Collection<VariantRunData> runs) {
+		stage(sRunCollName, runs);
+	}
+
+	private void stage(String sCollName, Collection<? extends AbstractVariantData> records) {
+		if (records.isEmpty())
+			return;
+
+		List<Document> docs = new ArrayList<>(records.size());
+		for (AbstractVariantData record : records) {
+			Document doc = new Document();
+			mongoTemplate.getConverter().write(record, doc);
+			doc.put(FIELDNAME_STAGED_ID, doc.remove("_id"));
+			docs.add(doc);
+		}
+		mongoTemplate.getCollection(sCollName).insertMany(docs, new InsertManyOptions().ordered(false));
+	}
+
+	/**
+	 * Folds staged records into the live collections, then drops the staging collections.
+	 * Variants being matched keep their existing allele list, extended with the staged alleles it lacks (as addVcfDataToVariant does), and any field the staged document lacks. Runs being matched are replaced, as save() would.
+	 */
+	public void merge() {
+		try {
+			long before = System.currentTimeMillis();
+			String sAlleles = "$" + AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST;
+
+			// variants staged several times get their allele lists unioned, in the order they were staged
+			Document stagedAlleleUnion = new Document("$reduce", new Document("input", sAlleles).append("initialValue", new ArrayList<>())
+				.append("in", new Document("$concatArrays", Arrays.asList("$$value", new Document("$filter", new Document("input", new Document("$ifNull", Arrays.asList("$$this", new ArrayList<>()))).append("as", "a").append("cond", new Document("$not", Arrays.asList(new Document("$in", Arrays.asList("$$a", "$$value"))))))))));
+			Document existingAlleles = new Document("$ifNull", Arrays.asList(sAlleles, new ArrayList<>()));
+			Document alleleMerge = new Document("$concatArrays", Arrays.asList(existingAlleles, new Document("$filter", new Document("input", new Document("$ifNull", Arrays.asList("$$new." + AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST, new ArrayList<>()))).append("cond", new Document("$not", Arrays.asList(new Document("$in", Arrays.asList("$$this", existingAlleles))))))));
+			mergeStagedCollection(sVariantCollName, MongoTemplateManager.getMongoCollectionName(VariantData.class),
+				new Document(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST, new Document("$push", sAlleles)),
+				new Document(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST, stagedAlleleUnion),
+				Arrays.asList(new Document("$replaceWith", new Document("$mergeObjects", Arrays.asList("$$ROOT", "$$new", new Document(AbstractVariantData.FIELDNAME_KNOWN_ALLELE_LIST, alleleMerge))))));
+
+			mergeStagedCollection(sRunCollName, MongoTemplateManager.getMongoCollectionName(VariantRunData.class), new Document(), new Document(), "replace");
+			LOG.debug("Staged records merged into database " + mongoTemplate.getDb().getName() + " in " + (System.currentTimeMillis() - before) + "ms");
+		}
+		finally {
+			drop();
+		}
+	}
+
+	/**
+	 * Runs a $merge pipeline from a staging collection into a live one, keeping the last staged version of each record.
+	 *
+	 * @param sStagingCollName the staging collection
+	 * @param sTargetCollName the live collection
+	 * @param extraGroupFields additional accumulators for the $group stage
+	 * @param overriddenFields fields to override the last staged version's ones with
+	 * @param whenMatched the $merge stage's whenMatched option
+	 */
+	private void mergeStagedCollection(String sStagingCollName, String sTargetCollName, Document extraGroupFields, Document overriddenFields, Object whenMatched) {
+		MongoCollection<Document> stagingColl = mongoTemplate.getCollection(sStagingCollName);
+		List<Document> pipeline = new ArrayList<>();
+		pipeline.add(new Document("$sort", new Document("_id", 1)));	// ObjectIds generated client-side reflect insertion order
+		Document group = new Document("_id", "$" + FIELDNAME_STAGED_ID).append("doc", new Document("$last", "$$ROOT"));
+		group.putAll(extraGroupFields);
+		pipeline.add(new Document("$group", group));
+		Document overrides = new Document("_id", "$_id");
+		overrides.putAll(overriddenFields);
+		pipeline.add(new Document("$replaceRoot", new Document("newRoot", new Document("$mergeObjects", Arrays.asList("$doc", overrides)))));
+		pipeline.add(new Document("$unset", FIELDNAME_STAGED_ID));
+		pipeline.add(new Document("$merge", new Document("into", sTargetCollName).append("on", "_id").append("whenMatched", whenMatched).append("whenNotMatched", "insert")));
+		stagingColl.aggregate(pipeline).allowDiskUse(true).toCollection();
+	}
+
+	/**
+	 * Drops the staging collections.
+	 */
+	public void drop() {
+		mongoTemplate.getCollection(sVariantCollName).drop();
+		mongoTemplate.getCollection(sRunCollName).drop();
+	}
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.importing.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the database writes of all genotype imports on a shared pool of threads, limiting the number of chunk writes running at the same time against each MongoDB host (all imports included).
+ * Submitting a chunk blocks while the host has no write permit left, which slows parsers down to the pace the server can sustain instead of piling up work on it.
+ */
+public class ImportWriteExecutor
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(ImportWriteExecutor.class);
+
+	/** The default number of chunk writes allowed to run at the same time against a given host */
+	static final public int DEFAULT_WRITE_PERMITS_PER_HOST = 4;
+
+	/** The default number of threads a chunk's runs are inserted with */
+	static final public int DEFAULT_THREADS_PER_CHUNK_WRITE = 2;
+
+	static private volatile int nWritePermitsPerHost = DEFAULT_WRITE_PERMITS_PER_HOST;
+
+	static private volatile int nThreadsPerChunkWrite = DEFAULT_THREADS_PER_CHUNK_WRITE;
+
+	static final private AtomicInteger threadCount = new AtomicInteger();
+
+	/** Threads are reused across chunks and imports, their number being bounded by permits in practice */
+	static final private ExecutorService writerPool = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "ImportWriter-" + threadCount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Write permits, by host */
+	static final private ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+	/**
+	 * Sets the number of chunk writes allowed to run at the same time against a given host. Only applies to hosts not written to yet, so it is meant to be called at startup.
+	 *
+	 * @param nPermits the number of permits (values below 1 are treated as 1)
+	 */
+	public static void setWritePermitsPerHost(int nPermits) {
+		nWritePermitsPerHost = Math.max(1, nPermits);
+	}
+
+	/**
+	 * Sets the number of threads each chunk's runs are inserted with.
+	 *
+	 * @param nThreads the number of threads (values below 1 are treated as 1)
+	 */
+	public static void setThreadsPerChunkWrite(int nThreads) {
+		nThreadsPerChunkWrite = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Gets the number of threads each chunk's runs are inserted with.
+	 *
+	 * @return the number of threads
+	 */
+	public static int getThreadsPerChunkWrite() {
+		return nThreadsPerChunkWrite;
+	}
+
+	/**
+	 * Gets the number of chunk writes currently allowed to start against a host.
+	 *
+	 * @param sHost the host (as returned by MongoTemplateManager.getModuleHost)
+	 * @return the number of available permits
+	 */
+	public static int getAvailablePermits(String sHost) {
+		Semaphore permits = hostPermits.get(sHost == null ? "" : sHost);
+		return permits == null ? nWritePermitsPerHost : permits.availablePermits();
+	}
+
+	/**
+	 * Submits a chunk write, waiting for a permit to be available for the host it targets.
+	 *
+	 * @param sHost the host (as returned by MongoTemplateManager.getModuleHost)
+	 * @param chunkWrite the write
+	 * @return the future completing when the chunk is written
+	 * @throws InterruptedException if interrupted while waiting for a permit
+	 */
+	public static Future<Void> submit(String sHost, Callable<Void> chunkWrite) throws InterruptedException {
+		Semaphore permits = hostPermits.computeIfAbsent(sHost == null ? "" : sHost, h -> new Semaphore(nWritePermitsPerHost, true));
+		if (!permits.tryAcquire()) {
+			long before = System.currentTimeMillis();
+			permits.acquire();
+			LOG.debug("Waited " + (System.currentTimeMillis() - before) + "ms for a write permit on host " + sHost);
+		}
+
+		try {
+			return writerPool.submit(() -> {
+				try {
+					return chunkWrite.call();
+				}
+				finally {
+					permits.release();
+				}
+			});
+		}
+		catch (RejectedExecutionException ree) {
+			permits.release();
+			throw ree;
+		}
+	}
+
+	/**
+	 * Runs tasks in parallel as part of a write that already holds a permit: the first task runs in the calling thread, the others on the pool.
+	 *
+	 * @param tasks the tasks
+	 * @throws InterruptedException
+	 */
+	static void runInParallel(List<Runnable> tasks) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i=1; i<tasks.size(); i++)
+			futures.add(writerPool.submit(tasks.get(i)));
+		RuntimeException firstFailure = null;
+		try {
+			if (!tasks.isEmpty())
+				tasks.get(0).run();
+		}
+		catch (RuntimeException e) {
+			firstFailure = e;
+		}
+		for (Future<?> future : futures)
+			try {
+				await(future);
+			}
+			catch (RuntimeException e) {
+				if (firstFailure == null)
+					firstFailure = e;
+			}
+		if (firstFailure != null)
+			throw firstFailure;
+	}
+
+	/**
+	 * Runs a task on the pool, as part of a write that already holds a permit.
+	 *
+	 * @param task the task
+	 * @return the future
+	 */
+	static Future<?> fork(Runnable task) {
+		return writerPool.submit(task);
+	}
+
+	/**
+	 * Waits for a task run on the pool, rethrowing what it may have thrown.
+	 *
+	 * @param future the task's future
+	 * @throws InterruptedException
+	 */
+	static void await(Future<?> future) throws InterruptedException {
+		try {
+			future.get();
+		}
+		catch (ExecutionException ee) {
+			if (ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ee.getCause();
+			if (ee.getCause() instanceof Error)
+				throw (Error) ee.getCause();
+			throw new RuntimeException(ee.getCause());
+		}
+	}
+}
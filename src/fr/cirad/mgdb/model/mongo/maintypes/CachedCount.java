@@ -17,6 +17,8 @@
 package fr.cirad.mgdb.model.mongo.maintypes;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.springframework.data.annotation.Id;
@@ -25,7 +27,7 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
 
 /**
- * The Class CachedQuery.
+ * The Class CachedQuery. An entry either holds a query's counts for all variant chunks, or (if its chunk index is set) its count for a single chunk, so that imports only need to delete the entries of the chunks they touched.
  */
 @Document(collection = "cachedCounts")
 @TypeAlias("CC")
@@ -33,6 +35,13 @@ public class CachedCount {
 
 	public final static String FIELDNAME_CHUNK_COUNTS = "val";
 	
+	public final static String FIELDNAME_PROJECT_IDS = "pj";
+	
+	public final static String FIELDNAME_CHUNK_INDEX = "ch";
+	
+	/** Separates the query key from the chunk index in single-chunk entry IDs */
+	public final static String CHUNK_ID_SEPARATOR = "#";
+	
 	/** The entity id. */
 	@Id
 	private String id;
@@ -40,6 +49,14 @@ public class CachedCount {
 	/** Result counts for all variant chunks */
 	@Field(FIELDNAME_CHUNK_COUNTS)
 	private List<Long> chunkCounts = new ArrayList<>();
+	
+	/** IDs of the projects the counts depend on (if null, they are considered to depend on all projects) */
+	@Field(FIELDNAME_PROJECT_IDS)
+	private List<Integer> projectIds = null;
+	
+	/** Index of the variant chunk the count applies to (if null, the entry holds counts for all chunks) */
+	@Field(FIELDNAME_CHUNK_INDEX)
+	private Integer chunkIndex = null;
 
 	/**
 	 * Instantiates a new CachedQuery.
@@ -52,10 +69,58 @@ public class CachedCount {
 		this.chunkCounts = counts;
 	}
 
+	/**
+	 * Instantiates a new CachedQuery, tagged with the projects it depends on so that only imports into those projects invalidate it.
+	 *
+	 * @param queryKey the query id
+	 * @param counts the list of counts to cache (one per chunk)
+	 * @param projectIds the IDs of the projects involved in the query
+	 */
+	public CachedCount(String queryKey, List<Long> counts, Collection<Integer> projectIds) {
+		this(queryKey, counts);
+		this.projectIds = new ArrayList<>(projectIds);
+	}
+
+	/**
+	 * Instantiates a new CachedQuery holding a query's count for a single variant chunk.
+	 *
+	 * @param queryKey the query id
+	 * @param nChunkIndex the chunk index
+	 * @param count the count to cache for that chunk
+	 * @param projectIds the IDs of the projects involved in the query
+	 */
+	public CachedCount(String queryKey, int nChunkIndex, long count, Collection<Integer> projectIds) {
+		this(getChunkEntryId(queryKey, nChunkIndex), new ArrayList<>(Collections.singletonList(count)), projectIds);
+		this.chunkIndex = nChunkIndex;
+	}
+
     public CachedCount() {
     }
 
+	/**
+	 * Gets the ID of the entry holding a query's count for a given chunk.
+	 *
+	 * @param queryKey the query id
+	 * @param nChunkIndex the chunk index
+	 * @return the entry ID
+	 */
+	public static String getChunkEntryId(String queryKey, int nChunkIndex) {
+		return queryKey + CHUNK_ID_SEPARATOR + nChunkIndex;
+	}
+
 	public String getId() {
 		return id;
 	}
+
+	public List<Long> getChunkCounts() {
+		return chunkCounts;
+	}
+
+	public List<Integer> getProjectIds() {
+		return projectIds;
+	}
+
+	public Integer getChunkIndex() {
+		return chunkIndex;
+	}
 }
\ No newline at end of file
@@ -67,6 +67,21 @@ public class Individual implements Comparable<Individual>
 		this.id = id;
 	}
 
+	/**
+	 * Copies this individual, so that the copy's problems and additional info may be modified independently.
+	 *
+	 * @return the copy
+	 */
+	public Individual copy() {
+		Individual copy = new Individual(id);
+		copy.population = population;
+		if (problems != null)
+			copy.problems = new LinkedHashMap<>(problems);
+		if (additionalInfo != null)
+			copy.additionalInfo = new LinkedHashMap<>(additionalInfo);
+		return copy;
+	}
+
 	/**
 	 * Gets the id.
 	 *
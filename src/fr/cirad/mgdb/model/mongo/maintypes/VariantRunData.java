@@ -16,8 +16,8 @@
  *******************************************************************************/
 package fr.cirad.mgdb.model.mongo.maintypes;
 
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.bson.codecs.pojo.annotations.BsonProperty;
@@ -29,6 +29,7 @@ import org.springframework.data.mongodb.core.mapping.Field;
 
 import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.tools.IntKeyHashMap;
 
 /**
  * The Class VariantRunData.
@@ -164,10 +165,10 @@ public class VariantRunData extends AbstractVariantData
 	@Id
 	private VariantRunDataId id;
 
-	/** The sample genotypes. */
+	/** The sample genotypes (primitive-keyed so that decoding them allocates no boxed sample IDs). */
 	@BsonProperty(FIELDNAME_SAMPLEGENOTYPES)
 	@Field(FIELDNAME_SAMPLEGENOTYPES)
-	private HashMap<Integer, SampleGenotype> sampleGenotypes = new HashMap<Integer, SampleGenotype>();
+	private IntKeyHashMap<SampleGenotype> sampleGenotypes = new IntKeyHashMap<SampleGenotype>();
 
 	/**
 	 * Instantiates a new variant run data.
@@ -221,7 +222,7 @@ public class VariantRunData extends AbstractVariantData
 	 *
 	 * @return the sample genotypes
 	 */
-	public HashMap<Integer, SampleGenotype> getSampleGenotypes() {
+	public IntKeyHashMap<SampleGenotype> getSampleGenotypes() {
 		return sampleGenotypes;
 	}
 
@@ -230,10 +231,27 @@ public class VariantRunData extends AbstractVariantData
 	 *
 	 * @param genotypes the genotypes
 	 */
-	public void setSampleGenotypes(HashMap<Integer, SampleGenotype> genotypes) {
+	public void setSampleGenotypes(IntKeyHashMap<SampleGenotype> genotypes) {
 		this.sampleGenotypes = genotypes;
 	}
 
+	/**
+	 * Sets the sample genotypes from any map, copying them into an IntKeyHashMap unless the map already is one (kept for source compatibility with code using HashMap instances).
+	 *
+	 * @param genotypes the genotypes
+	 */
+	@SuppressWarnings("unchecked")
+	public void setSampleGenotypes(Map<Integer, SampleGenotype> genotypes) {
+		if (genotypes instanceof IntKeyHashMap) {
+			this.sampleGenotypes = (IntKeyHashMap<SampleGenotype>) genotypes;
+			return;
+		}
+
+		IntKeyHashMap<SampleGenotype> copy = new IntKeyHashMap<SampleGenotype>(genotypes.size());
+		copy.putAll(genotypes);
+		this.sampleGenotypes = copy;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#equals(java.lang.Object)
 	 */
@@ -268,7 +286,8 @@ public class VariantRunData extends AbstractVariantData
 	}
 
 	/**
-	 * Gets the alleles from genotype code.
+	 * Gets the alleles from genotype code, repairing this run's allele list if incomplete. This is a last resort costing two round trips:
+	 * allele lists are normally reconciled after imports (MgdbDao.reconcileRunAlleleLists) and completed chunk-wise when exporting (ExportManager).
 	 *
 	 * @param code the code
 	 * @param mongoTemplate the MongoTemplate to use for fixing allele list if incomplete
@@ -31,10 +31,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -46,7 +43,6 @@ import org.springframework.data.mongodb.core.mapping.Field;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
-import fr.cirad.tools.AlphaNumericComparator;
 import fr.cirad.tools.Helper;
 
 abstract public class AbstractVariantData
@@ -566,78 +562,54 @@ abstract public class AbstractVariantData
 	 * @param synonym the synonym
 	 * @return the variant context
 	 * @throws Exception the exception
+	 * @deprecated builds a new ExportPlan on each call: build one per export and use toVariantContext(Collection, boolean, ExportPlan, HashMap, FileWriter, Comparable) instead
 	 */
+	@Deprecated
 	public VariantContext toVariantContext(Collection<VariantRunData> runs, boolean exportVariantIDs, Collection<GenotypingSample> samplesToExport, Collection<String> individuals1, Collection<String> individuals2, HashMap<Integer, Object> previousPhasingIds, HashMap<String, Float> annotationFieldThresholds1, HashMap<String, Float> annotationFieldThresholds2, FileWriter warningFileWriter, Comparable synonym) throws Exception
 	{
-		ArrayList<Genotype> genotypes = new ArrayList<Genotype>();
+		return toVariantContext(runs, exportVariantIDs, new ExportPlan(samplesToExport, individuals1, individuals2, annotationFieldThresholds1, annotationFieldThresholds2), previousPhasingIds, warningFileWriter, synonym);
+	}
+	
+	/**
+	 * To variant context.
+	 *
+	 * @param runs the runs
+	 * @param exportVariantIDs the export variant ids
+	 * @param exportPlan the export plan, built once for the whole export
+	 * @param previousPhasingIds the previous phasing ids
+	 * @param warningFileWriter the warning file writer
+	 * @param synonym the synonym
+	 * @return the variant context
+	 * @throws Exception the exception
+	 */
+	public VariantContext toVariantContext(Collection<VariantRunData> runs, boolean exportVariantIDs, ExportPlan exportPlan, HashMap<Integer, Object> previousPhasingIds, FileWriter warningFileWriter, Comparable synonym) throws Exception
+	{
+		int nIndividualCount = exportPlan.getIndividualCount();
+		ArrayList<Genotype> genotypes = new ArrayList<Genotype>(nIndividualCount);
 		String sRefAllele = null;
+		if (runs != null && nIndividualCount > 0)
+			for (VariantRunData run : runs)
+				if (!run.getKnownAlleleList().isEmpty()) {
+					sRefAllele = run.getKnownAlleleList().get(0);
+					break;
+				}
 
-		Map<String, Integer> individualPositions = new LinkedHashMap<>();
-		for (String ind : samplesToExport.stream().map(gs -> gs.getIndividual()).distinct().sorted(new AlphaNumericComparator<String>()).collect(Collectors.toList()))
-			individualPositions.put(ind, individualPositions.size());
-		
-		HashMap<Integer, SampleGenotype> sampleGenotypes = new HashMap<>();
 		HashSet<VariantRunData> runsWhereDataWasFound = new HashSet<>();
-
-		// collect all genotypes from various runs for all individuals
-		HashMap<String/*genotype code*/, LinkedHashSet<Integer/*sample*/>>[] individualGenotypes = new HashMap[individualPositions.size()];
-		if (runs != null && !runs.isEmpty())
-			for (GenotypingSample sample : samplesToExport) {		
-				int nIndividualIndex = individualPositions.get(sample.getIndividual());
-				for (VariantRunData run : runs) {
-					if (sRefAllele == null && !run.getKnownAlleleList().isEmpty())
-						sRefAllele = run.getKnownAlleleList().get(0);
-	
-					SampleGenotype sampleGenotype = run.getSampleGenotypes().get(sample.getId());
-					if (sampleGenotype == null || !gtPassesVcfAnnotationFilters(sample.getIndividual(), sampleGenotype, individuals1, annotationFieldThresholds1, individuals2, annotationFieldThresholds2))
-						continue;	// run contains no data for this sample, or its annotation values are below filter thresholds
-
-					// keep track of SampleGenotype and Run so we can have access to additional info later on
-					sampleGenotypes.put(sample.getId(), sampleGenotype);
-					runsWhereDataWasFound.add(run);
-
-					if (individualGenotypes[nIndividualIndex] == null)
-						individualGenotypes[nIndividualIndex] = new HashMap<>();
-					LinkedHashSet<Integer> samplesWithGivenGenotype = individualGenotypes[nIndividualIndex].get(sampleGenotype.getCode());
-					if (samplesWithGivenGenotype == null) {
-						samplesWithGivenGenotype = new LinkedHashSet<Integer>();
-						individualGenotypes[nIndividualIndex].put(sampleGenotype.getCode(), samplesWithGivenGenotype);
-					}
-					samplesWithGivenGenotype.add(sample.getId());
-				}
-			}
-		
 		ArrayList<Allele> variantAlleles = new ArrayList<Allele>();
-		variantAlleles.add(Allele.create(sRefAllele, true));
+		variantAlleles.add(exportPlan.getAllele(sRefAllele, true));
 
 		HashMap<String, List<String>> genotypeStringCache = new HashMap<>();
-		int nIndividualIndex = -1;
-		for (String individualName : individualPositions.keySet()) {
-			nIndividualIndex++;
-			HashMap<Object, Integer> genotypeCounts = new HashMap<Object, Integer>(); // will help us to keep track of missing genotypes
-				
-			int highestGenotypeCount = 0;
-			String mostFrequentGenotype = null;
-			if (individualGenotypes[nIndividualIndex] != null)
-				for (String gtCode : individualGenotypes[nIndividualIndex].keySet()) {
-					if (gtCode == null)
-						continue; /* skip missing genotypes */
-
-					int gtCount = individualGenotypes[nIndividualIndex].get(gtCode).size();
-					if (gtCount > highestGenotypeCount) {
-						highestGenotypeCount = gtCount;
-						mostFrequentGenotype = gtCode;
-					}
-					genotypeCounts.put(gtCode, gtCount);
-				}
-
-			if (mostFrequentGenotype == null)
+		for (int nIndividualIndex = 0; nIndividualIndex < nIndividualCount; nIndividualIndex++) {
+			String individualName = exportPlan.getIndividual(nIndividualIndex);
+			
+			ExportPlan.SelectedGenotype selectedGenotype = exportPlan.selectGenotype(nIndividualIndex, runs, runsWhereDataWasFound);
+			if (selectedGenotype == null)
 				continue;	// no genotype for this individual
+			String mostFrequentGenotype = selectedGenotype.getCode();
+			Integer spId = selectedGenotype.getSampleId();
+			SampleGenotype sampleGenotype = selectedGenotype.getSampleGenotype();
 
-			Integer spId = individualGenotypes[nIndividualIndex].get(mostFrequentGenotype).iterator().next();	// any will do (although ideally we should make sure we export the best annotation values found) 
-			SampleGenotype sampleGenotype = sampleGenotypes.get(spId);
-
-			if (warningFileWriter != null && genotypeCounts.size() > 1)
+			if (warningFileWriter != null && selectedGenotype.getDistinctGenotypeCount() > 1)
 				warningFileWriter.write("- Dissimilar genotypes found for variant " + (synonym == null ? id : synonym) + ", individual " + individualName + ". Exporting most frequent: " + mostFrequentGenotype + "\n");
 			
 			Object currentPhId = sampleGenotype.getAdditionalInfo().get(GT_FIELD_PHASED_ID);
@@ -649,7 +621,7 @@ abstract public class AbstractVariantData
             	genotypeStringCache.put(gtCode, alleles);
             }
 
-			ArrayList<Allele> individualAlleles = new ArrayList<Allele>();
+			ArrayList<Allele> individualAlleles = new ArrayList<Allele>(alleles.size());
 			previousPhasingIds.put(spId, currentPhId == null ? id : currentPhId);
 			if (alleles.size() == 0)
 				continue;	/* skip this individual because there is no genotype for it */
@@ -662,7 +634,7 @@ abstract public class AbstractVariantData
 				}
 
 			for (String sAllele : alleles) {
-				Allele allele = Allele.create(sAllele.length() == 0 ? (fAllAllelesNoCall ? Allele.NO_CALL_STRING : "<DEL>") : sAllele, sRefAllele.equals(sAllele));
+				Allele allele = exportPlan.getAllele(sAllele.length() == 0 ? (fAllAllelesNoCall ? Allele.NO_CALL_STRING : "<DEL>") : sAllele, sRefAllele.equals(sAllele));
 				if (!allele.isNoCall() && !variantAlleles.contains(allele))
 					variantAlleles.add(allele);
 				individualAlleles.add(allele);
@@ -746,9 +718,8 @@ abstract public class AbstractVariantData
 			if (qual != null)
 				vcb.log10PError(qual.doubleValue() / -10.0D);
 			
-			List<String> alreadyTreatedAdditionalInfoFields = Arrays.asList(new String[] {FIELD_SOURCE, FIELD_FULLYDECODED, FIELD_FILTERS, FIELD_PHREDSCALEDQUAL});
 			for (String attrName : run.getAdditionalInfo().keySet())
-				if (!VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME.equals(attrName) && !VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE.equals(attrName) && !alreadyTreatedAdditionalInfoFields.contains(attrName))
+				if (!VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME.equals(attrName) && !VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE.equals(attrName) && !specificallyTreatedAdditionalInfoFields.contains(attrName))
 					vcb.attribute(attrName, run.getAdditionalInfo().get(attrName));
 		}
 		VariantContext vc = vcb.make();
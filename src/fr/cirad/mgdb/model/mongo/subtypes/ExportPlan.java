@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongo.subtypes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.tools.AlphaNumericComparator;
+import htsjdk.variant.variantcontext.Allele;
+
+/**
+ * Everything that depends only on export parameters (samples, groups, annotation thresholds) and may therefore be computed once per export rather than once per variant.
+ * Instances are not thread-safe: the Allele cache is meant to be used by a single writing thread.
+ */
+public class ExportPlan
+{
+	/** Individual names, sorted alphanumerically: their index is the individual's position in the export */
+	private final String[] individuals;
+
+	/** For each individual position, the IDs of the samples to export for it, in the order they were provided */
+	private final int[][] individualSampleIDs;
+
+	private final HashMap<Integer /*sample ID*/, Integer /*individual position*/> sampleIndividualPositions = new HashMap<>();
+
+	/** For each individual position, the annotation thresholds that apply to its genotypes (null if none) */
+	private final List<HashMap<String, Float>>[] individualThresholds;
+
+	private final HashMap<String, Allele> refAlleleCache = new HashMap<>(), altAlleleCache = new HashMap<>();
+
+	/**
+	 * The genotype selected for exporting an individual, among those provided by its samples in a variant's runs.
+	 */
+	static public class SelectedGenotype
+	{
+		private final String sCode;
+
+		private final int nSampleId;
+
+		private final SampleGenotype sampleGenotype;
+
+		private final int nDistinctGenotypeCount;
+
+		private SelectedGenotype(String sCode, int nSampleId, SampleGenotype sampleGenotype, int nDistinctGenotypeCount) {
+			this.sCode = sCode;
+			this.nSampleId = nSampleId;
+			this.sampleGenotype = sampleGenotype;
+			this.nDistinctGenotypeCount = nDistinctGenotypeCount;
+		}
+
+		/**
+		 * Gets the selected genotype code.
+		 *
+		 * @return the code
+		 */
+		public String getCode() {
+			return sCode;
+		}
+
+		/**
+		 * Gets the ID of a sample holding the selected genotype.
+		 *
+		 * @return the sample ID
+		 */
+		public int getSampleId() {
+			return nSampleId;
+		}
+
+		/**
+		 * Gets that sample's genotype, providing its additional info.
+		 *
+		 * @return the sample genotype
+		 */
+		public SampleGenotype getSampleGenotype() {
+			return sampleGenotype;
+		}
+
+		/**
+		 * Gets the number of distinct genotypes found for the individual (more than 1 is worth a warning).
+		 *
+		 * @return the distinct genotype count
+		 */
+		public int getDistinctGenotypeCount() {
+			return nDistinctGenotypeCount;
+		}
+	}
+
+	/**
+	 * Instantiates a new export plan.
+	 *
+	 * @param samplesToExport the samples to export
+	 * @param individuals1 individual IDs for group 1
+	 * @param individuals2 individual IDs for group 2
+	 * @param annotationFieldThresholds1 the annotation field thresholds for group 1
+	 * @param annotationFieldThresholds2 the annotation field thresholds for group 2
+	 */
+	@SuppressWarnings("unchecked")
+	public ExportPlan(Collection<GenotypingSample> samplesToExport, Collection<String> individuals1, Collection<String> individuals2, HashMap<String, Float> annotationFieldThresholds1, HashMap<String, Float> annotationFieldThresholds2) {
+		LinkedHashMap<String, List<Integer>> samplesByIndividual = new LinkedHashMap<>();
+		samplesToExport.stream().map(gs -> gs.getIndividual()).distinct().sorted(new AlphaNumericComparator<String>()).forEach(ind -> samplesByIndividual.put(ind, new ArrayList<>()));
+		for (GenotypingSample sample : samplesToExport)
+			samplesByIndividual.get(sample.getIndividual()).add(sample.getId());
+
+		individuals = samplesByIndividual.keySet().toArray(new String[samplesByIndividual.size()]);
+		individualSampleIDs = new int[individuals.length][];
+		individualThresholds = new List[individuals.length];
+		for (int i=0; i<individuals.length; i++) {
+			List<Integer> sampleIDs = samplesByIndividual.get(individuals[i]);
+			individualSampleIDs[i] = new int[sampleIDs.size()];
+			for (int j=0; j<individualSampleIDs[i].length; j++) {
+				individualSampleIDs[i][j] = sampleIDs.get(j);
+				sampleIndividualPositions.put(sampleIDs.get(j), i);
+			}
+
+			List<HashMap<String, Float>> thresholdsToCheck = new ArrayList<>();
+			if (annotationFieldThresholds1 != null && !annotationFieldThresholds1.isEmpty() && individuals1 != null && individuals1.contains(individuals[i]))
+				thresholdsToCheck.add(annotationFieldThresholds1);
+			if (annotationFieldThresholds2 != null && !annotationFieldThresholds2.isEmpty() && individuals2 != null && individuals2.contains(individuals[i]))
+				thresholdsToCheck.add(annotationFieldThresholds2);
+			individualThresholds[i] = thresholdsToCheck.isEmpty() ? null : thresholdsToCheck;
+		}
+	}
+
+	/**
+	 * Gets the number of exported individuals.
+	 *
+	 * @return the individual count
+	 */
+	public int getIndividualCount() {
+		return individuals.length;
+	}
+
+	/**
+	 * Gets the individual at a given position.
+	 *
+	 * @param nIndividualIndex the individual position
+	 * @return the individual name
+	 */
+	public String getIndividual(int nIndividualIndex) {
+		return individuals[nIndividualIndex];
+	}
+
+	/**
+	 * Gets the exported individuals, sorted alphanumerically.
+	 *
+	 * @return the individuals
+	 */
+	public List<String> getIndividuals() {
+		return Collections.unmodifiableList(Arrays.asList(individuals));
+	}
+
+	/**
+	 * Gets the IDs of the samples to export for an individual.
+	 *
+	 * @param nIndividualIndex the individual position
+	 * @return the sample IDs (must not be modified)
+	 */
+	public int[] getIndividualSampleIDs(int nIndividualIndex) {
+		return individualSampleIDs[nIndividualIndex];
+	}
+
+	/**
+	 * Gets the position of the individual a sample belongs to.
+	 *
+	 * @param nSampleId the sample ID
+	 * @return the individual position, or null if the sample is not part of the export
+	 */
+	public Integer getIndividualIndex(int nSampleId) {
+		return sampleIndividualPositions.get(nSampleId);
+	}
+
+	/**
+	 * Tells whether a genotype passes the annotation filters that apply to its individual (equivalent to AbstractVariantData.gtPassesVcfAnnotationFilters).
+	 *
+	 * @param nIndividualIndex the individual position
+	 * @param sampleGenotype the sample genotype
+	 * @return true, if the genotype shall be exported
+	 */
+	public boolean gtPassesVcfAnnotationFilters(int nIndividualIndex, SampleGenotype sampleGenotype) {
+		List<HashMap<String, Float>> thresholdsToCheck = individualThresholds[nIndividualIndex];
+		if (thresholdsToCheck == null)
+			return true;
+
+		for (HashMap<String, Float> someThresholdsToCheck : thresholdsToCheck)
+			for (Map.Entry<String, Float> threshold : someThresholdsToCheck.entrySet()) {
+				Object annotationValue = sampleGenotype.getAdditionalInfo().get(threshold.getKey());
+				if (annotationValue instanceof Integer && (Integer) annotationValue < threshold.getValue())
+					return false;
+			}
+		return true;
+	}
+
+	/**
+	 * Selects the genotype to export for an individual, i.e. the most frequent one among those its samples have in a variant's runs (missing genotypes and those not passing annotation filters being ignored).
+	 * Used by both AbstractVariantData.toVariantContext and VcfLineWriter, so that they export the same genotypes.
+	 *
+	 * @param nIndividualIndex the individual position
+	 * @param runs the variant's runs (may be null)
+	 * @param runsWhereDataWasFound collects the runs holding data that passes annotation filters for the individual (even if its genotype is missing)
+	 * @return the selected genotype, or null if none was found
+	 */
+	public SelectedGenotype selectGenotype(int nIndividualIndex, Collection<VariantRunData> runs, Set<VariantRunData> runsWhereDataWasFound) {
+		if (runs == null)
+			return null;
+
+		int nDistinctGenotypeCount = 0;
+		String mostFrequentGenotype = null;
+		Integer spId = null;
+		SampleGenotype sampleGenotype = null;
+		HashMap<String/*genotype code*/, LinkedHashSet<Integer/*sample*/>> individualGenotypes = null;	// only needed when several genotypes may have to be compared
+		HashMap<Integer, SampleGenotype> sampleGenotypes = null;
+		for (int sampleId : individualSampleIDs[nIndividualIndex])
+			for (VariantRunData run : runs) {
+				SampleGenotype sg = run.getSampleGenotypes().get(sampleId);
+				if (sg == null || !gtPassesVcfAnnotationFilters(nIndividualIndex, sg))
+					continue;	// run contains no data for this sample, or its annotation values are below filter thresholds
+
+				runsWhereDataWasFound.add(run);
+				if (sg.getCode() == null)
+					continue; /* skip missing genotypes */
+
+				if (mostFrequentGenotype == null && individualGenotypes == null) {	// first genotype found for this individual
+					mostFrequentGenotype = sg.getCode();
+					nDistinctGenotypeCount = 1;
+					spId = sampleId;
+					sampleGenotype = sg;
+					continue;
+				}
+
+				if (individualGenotypes == null) {	// switch to the general case
+					individualGenotypes = new HashMap<>();
+					individualGenotypes.put(mostFrequentGenotype, new LinkedHashSet<>(Arrays.asList(spId)));
+					sampleGenotypes = new HashMap<>();
+					sampleGenotypes.put(spId, sampleGenotype);
+				}
+				sampleGenotypes.put(sampleId, sg);	// keep track of SampleGenotype so we can have access to additional info later on
+				LinkedHashSet<Integer> samplesWithGivenGenotype = individualGenotypes.get(sg.getCode());
+				if (samplesWithGivenGenotype == null) {
+					samplesWithGivenGenotype = new LinkedHashSet<Integer>();
+					individualGenotypes.put(sg.getCode(), samplesWithGivenGenotype);
+				}
+				samplesWithGivenGenotype.add(sampleId);
+			}
+
+		if (individualGenotypes != null) {
+			int highestGenotypeCount = 0;
+			nDistinctGenotypeCount = individualGenotypes.size();
+			for (String gtCode : individualGenotypes.keySet()) {
+				int gtCount = individualGenotypes.get(gtCode).size();
+				if (gtCount > highestGenotypeCount) {
+					highestGenotypeCount = gtCount;
+					mostFrequentGenotype = gtCode;
+				}
+			}
+			spId = individualGenotypes.get(mostFrequentGenotype).iterator().next();	// any will do (although ideally we should make sure we export the best annotation values found)
+			sampleGenotype = sampleGenotypes.get(spId);
+		}
+
+		return mostFrequentGenotype == null ? null : new SelectedGenotype(mostFrequentGenotype, spId, sampleGenotype, nDistinctGenotypeCount);
+	}
+
+	/**
+	 * Gets an Allele object, creating it only the first time a given allele is requested.
+	 *
+	 * @param sBases the allele bases (or symbolic / no-call string)
+	 * @param fIsRef whether or not it is the reference allele
+	 * @return the allele
+	 */
+	public Allele getAllele(String sBases, boolean fIsRef) {
+		HashMap<String, Allele> cache = fIsRef ? refAlleleCache : altAlleleCache;
+		Allele allele = cache.get(sBases);
+		if (allele == null) {
+			allele = Allele.create(sBases, fIsRef);
+			cache.put(sBases, allele);
+		}
+		return allele;
+	}
+}
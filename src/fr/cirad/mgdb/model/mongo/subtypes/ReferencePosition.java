@@ -33,6 +33,9 @@ public class ReferencePosition
 	
 	/** The Constant FIELDNAME_END_SITE. */
 	public final static String FIELDNAME_END_SITE = "es";
+	
+	/** The Constant FIELDNAME_SEQUENCE_ORDINAL. */
+	public final static String FIELDNAME_SEQUENCE_ORDINAL = "co";
 
 	/** The sequence. */
 	@BsonProperty(FIELDNAME_SEQUENCE)
@@ -49,6 +52,11 @@ public class ReferencePosition
 	@Field(FIELDNAME_END_SITE)
 	private Long endSite = null;
 	
+	/** The sequence's ordinal, as maintained by MgdbDao.updateSequenceOrdinals: comparing ordinals is equivalent to comparing sequence names with an AlphaNumericComparator. */
+	@BsonProperty(FIELDNAME_SEQUENCE_ORDINAL)
+	@Field(FIELDNAME_SEQUENCE_ORDINAL)
+	private Integer sequenceOrdinal = null;
+	
 	/**
 	 * Instantiates a new reference position.
 	 */
@@ -134,6 +142,24 @@ public class ReferencePosition
 	public void setEndSite(Long endSite) {
 		this.endSite = endSite;
 	}
+
+	/**
+	 * Gets the sequence ordinal.
+	 *
+	 * @return the sequence ordinal (null if not assigned yet)
+	 */
+	public Integer getSequenceOrdinal() {
+		return sequenceOrdinal;
+	}
+
+	/**
+	 * Sets the sequence ordinal.
+	 *
+	 * @param sequenceOrdinal the new sequence ordinal
+	 */
+	public void setSequenceOrdinal(Integer sequenceOrdinal) {
+		this.sequenceOrdinal = sequenceOrdinal;
+	}
 	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#equals(java.lang.Object)
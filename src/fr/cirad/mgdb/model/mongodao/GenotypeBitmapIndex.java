@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongodao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.tools.mongo.IndexBuildCoordinator;
+
+/**
+ * Optional index holding, for each project and variant, bitmaps of the samples that were called, found heterozygous and found homozygous for a non-reference allele.
+ * Missing data, zygosity and allele frequency filters may then be evaluated with bitwise operations and bit counts instead of scanning runs and parsing genotype codes.
+ * Bit i stands for the sample whose ID is the document's offset + i. Bitmaps are rebuilt for a whole project after each import into it (see MgdbDao.prepareDatabaseForSearches) and only used once complete (see isAvailable).
+ */
+public class GenotypeBitmapIndex
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(GenotypeBitmapIndex.class);
+
+	/** The Constant COLLECTION_NAME. */
+	static final public String COLLECTION_NAME = "genotypeBitmaps";
+
+	/** The Constant FIELDNAME_OFFSET. */
+	static final public String FIELDNAME_OFFSET = "o";
+
+	/** The Constant FIELDNAME_CALLED. */
+	static final public String FIELDNAME_CALLED = "c";
+
+	/** The Constant FIELDNAME_HETEROZYGOUS. */
+	static final public String FIELDNAME_HETEROZYGOUS = "he";
+
+	/** The Constant FIELDNAME_HOMOZYGOUS_ALT. */
+	static final public String FIELDNAME_HOMOZYGOUS_ALT = "ha";
+
+	static final private int INSERT_BATCH_SIZE = 1000;
+
+	static private volatile boolean fEnabled = false;
+
+	/**
+	 * A variant's bitmaps for a project.
+	 */
+	static public class VariantBitmaps
+	{
+		private final String variantId;
+
+		private final int nOffset;
+
+		private final BitSet called, heterozygous, homozygousAlt;
+
+		private VariantBitmaps(String variantId, int nOffset, BitSet called, BitSet heterozygous, BitSet homozygousAlt) {
+			this.variantId = variantId;
+			this.nOffset = nOffset;
+			this.called = called;
+			this.heterozygous = heterozygous;
+			this.homozygousAlt = homozygousAlt;
+		}
+
+		public String getVariantId() {
+			return variantId;
+		}
+
+		public int getOffset() {
+			return nOffset;
+		}
+
+		private static int countIntersection(BitSet bits, BitSet sampleMask) {
+			BitSet intersection = (BitSet) bits.clone();
+			intersection.and(sampleMask);
+			return intersection.cardinality();
+		}
+
+		/**
+		 * Counts samples with a genotype.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the count
+		 */
+		public int countCalled(BitSet sampleMask) {
+			return countIntersection(called, sampleMask);
+		}
+
+		/**
+		 * Counts samples without a genotype.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the count
+		 */
+		public int countMissing(BitSet sampleMask) {
+			return sampleMask.cardinality() - countCalled(sampleMask);
+		}
+
+		/**
+		 * Counts heterozygous samples.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the count
+		 */
+		public int countHeterozygous(BitSet sampleMask) {
+			return countIntersection(heterozygous, sampleMask);
+		}
+
+		/**
+		 * Counts samples homozygous for a non-reference allele.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the count
+		 */
+		public int countHomozygousAlt(BitSet sampleMask) {
+			return countIntersection(homozygousAlt, sampleMask);
+		}
+
+		/**
+		 * Counts samples homozygous for the reference allele.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the count
+		 */
+		public int countHomozygousRef(BitSet sampleMask) {
+			return countCalled(sampleMask) - countHeterozygous(sampleMask) - countHomozygousAlt(sampleMask);
+		}
+
+		/**
+		 * Gets the proportion of samples without a genotype.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the missing data ratio (0 if no sample is considered)
+		 */
+		public float getMissingDataRatio(BitSet sampleMask) {
+			int nSampleCount = sampleMask.cardinality();
+			return nSampleCount == 0 ? 0 : (float) countMissing(sampleMask) / nSampleCount;
+		}
+
+		/**
+		 * Gets the frequency of non-reference alleles, assuming diploid genotypes.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the frequency, or null if no sample is called
+		 */
+		public Float getAltAlleleFrequency(BitSet sampleMask) {
+			int nCalled = countCalled(sampleMask);
+			return nCalled == 0 ? null : (countHeterozygous(sampleMask) + 2f * countHomozygousAlt(sampleMask)) / (2 * nCalled);
+		}
+
+		/**
+		 * Gets the minor allele frequency, assuming diploid bi-allelic genotypes.
+		 *
+		 * @param sampleMask the samples to consider, as built by getSampleMask for this bitmap's offset
+		 * @return the frequency, or null if no sample is called
+		 */
+		public Float getMinorAlleleFrequency(BitSet sampleMask) {
+			Float altFreq = getAltAlleleFrequency(sampleMask);
+			return altFreq == null ? null : Math.min(altFreq, 1 - altFreq);
+		}
+	}
+
+	/**
+	 * Sets whether bitmaps are to be built after imports.
+	 *
+	 * @param fEnable whether to enable the index
+	 */
+	public static void setEnabled(boolean fEnable) {
+		fEnabled = fEnable;
+	}
+
+	/**
+	 * Checks whether bitmaps are to be built after imports.
+	 *
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled() {
+		return fEnabled;
+	}
+
+	/**
+	 * Checks whether a project's bitmaps are complete and up to date.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 * @return true, if they may be used
+	 */
+	public static boolean isAvailable(MongoTemplate mongoTemplate, int nProjectId) {
+		return mongoTemplate.getCollection(COLLECTION_NAME).countDocuments(getCompletionFlag(nProjectId)) > 0;
+	}
+
+	/** The document flagging a project's bitmaps as complete */
+	private static Document getCompletionFlag(int nProjectId) {
+		return new Document("_id", new Document(VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId));
+	}
+
+	/**
+	 * Removes a project's bitmaps, to be called before its data is modified.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 */
+	public static void removeProject(MongoTemplate mongoTemplate, int nProjectId) {
+		MongoCollection<Document> coll = mongoTemplate.getCollection(COLLECTION_NAME);
+		coll.deleteOne(getCompletionFlag(nProjectId));	// first, so that incomplete bitmaps are never used
+		coll.deleteMany(new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId));
+	}
+
+	/**
+	 * Builds a project's bitmaps from its runs, replacing any existing ones.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 * @return the number of variants indexed
+	 */
+	public static int buildForProject(MongoTemplate mongoTemplate, int nProjectId) {
+		long before = System.currentTimeMillis();
+		removeProject(mongoTemplate, nProjectId);
+
+		Document firstSample = mongoTemplate.getCollection(mongoTemplate.getCollectionName(GenotypingSample.class)).find(new Document(GenotypingSample.FIELDNAME_PROJECT_ID, nProjectId)).projection(new Document("_id", 1)).sort(new Document("_id", 1)).first();
+		if (firstSample == null)
+			return 0;
+		int nOffset = ((Number) firstSample.get("_id")).intValue();
+
+		MongoCollection<Document> coll = mongoTemplate.getCollection(COLLECTION_NAME);
+		String variantIdPath = "_id." + VariantRunDataId.FIELDNAME_VARIANT_ID;
+		IndexBuildCoordinator.submit(coll, new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, 1).append(variantIdPath, 1), null);	// _id sub-fields can't be queried via the _id index
+		List<Document> pipeline = Arrays.asList(
+			new Document("$match", new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId)),
+			new Document("$sort", new Document(variantIdPath, 1)),
+			new Document("$project", new Document(VariantRunData.FIELDNAME_SAMPLEGENOTYPES, 1))
+		);
+		List<Document> toInsert = new ArrayList<>(INSERT_BATCH_SIZE);
+		String currentVariantId = null;
+		BitSet called = new BitSet(), heterozygous = new BitSet(), homozygousAlt = new BitSet();
+		int nVariantCount = 0;
+		try (MongoCursor<Document> cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)).aggregate(pipeline).allowDiskUse(true).batchSize(INSERT_BATCH_SIZE).iterator()) {
+			while (cursor.hasNext()) {
+				Document run = cursor.next();
+				String variantId = ((Document) run.get("_id")).get(VariantRunDataId.FIELDNAME_VARIANT_ID).toString();
+				if (currentVariantId != null && !variantId.equals(currentVariantId)) {	// a variant's runs are consecutive: the previous one is complete
+					toInsert.add(toDocument(nProjectId, currentVariantId, nOffset, called, heterozygous, homozygousAlt));
+					nVariantCount++;
+					called = new BitSet();
+					heterozygous = new BitSet();
+					homozygousAlt = new BitSet();
+					if (toInsert.size() >= INSERT_BATCH_SIZE) {
+						coll.insertMany(toInsert);
+						toInsert.clear();
+					}
+				}
+				currentVariantId = variantId;
+
+				Document sampleGenotypes = (Document) run.get(VariantRunData.FIELDNAME_SAMPLEGENOTYPES);
+				if (sampleGenotypes != null)
+					for (String sampleId : sampleGenotypes.keySet()) {
+						String[] alleles = GenotypeCodes.splitAlleles(((Document) sampleGenotypes.get(sampleId)).getString(SampleGenotype.FIELDNAME_GENOTYPECODE));
+						if (alleles == null)
+							continue;
+
+						int nBit = Integer.parseInt(sampleId) - nOffset;
+						if (nBit < 0)
+							continue;	// sample not found in the project, we can't index it
+						called.set(nBit);
+						int nZygosity = GenotypeCodes.getZygosity(alleles);
+						if (nZygosity == GenotypeCodes.HETEROZYGOUS)
+							heterozygous.set(nBit);
+						else if (nZygosity == GenotypeCodes.HOMOZYGOUS_ALT)
+							homozygousAlt.set(nBit);
+					}
+			}
+		}
+		if (currentVariantId != null) {
+			toInsert.add(toDocument(nProjectId, currentVariantId, nOffset, called, heterozygous, homozygousAlt));
+			nVariantCount++;
+		}
+		if (!toInsert.isEmpty())
+			coll.insertMany(toInsert);
+
+		coll.insertOne(getCompletionFlag(nProjectId));
+		LOG.info("Genotype bitmaps built for " + nVariantCount + " variants of project " + nProjectId + " in " + (System.currentTimeMillis() - before) + "ms");
+		return nVariantCount;
+	}
+
+	private static Document toDocument(int nProjectId, String variantId, int nOffset, BitSet called, BitSet heterozygous, BitSet homozygousAlt) {
+		return new Document("_id", new Document(VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId).append(VariantRunDataId.FIELDNAME_VARIANT_ID, variantId))
+				.append(FIELDNAME_OFFSET, nOffset)
+				.append(FIELDNAME_CALLED, called.toByteArray())
+				.append(FIELDNAME_HETEROZYGOUS, heterozygous.toByteArray())
+				.append(FIELDNAME_HOMOZYGOUS_ALT, homozygousAlt.toByteArray());
+	}
+
+	private static BitSet readBitSet(Object value) {
+		if (value == null)
+			return new BitSet();
+		return BitSet.valueOf(value instanceof Binary ? ((Binary) value).getData() : (byte[]) value);
+	}
+
+	/**
+	 * Builds a mask of the given samples, to be combined with bitmaps using a given offset.
+	 *
+	 * @param samples the samples
+	 * @param nOffset the offset
+	 * @return the sample mask
+	 */
+	public static BitSet getSampleMask(Collection<GenotypingSample> samples, int nOffset) {
+		BitSet mask = new BitSet();
+		for (GenotypingSample sample : samples)
+			if (sample.getId() >= nOffset)
+				mask.set(sample.getId() - nOffset);
+		return mask;
+	}
+
+	/**
+	 * Finds the variants of a project whose bitmaps match a filter, e.g. bitmaps -> bitmaps.getMissingDataRatio(masks.get(bitmaps.getOffset())) <= .1f
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID (its bitmaps must be available)
+	 * @param variantIdsToRestrictTo the variant IDs to consider (null for all)
+	 * @param filter the filter
+	 * @return the matching variant IDs, sorted
+	 */
+	public static List<String> findVariants(MongoTemplate mongoTemplate, int nProjectId, Collection<String> variantIdsToRestrictTo, Predicate<VariantBitmaps> filter) {
+		Document query = new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId).append("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, variantIdsToRestrictTo == null ? new Document("$exists", true) : new Document("$in", variantIdsToRestrictTo));
+		List<String> result = new ArrayList<>();
+		try (MongoCursor<Document> cursor = mongoTemplate.getCollection(COLLECTION_NAME).find(query).sort(new Document("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, 1)).batchSize(INSERT_BATCH_SIZE).iterator()) {
+			while (cursor.hasNext()) {
+				Document doc = cursor.next();
+				String variantId = ((Document) doc.get("_id")).getString(VariantRunDataId.FIELDNAME_VARIANT_ID);
+				if (filter.test(new VariantBitmaps(variantId, doc.getInteger(FIELDNAME_OFFSET), readBitSet(doc.get(FIELDNAME_CALLED)), readBitSet(doc.get(FIELDNAME_HETEROZYGOUS)), readBitSet(doc.get(FIELDNAME_HOMOZYGOUS_ALT)))))
+					result.add(variantId);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the variants of a project where the missing data ratio among the given samples does not exceed a threshold, and the minor allele frequency lies within bounds.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID (its bitmaps must be available)
+	 * @param samples the samples to consider
+	 * @param maxMissingDataRatio the maximum missing data ratio (between 0 and 1)
+	 * @param minMaf the minimum minor allele frequency (between 0 and .5)
+	 * @param maxMaf the maximum minor allele frequency (between 0 and .5)
+	 * @return the matching variant IDs, sorted
+	 */
+	public static List<String> findVariants(MongoTemplate mongoTemplate, int nProjectId, Collection<GenotypingSample> samples, float maxMissingDataRatio, float minMaf, float maxMaf) {
+		HashMap<Integer, BitSet> masksByOffset = new HashMap<>();
+		return findVariants(mongoTemplate, nProjectId, null, bitmaps -> {
+			BitSet mask = masksByOffset.computeIfAbsent(bitmaps.getOffset(), offset -> getSampleMask(samples, offset));
+			if (bitmaps.getMissingDataRatio(mask) > maxMissingDataRatio)
+				return false;
+			if (minMaf <= 0 && maxMaf >= .5f)
+				return true;
+			Float maf = bitmaps.getMinorAlleleFrequency(mask);
+			return maf != null && maf >= minMaf && maf <= maxMaf;
+		});
+	}
+}
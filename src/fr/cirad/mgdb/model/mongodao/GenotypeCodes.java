@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongodao;
+
+/**
+ * Parses genotype codes (e.g. 0/1 or 1|1) the same way for all statistics derived from them (see VariantSummaryStats and GenotypeBitmapIndex).
+ */
+final class GenotypeCodes
+{
+	static final int HOMOZYGOUS_REF = 0;
+
+	static final int HETEROZYGOUS = 1;
+
+	static final int HOMOZYGOUS_ALT = 2;
+
+	private GenotypeCodes() {
+	}
+
+	/**
+	 * Splits a genotype code into allele indexes.
+	 *
+	 * @param gtCode the genotype code
+	 * @return the alleles, or null if the code is missing
+	 */
+	static String[] splitAlleles(String gtCode) {
+		return gtCode == null || gtCode.isEmpty() ? null : gtCode.split("[/|]");
+	}
+
+	/**
+	 * Tells whether an allele index stands for the reference allele.
+	 *
+	 * @param allele the allele index
+	 * @return true, if it does
+	 */
+	static boolean isReference(String allele) {
+		return "0".equals(allele);
+	}
+
+	/**
+	 * Gets the zygosity of a called genotype.
+	 *
+	 * @param alleles the alleles, as returned by splitAlleles
+	 * @return HOMOZYGOUS_REF, HETEROZYGOUS or HOMOZYGOUS_ALT
+	 */
+	static int getZygosity(String[] alleles) {
+		for (int i=1; i<alleles.length; i++)
+			if (!alleles[i].equals(alleles[0]))
+				return HETEROZYGOUS;
+		return isReference(alleles[0]) ? HOMOZYGOUS_REF : HOMOZYGOUS_ALT;
+	}
+}
\ No newline at end of file
@@ -20,15 +20,31 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.bson.BsonDocument;
 import org.bson.Document;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -36,10 +52,17 @@ import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 
 import fr.cirad.mgdb.exporting.IExportHandler;
@@ -53,6 +76,8 @@ import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.tools.AlphaNumericComparator;
+import fr.cirad.tools.mongo.IndexBuildCoordinator;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 import htsjdk.variant.vcf.VCFConstants;
 import htsjdk.variant.vcf.VCFFormatHeaderLine;
@@ -74,14 +99,162 @@ public class MgdbDao
 	/** The Constant FIELD_NAME_CACHED_COUNT_VALUE. */
 	static final public String FIELD_NAME_CACHED_COUNT_VALUE = "val";
 	
+	/** The Constant COLLECTION_NAME_PROJECT_DATA_VERSIONS. */
+	static final public String COLLECTION_NAME_PROJECT_DATA_VERSIONS = "projectDataVersions";
+	
+	/** The Constant FIELD_NAME_PROJECT_DATA_VERSION. */
+	static final public String FIELD_NAME_PROJECT_DATA_VERSION = "v";
+	
+	/** Number of variants compared with their runs at once when reconciling allele lists */
+	static final private int RECONCILIATION_CHUNK_SIZE = 10000;
+	
+	/** Collection holding one document per project imported into since its runs' allele lists were last reconciled */
+	static final public String COLLECTION_NAME_STALE_ALLELE_LISTS = "staleAlleleLists";
+	
+	/** The Constant COLLECTION_NAME_SEQUENCE_ORDINALS. */
+	static final public String COLLECTION_NAME_SEQUENCE_ORDINALS = "sequenceOrdinals";
+	
+	/** The Constant FIELD_NAME_SEQUENCE_ORDINAL. */
+	static final public String FIELD_NAME_SEQUENCE_ORDINAL = "o";
+	
+	/** ID of the document flagging sequence ordinals as complete (numeric so that it may not clash with a sequence name) */
+	static final private int SEQUENCE_ORDINALS_COMPLETE_FLAG_ID = 0;
+	
+	/** Gap left between consecutive sequence ordinals when numbering them */
+	static final private int SEQUENCE_ORDINAL_SPACING = 1024;
+	
+	/** Maximum number of sequences whose ordinals are set by a single pipeline update (each one being a $switch branch evaluated against every matched record) */
+	static final private int MAX_SEQUENCES_PER_ORDINAL_UPDATE = 1000;
+	
+	/** Parsed VCF headers by database and project */
+	static final private ConcurrentHashMap<String, ProjectVcfHeaders> vcfHeaderCache = new ConcurrentHashMap<>();
+	
+	/** Incremented before each VCF header cache invalidation, so that headers loaded meanwhile do not get cached */
+	static final private AtomicLong vcfHeaderCacheGeneration = new AtomicLong();
+	
 	/**
-	 * Prepare database for searches.
+	 * A project's parsed VCF headers and the annotation fields they define, immutable once loaded.
+	 */
+	static private class ProjectVcfHeaders
+	{
+		private final List<DBVCFHeader> headers;
+
+		private final SortedSet<String> annotationFields, searchableAnnotationFields;
+
+		private ProjectVcfHeaders(MongoTemplate mongoTemplate, int projId) {
+			List<DBVCFHeader> headerList = new ArrayList<>();
+			TreeSet<String> fields = new TreeSet<>(), searchableFields = new TreeSet<>();
+
+	        // we can't use Spring queries here (leads to "Failed to instantiate htsjdk.variant.vcf.VCFInfoHeaderLine using constructor NO_CONSTRUCTOR with arguments")
+			MongoCollection<org.bson.Document> vcfHeaderColl = mongoTemplate.getCollection(MongoTemplateManager.getMongoCollectionName(DBVCFHeader.class));
+			Document vcfHeaderQuery = new Document("_id." + VcfHeaderId.FIELDNAME_PROJECT, projId);
+			try (MongoCursor<Document> headerCursor = vcfHeaderColl.find(vcfHeaderQuery).iterator()) {
+				while (headerCursor.hasNext())
+				{
+					DBVCFHeader vcfHeader = DBVCFHeader.fromDocument(headerCursor.next());
+					headerList.add(vcfHeader);
+		        	for (String key : vcfHeader.getmFormatMetaData().keySet()) {
+		        		VCFFormatHeaderLine vcfFormatHeaderLine = vcfHeader.getmFormatMetaData().get(key);
+		        		fields.add(key);
+		        		if (!key.equals(VCFConstants.GENOTYPE_KEY) && vcfFormatHeaderLine.getType().equals(VCFHeaderLineType.Integer) && vcfFormatHeaderLine.getCountType() == VCFHeaderLineCount.INTEGER && vcfFormatHeaderLine.getCount() == 1)
+		        			searchableFields.add(key);
+		        	}
+				}
+			}
+			headers = Collections.unmodifiableList(headerList);
+			annotationFields = Collections.unmodifiableSortedSet(fields);
+			searchableAnnotationFields = Collections.unmodifiableSortedSet(searchableFields);
+		}
+	}
+	
+	/** Maximum number of individuals cached per module */
+	static final private int INDIVIDUAL_CACHE_MAX_SIZE = 50000;
+	
+	/** Time after which a cached individual is fetched again, in case it was modified without invalidating the cache (e.g. by another application) */
+	static final private long INDIVIDUAL_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+	
+	/** Individual caches by module */
+	static final private ConcurrentHashMap<String, IndividualCache> individualCaches = new ConcurrentHashMap<>();
+	
+	/**
+	 * Size-bounded, least recently used first, cache of individuals whose entries expire after INDIVIDUAL_CACHE_TTL_MILLIS.
+	 */
+	static private class IndividualCache
+	{
+		private final LinkedHashMap<String, Individual> individuals = new LinkedHashMap<String, Individual>(16, .75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Individual> eldest) {
+				if (size() <= INDIVIDUAL_CACHE_MAX_SIZE)
+					return false;
+				loadTimes.remove(eldest.getKey());
+				return true;
+			}
+		};
+
+		private final HashMap<String, Long> loadTimes = new HashMap<>();
+
+		synchronized private Individual get(String individualId) {
+			Long loadTime = loadTimes.get(individualId);
+			if (loadTime == null)
+				return null;
+			if (System.currentTimeMillis() - loadTime > INDIVIDUAL_CACHE_TTL_MILLIS) {
+				individuals.remove(individualId);
+				loadTimes.remove(individualId);
+				return null;
+			}
+			return individuals.get(individualId);
+		}
+
+		synchronized private void put(Individual ind) {
+			loadTimes.put(ind.getId(), System.currentTimeMillis());
+			individuals.put(ind.getId(), ind);
+		}
+	}
+	
+	/** Collection holding database-wide settings, one document per setting */
+	static final public String COLLECTION_NAME_SETTINGS = "settings";
+	
+	/** ID of the setting document telling whether variant tagging aims at chunks holding similar numbers of runs rather than of variants */
+	static final private String SETTING_WEIGHT_VARIANT_TAGGING_BY_RUN_DATA = "weightVariantTaggingByRunData";
+	
+	/** The Constant FIELD_NAME_SETTING_VALUE. */
+	static final private String FIELD_NAME_SETTING_VALUE = "val";
+	
+	/** Number of threads used for querying variants and each project's runs concurrently */
+	static final private int SAMPLE_GENOTYPE_FETCHER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+	
+	/** Threads used for querying variants and each project's runs concurrently. Queries submitted while the queue is full run in the submitting thread, which throttles callers instead of letting pending queries pile up */
+	static final private ExecutorService sampleGenotypeFetchExecutor = new ThreadPoolExecutor(SAMPLE_GENOTYPE_FETCHER_COUNT, SAMPLE_GENOTYPE_FETCHER_COUNT, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(SAMPLE_GENOTYPE_FETCHER_COUNT * 4), r -> {
+		Thread t = new Thread(r, "SampleGenotypeFetcher");
+		t.setDaemon(true);
+		return t;
+	}, new ThreadPoolExecutor.CallerRunsPolicy());
+	
+	/** Order sequence ordinals follow (ties, if any, are broken so that distinct sequences never share an ordinal) */
+	static final private Comparator<String> sequenceComparator = new AlphaNumericComparator<String>().thenComparing(Comparator.naturalOrder());
+	
+	/**
+	 * Prepare database for searches, emptying the whole count cache.
 	 *
 	 * @param mongoTemplate the mongo template
 	 * @return the list
 	 * @throws Exception 
 	 */
 	public static List<String> prepareDatabaseForSearches(MongoTemplate mongoTemplate) throws Exception
+	{
+		return prepareDatabaseForSearches(mongoTemplate, null, null);
+	}
+	
+	/**
+	 * Prepare database for searches after data was imported into a given project / run, restricting post-import maintenance to the imported data where possible.
+	 * Unless the variant chunk layout changed, only the cached counts depending on that project and covering chunks that hold imported data get deleted.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nImportedProjectId the ID of the project data was imported into (null if unknown, which empties the whole count cache)
+	 * @param sImportedRun the run data was imported into (null if data may have been imported into several runs)
+	 * @return the list
+	 * @throws Exception 
+	 */
+	public static List<String> prepareDatabaseForSearches(MongoTemplate mongoTemplate, Integer nImportedProjectId, String sImportedRun) throws Exception
 	{
 		// cleanup unused sample that eventually got persisted during a failed import
 		Collection<Integer> validProjIDs = (Collection<Integer>) mongoTemplate.getCollection(MongoTemplateManager.getMongoCollectionName(GenotypingProject.class)).distinct("_id", Integer.class).into(new ArrayList<>());
@@ -89,81 +262,71 @@ public class MgdbDao
 		if (dr.getDeletedCount() > 0)
 			LOG.info(dr.getDeletedCount() + " unused samples were removed");
 
-		// empty count cache
-		mongoTemplate.dropCollection(mongoTemplate.getCollectionName(CachedCount.class));
-		
 		MongoCollection<Document> variantColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class));
 		MongoCollection<Document> runColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class));
 
-		// create indexes
-		LOG.debug("Creating index on field " + VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_ILLUMINA + " of collection " + variantColl.getNamespace());
-		variantColl.createIndex(new BasicDBObject(VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_ILLUMINA, 1));
-		LOG.debug("Creating index on field " + VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_INTERNAL + " of collection " + variantColl.getNamespace());
-		variantColl.createIndex(new BasicDBObject(VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_ILLUMINA, 1));
-		LOG.debug("Creating index on field " + VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_NCBI + " of collection " + variantColl.getNamespace());
-		variantColl.createIndex(new BasicDBObject(VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_ILLUMINA, 1));
-		LOG.debug("Creating index on field " + VariantData.FIELDNAME_TYPE + " of collection " + variantColl.getNamespace());
-		try {
-			variantColl.createIndex(new BasicDBObject(VariantData.FIELDNAME_TYPE, 1));
-		}
-		catch (MongoCommandException mce) {
-			if (!mce.getMessage().contains("already exists with a different name"))
-				throw mce;	// otherwise we have nothing to do because it already exists anyway
-		}
+		// create indexes in parallel, only waiting for the one needed below (other failures just get logged by IndexBuildCoordinator)
+		IndexBuildCoordinator.submit(variantColl, new BasicDBObject(VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_ILLUMINA, 1), null);
+		IndexBuildCoordinator.submit(variantColl, new BasicDBObject(VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_INTERNAL, 1), null);
+		IndexBuildCoordinator.submit(variantColl, new BasicDBObject(VariantData.FIELDNAME_SYNONYMS + "." + VariantData.FIELDNAME_SYNONYM_TYPE_ID_NCBI, 1), null);
+		IndexBuildCoordinator.submit(variantColl, new BasicDBObject(VariantData.FIELDNAME_TYPE, 1), null);
 
-		ensurePositionIndexes(mongoTemplate, Arrays.asList(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)), mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class))));
+		ensurePositionIndexes(mongoTemplate, Arrays.asList(variantColl, runColl));
 
-		LOG.debug("Creating index on field " + VariantRunData.SECTION_ADDITIONAL_INFO + "." + VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE + " of collection " + runColl.getNamespace());
-		runColl.createIndex(new BasicDBObject(VariantRunData.SECTION_ADDITIONAL_INFO + "." + VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE, 1));
-		LOG.debug("Creating index on field " + VariantRunData.SECTION_ADDITIONAL_INFO + "." + VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME + " of collection " + runColl.getNamespace());
-		runColl.createIndex(new BasicDBObject(VariantRunData.SECTION_ADDITIONAL_INFO + "." + VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME, 1));
-		LOG.debug("Creating index on field _id." + VariantRunDataId.FIELDNAME_VARIANT_ID + " of collection " + runColl.getNamespace());
-		runColl.createIndex(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, 1));
-		LOG.debug("Creating index on field _id." + VariantRunDataId.FIELDNAME_PROJECT_ID + " of collection " + runColl.getNamespace());
-		runColl.createIndex(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, 1));
+		IndexBuildCoordinator.submit(runColl, new BasicDBObject(VariantRunData.SECTION_ADDITIONAL_INFO + "." + VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_GENE, 1), null);
+		IndexBuildCoordinator.submit(runColl, new BasicDBObject(VariantRunData.SECTION_ADDITIONAL_INFO + "." + VariantRunData.FIELDNAME_ADDITIONAL_INFO_EFFECT_NAME, 1), null);
+		CompletableFuture<Void> runVariantIdIndexBuild = IndexBuildCoordinator.submit(runColl, new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, 1), null);
+		IndexBuildCoordinator.submit(runColl, new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, 1), null);
+		runVariantIdIndexBuild.get();	// allele list reconciliation and run-weighted tagging go through it
 //		LOG.debug("Creating index on fields _id." + VariantRunDataId.FIELDNAME_VARIANT_ID + ", _id." + VariantRunDataId.FIELDNAME_PROJECT_ID + " of collection " + runColl.getName());
 //		BasicDBObject runCollIndexKeys = new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, 1);
 //		runCollIndexKeys.put("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, 1);
 //		runColl.createIndex(runCollIndexKeys);
 
+		reconcileRunAlleleLists(mongoTemplate, nImportedProjectId, sImportedRun);
+		updateSequenceOrdinals(mongoTemplate);
+
 		// tag variant IDs across database
-		List<String> result = new ArrayList<>();
-		mongoTemplate.dropCollection(COLLECTION_NAME_TAGGED_VARIANT_IDS);
+		List<String> previouslyTaggedVariants = new ArrayList<>();
+		for (Document taggedVariant : mongoTemplate.getCollection(COLLECTION_NAME_TAGGED_VARIANT_IDS).find().sort(new Document("_id", 1)))
+			previouslyTaggedVariants.add(taggedVariant.get("_id").toString());
 		long totalVariantCount = mongoTemplate.count(new Query(), VariantData.class);
 		long totalIndividualCount = mongoTemplate.count(new Query(), Individual.class);
 		long maxGenotypeCount = totalVariantCount*totalIndividualCount;
 		long numberOfTaggedVariants = Math.min(totalVariantCount / 2, maxGenotypeCount > 200000000 ? 500 : (maxGenotypeCount > 100000000 ? 300 : (maxGenotypeCount > 50000000 ? 100 : (maxGenotypeCount > 20000000 ? 50 : (maxGenotypeCount > 5000000 ? 40 : 25)))));
-		int nChunkSize = (int) Math.max(1, (int) totalVariantCount / Math.max(1, numberOfTaggedVariants - 1));
-		LOG.debug("Number of variants between 2 tagged ones: " + nChunkSize);
+		long before = System.currentTimeMillis();
+		List<String> result = isWeightVariantTaggingByRunData(mongoTemplate) ? tagVariantsByRunCount(mongoTemplate, numberOfTaggedVariants) : tagVariantsByVariantCount(mongoTemplate, totalVariantCount, numberOfTaggedVariants);
+		LOG.debug(result.size() + " variants tagged in " + (System.currentTimeMillis() - before) + "ms");
 		
-		MongoCollection<Document> collection = mongoTemplate.getCollection(MgdbDao.COLLECTION_NAME_TAGGED_VARIANT_IDS);
-		collection.drop();
-		String cursor = null;
-		ArrayList<Document> taggedVariants = new ArrayList<>();
-		for (int nChunkNumber=0; nChunkNumber<(float) totalVariantCount / nChunkSize; nChunkNumber++)
-		{
-			long before = System.currentTimeMillis();
-			Query q = new Query();
-			q.fields().include("_id");
-			q.limit(nChunkSize);
-			q.with(Sort.by(Arrays.asList(new Sort.Order(Sort.Direction.ASC, "_id"))));
-			if (cursor != null)
-				q.addCriteria(Criteria.where("_id").gt(cursor));
-			List<VariantData> chunk = mongoTemplate.find(q, VariantData.class);
-			try
-			{
-				cursor = chunk.get(chunk.size() - 1).getId();
-			}
-			catch (ArrayIndexOutOfBoundsException aioobe)
-			{
-				if (aioobe.getMessage().equals("-1"))
-					throw new Exception("Database is mixing String and ObjectID types!");
-			}
-			taggedVariants.add(new Document("_id", cursor));
-			result.add(cursor.toString());
-			LOG.debug("Variant " + cursor + " tagged as position " + nChunkNumber + " (" + (System.currentTimeMillis() - before) + "ms)");
+		// invalidate count cache before swapping new tagged variants in, so that counts cached for previous chunks never get read against new ones
+		if (nImportedProjectId == null || !result.equals(previouslyTaggedVariants))
+			mongoTemplate.dropCollection(mongoTemplate.getCollectionName(CachedCount.class));	// chunks are not the same anymore
+		else
+			invalidateCachedCountChunks(mongoTemplate, nImportedProjectId, sImportedRun, result);
+		
+		// swap tagged variants in atomically, so that readers never see a partial list
+		if (result.isEmpty())
+			mongoTemplate.dropCollection(COLLECTION_NAME_TAGGED_VARIANT_IDS);
+		else {
+			MongoCollection<Document> tempColl = mongoTemplate.getCollection(COLLECTION_NAME_TAGGED_VARIANT_IDS + "_" + System.currentTimeMillis() + "_" + Thread.currentThread().getId());
+			List<Document> taggedVariants = new ArrayList<>();
+			for (String variantId : result)
+				taggedVariants.add(new Document("_id", variantId));
+			tempColl.insertMany(taggedVariants);
+			tempColl.renameCollection(new MongoNamespace(mongoTemplate.getDb().getName(), COLLECTION_NAME_TAGGED_VARIANT_IDS), new RenameCollectionOptions().dropTarget(true));
+		}
+		
+		SequencePositionIndex.markStale(mongoTemplate);
+		for (Map.Entry<String, MongoTemplate> moduleTemplate : MongoTemplateManager.getTemplateMap().entrySet())
+			if (moduleTemplate.getValue() == mongoTemplate)
+				invalidateIndividualCache(moduleTemplate.getKey());	// individuals may have been cached while the import was creating / updating them
+		
+		for (Integer projId : nImportedProjectId != null ? Arrays.asList(nImportedProjectId) : validProjIDs) {
+			if (VariantSummaryStats.isEnabled())
+				VariantSummaryStats.updateProjectStats(mongoTemplate, projId);
+			if (GenotypeBitmapIndex.isEnabled())
+				GenotypeBitmapIndex.buildForProject(mongoTemplate, projId);
 		}
-		collection.insertMany(taggedVariants);
 		
 /*	This is how it is internally handled when sharding the data:
  		var splitKeys = db.runCommand({splitVector: "mgdb_Musa_acuminata_v2_private.variantRunData", keyPattern: {"_id":1}, maxChunkSizeBytes: 40250000}).splitKeys;
@@ -174,24 +337,314 @@ public class MgdbDao
 		return result;
 	}
 	
+    /**
+     * Sets whether a database's variants should be tagged so that chunks hold similar numbers of VariantRunData records rather than similar numbers of variants, which evens out the cost of per-chunk queries when runs cover variants unevenly.
+     * The setting is stored in the database itself, so that all webapp instances share it and it survives restarts. Takes effect next time prepareDatabaseForSearches is run on that database.
+     *
+     * @param mongoTemplate the mongo template
+     * @param fWeightByRunData whether to weight variant tagging by run data
+     */
+    public static void setWeightVariantTaggingByRunData(MongoTemplate mongoTemplate, boolean fWeightByRunData) {
+		mongoTemplate.getCollection(COLLECTION_NAME_SETTINGS).updateOne(new Document("_id", SETTING_WEIGHT_VARIANT_TAGGING_BY_RUN_DATA), new Document("$set", new Document(FIELD_NAME_SETTING_VALUE, fWeightByRunData)), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Tells whether a database's variants are tagged so that chunks hold similar numbers of VariantRunData records (see setWeightVariantTaggingByRunData).
+     *
+     * @param mongoTemplate the mongo template
+     * @return true, if variant tagging is weighted by run data
+     */
+    public static boolean isWeightVariantTaggingByRunData(MongoTemplate mongoTemplate) {
+		return mongoTemplate.getCollection(COLLECTION_NAME_SETTINGS).countDocuments(new Document("_id", SETTING_WEIGHT_VARIANT_TAGGING_BY_RUN_DATA).append(FIELD_NAME_SETTING_VALUE, true)) > 0;
+    }
+
+    /**
+     * Finds the cached counts that depend on a project (those not tagged with any project are considered to depend on all of them).
+     *
+     * @param nProjectId the project ID
+     * @return the query
+     */
+    private static Document getCachedCountsDependingOnProjectQuery(int nProjectId) {
+		return new Document("$or", Arrays.asList(new Document(CachedCount.FIELDNAME_PROJECT_IDS, nProjectId), new Document(CachedCount.FIELDNAME_PROJECT_IDS, new Document("$exists", false))));
+    }
+
+    /**
+     * Deletes cached counts depending on a project, to be called when some of its data is removed.
+     *
+     * @param mongoTemplate the mongo template
+     * @param nProjectId the project ID
+     */
+    public static void invalidateCachedCounts(MongoTemplate mongoTemplate, int nProjectId) {
+		DeleteResult dr = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CachedCount.class)).deleteMany(getCachedCountsDependingOnProjectQuery(nProjectId));
+		if (dr.getDeletedCount() > 0)
+			LOG.debug(dr.getDeletedCount() + " cached counts invalidated for project " + nProjectId);
+    }
+
+    /**
+     * Deletes, among cached counts depending on a project, those covering chunks that hold data for that project (and run): single-chunk entries for those chunks, and entries holding counts for all chunks.
+     * Chunk i holds variants with IDs in ]taggedVariants[i-1], taggedVariants[i]], the last one those above the last tagged ID.
+     *
+     * @param mongoTemplate the mongo template
+     * @param nProjectId the project ID
+     * @param sRun the run (null to consider all the project's runs)
+     * @param taggedVariants the tagged variant IDs, sorted
+     */
+    private static void invalidateCachedCountChunks(MongoTemplate mongoTemplate, int nProjectId, String sRun, List<String> taggedVariants) {
+		MongoCollection<Document> cacheColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CachedCount.class));
+		Document dependentCountsQuery = getCachedCountsDependingOnProjectQuery(nProjectId);
+		if (cacheColl.countDocuments(dependentCountsQuery) == 0)
+			return;
+
+		// $bucket boundaries are inclusive lower bounds whereas chunks are defined by inclusive upper bounds: appending \0 to an ID gives the smallest string sorting after it 
+		List<String> boundaries = new ArrayList<>();
+		boundaries.add("");
+		for (String taggedVariant : taggedVariants)
+			boundaries.add(taggedVariant + "\0");
+		Document runMatch = new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId);
+		if (sRun != null)
+			runMatch.append("_id." + VariantRunDataId.FIELDNAME_RUNNAME, sRun);
+		List<Document> pipeline = Arrays.asList(new Document("$match", runMatch), new Document("$bucket", new Document("groupBy", "$_id." + VariantRunDataId.FIELDNAME_VARIANT_ID).append("boundaries", boundaries).append("default", taggedVariants.size()).append("output", new Document())));
+
+		List<Integer> affectedChunks = new ArrayList<>();
+		for (Document bucket : mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)).aggregate(pipeline).allowDiskUse(true)) {
+			Object bucketId = bucket.get("_id");
+			affectedChunks.add(bucketId instanceof String ? boundaries.indexOf(bucketId) : ((Number) bucketId).intValue());
+		}
+
+		if (affectedChunks.size() > taggedVariants.size())
+			invalidateCachedCounts(mongoTemplate, nProjectId);	// all chunks are affected
+		else if (!affectedChunks.isEmpty()) {
+			Document chunkQuery = new Document("$or", Arrays.asList(new Document(CachedCount.FIELDNAME_CHUNK_INDEX, new Document("$exists", false)), new Document(CachedCount.FIELDNAME_CHUNK_INDEX, new Document("$in", affectedChunks))));
+			DeleteResult dr = cacheColl.deleteMany(new Document("$and", Arrays.asList(dependentCountsQuery, chunkQuery)));
+			LOG.debug(dr.getDeletedCount() + " cached counts covering " + affectedChunks.size() + " chunk(s) invalidated for project " + nProjectId);
+		}
+    }
+
+    /**
+     * Gets a query's counts cached one chunk at a time.
+     *
+     * @param mongoTemplate the mongo template
+     * @param queryKey the query id
+     * @param nChunkCount the number of variant chunks
+     * @return the counts, indexed by chunk, null for chunks with no cached count (never computed or invalidated by an import)
+     */
+    public static Long[] getCachedChunkCounts(MongoTemplate mongoTemplate, String queryKey, int nChunkCount) {
+		Long[] result = new Long[nChunkCount];
+		List<String> entryIds = new ArrayList<>(nChunkCount);
+		for (int i=0; i<nChunkCount; i++)
+			entryIds.add(CachedCount.getChunkEntryId(queryKey, i));
+		for (CachedCount cc : mongoTemplate.find(new Query(Criteria.where("_id").in(entryIds)), CachedCount.class)) {
+			Integer nChunkIndex = cc.getChunkIndex();
+			if (nChunkIndex != null && nChunkIndex < nChunkCount && !cc.getChunkCounts().isEmpty())
+				result[nChunkIndex] = cc.getChunkCounts().get(0);
+		}
+		return result;
+    }
+
+    /**
+     * Tags variants at regular intervals in a single scan of the variants' _id index.
+     *
+     * @param mongoTemplate the mongo template
+     * @param totalVariantCount the number of variants
+     * @param numberOfTaggedVariants the wanted number of tagged variants
+     * @return the tagged variant IDs, sorted
+     * @throws Exception if a variant ID is not a String
+     */
+    private static List<String> tagVariantsByVariantCount(MongoTemplate mongoTemplate, long totalVariantCount, long numberOfTaggedVariants) throws Exception {
+		int nChunkSize = (int) Math.max(1, (int) totalVariantCount / Math.max(1, numberOfTaggedVariants - 1));
+		LOG.debug("Number of variants between 2 tagged ones: " + nChunkSize);
+
+		List<String> result = new ArrayList<>();
+		String sLastId = null;
+		long nVariantIndex = 0;
+		try (MongoCursor<Document> cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find().projection(new Document("_id", 1)).sort(new Document("_id", 1)).hint(new Document("_id", 1)).batchSize(10000).iterator()) {
+			while (cursor.hasNext()) {
+				Object id = cursor.next().get("_id");
+				if (!(id instanceof String))
+					throw new Exception("Database is mixing String and ObjectID types!");
+				sLastId = (String) id;
+				if (++nVariantIndex % nChunkSize == 0)
+					result.add(sLastId);
+			}
+		}
+		if (sLastId != null && (result.isEmpty() || !sLastId.equals(result.get(result.size() - 1))))
+			result.add(sLastId);	// last (partial) chunk
+		return result;
+    }
+
+    /**
+     * Tags variants so that chunks hold similar numbers of VariantRunData records, in a single scan of the runs' variant ID index.
+     *
+     * @param mongoTemplate the mongo template
+     * @param numberOfTaggedVariants the wanted number of tagged variants
+     * @return the tagged variant IDs, sorted
+     */
+    private static List<String> tagVariantsByRunCount(MongoTemplate mongoTemplate, long numberOfTaggedVariants) {
+		MongoCollection<Document> runColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class));
+		long nRunsPerChunk = Math.max(1, runColl.estimatedDocumentCount() / Math.max(1, numberOfTaggedVariants - 1));
+		LOG.debug("Number of variantRunData records between 2 tagged variants: " + nRunsPerChunk);
+
+		String variantIdField = "_id." + VariantRunDataId.FIELDNAME_VARIANT_ID;
+		List<String> result = new ArrayList<>();
+		String sCurrentId = null;
+		long nRunCount = 0, nNextThreshold = nRunsPerChunk;
+		try (MongoCursor<Document> cursor = runColl.find().projection(new Document(variantIdField, 1)).sort(new Document(variantIdField, 1)).hint(new Document(variantIdField, 1)).batchSize(10000).iterator()) {
+			while (cursor.hasNext()) {
+				String sVariantId = ((Document) cursor.next().get("_id")).get(VariantRunDataId.FIELDNAME_VARIANT_ID).toString();
+				if (sCurrentId != null && !sVariantId.equals(sCurrentId) && nRunCount >= nNextThreshold) {
+					result.add(sCurrentId);	// never split a variant's runs across chunks
+					nNextThreshold = nRunCount + nRunsPerChunk;
+				}
+				sCurrentId = sVariantId;
+				nRunCount++;
+			}
+		}
+		if (sCurrentId != null)
+			result.add(sCurrentId);	// last (partial) chunk
+		return result;
+    }
+
+    /**
+     * Copies each variant's known allele list into its runs holding a shorter one, across the whole database.
+     *
+     * @param mongoTemplate the mongo template
+     * @return the number of runs that were fixed
+     */
+    public static int reconcileRunAlleleLists(MongoTemplate mongoTemplate) {
+		return reconcileRunAlleleLists(mongoTemplate, null, null);
+    }
+
+    /**
+     * Copies each variant's known allele list into its runs holding a shorter one. This happens when an import adds alleles to variants that already had runs in other projects / runs.
+     * Works by comparing chunks of variants with their runs, and fixing them via bulk updates, so that exports do not need to repair runs one by one.
+     * When an imported project is specified, only variants it holds runs for are considered, since others cannot have gained alleles.
+     *
+     * @param mongoTemplate the mongo template
+     * @param nImportedProjectId the ID of the project data was imported into (null to consider all variants)
+     * @param sImportedRun the run data was imported into (null to consider all the project's runs)
+     * @return the number of runs that were fixed
+     */
+    public static int reconcileRunAlleleLists(MongoTemplate mongoTemplate, Integer nImportedProjectId, String sImportedRun) {
+		int nRunCount = 0;
+		for (Document project : mongoTemplate.getCollection(mongoTemplate.getCollectionName(GenotypingProject.class)).find().projection(new Document(GenotypingProject.FIELDNAME_RUNS, 1))) {
+			List<?> runs = (List<?>) project.get(GenotypingProject.FIELDNAME_RUNS);
+			nRunCount += runs == null ? 0 : runs.size();
+		}
+		if (nRunCount <= 1) {
+			clearStaleAlleleListFlags(mongoTemplate, nImportedProjectId);
+			return 0;	// a single run always holds the same allele list as its variants
+		}
+
+		long before = System.currentTimeMillis();
+		MongoCollection<Document> varColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)), runColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class));
+		HashMap<Object, List<?>> variantAlleleLists = new HashMap<>();
+		int nFixedRunCount = 0;
+		Document multiAllelicQuery = new Document(VariantData.FIELDNAME_KNOWN_ALLELE_LIST + ".1", new Document("$exists", true));	// runs can't be missing anything otherwise
+		if (nImportedProjectId == null) {
+			try (MongoCursor<Document> varCursor = varColl.find(multiAllelicQuery).projection(new Document(VariantData.FIELDNAME_KNOWN_ALLELE_LIST, 1)).batchSize(RECONCILIATION_CHUNK_SIZE).iterator()) {
+				while (varCursor.hasNext()) {
+					Document variant = varCursor.next();
+					variantAlleleLists.put(variant.get("_id"), (List<?>) variant.get(VariantData.FIELDNAME_KNOWN_ALLELE_LIST));
+					if (variantAlleleLists.size() >= RECONCILIATION_CHUNK_SIZE || !varCursor.hasNext()) {
+						nFixedRunCount += completeShorterRunAlleleLists(runColl, variantAlleleLists);
+						variantAlleleLists.clear();
+					}
+				}
+			}
+		}
+		else {
+			Document runMatch = new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nImportedProjectId);
+			if (sImportedRun != null)
+				runMatch.append("_id." + VariantRunDataId.FIELDNAME_RUNNAME, sImportedRun);
+			HashSet<Object> importedVariantIds = new HashSet<>();
+			try (MongoCursor<Document> runCursor = runColl.find(runMatch).projection(new Document("_id", 1)).batchSize(RECONCILIATION_CHUNK_SIZE).iterator()) {
+				while (runCursor.hasNext()) {
+					importedVariantIds.add(((Document) runCursor.next().get("_id")).get(VariantRunDataId.FIELDNAME_VARIANT_ID));
+					if (importedVariantIds.size() >= RECONCILIATION_CHUNK_SIZE || !runCursor.hasNext()) {
+						for (Document variant : varColl.find(new Document(multiAllelicQuery).append("_id", new Document("$in", importedVariantIds))).projection(new Document(VariantData.FIELDNAME_KNOWN_ALLELE_LIST, 1)))
+							variantAlleleLists.put(variant.get("_id"), (List<?>) variant.get(VariantData.FIELDNAME_KNOWN_ALLELE_LIST));
+						nFixedRunCount += completeShorterRunAlleleLists(runColl, variantAlleleLists);
+						variantAlleleLists.clear();
+						importedVariantIds.clear();
+					}
+				}
+			}
+		}
+		if (nFixedRunCount > 0)
+			LOG.info("Allele lists were completed for " + nFixedRunCount + " runs in " + (System.currentTimeMillis() - before) + "ms");
+		clearStaleAlleleListFlags(mongoTemplate, nImportedProjectId);
+		return nFixedRunCount;
+    }
+
+    /**
+     * Flags a project as being imported into, which may add alleles to variants other projects' runs refer to: those runs' allele lists are considered stale until reconcileRunAlleleLists is run for that project.
+     *
+     * @param mongoTemplate the mongo template
+     * @param nProjectId the project ID
+     */
+    public static void markAlleleListsStale(MongoTemplate mongoTemplate, int nProjectId) {
+		mongoTemplate.getCollection(COLLECTION_NAME_STALE_ALLELE_LISTS).replaceOne(new Document("_id", nProjectId), new Document("_id", nProjectId), new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * Tells whether some runs may hold a shorter allele list than their variant's, i.e. whether any project was imported into since allele lists were last reconciled for it.
+     *
+     * @param mongoTemplate the mongo template
+     * @return true, if allele lists need to be completed when reading runs
+     */
+    public static boolean haveStaleAlleleLists(MongoTemplate mongoTemplate) {
+		return mongoTemplate.getCollection(COLLECTION_NAME_STALE_ALLELE_LISTS).countDocuments() > 0;
+    }
+
+    /**
+     * Removes stale allele list flags once reconcileRunAlleleLists is done.
+     *
+     * @param mongoTemplate the mongo template
+     * @param nProjectId the project ID (null to clear all projects' flags)
+     */
+    private static void clearStaleAlleleListFlags(MongoTemplate mongoTemplate, Integer nProjectId) {
+		mongoTemplate.getCollection(COLLECTION_NAME_STALE_ALLELE_LISTS).deleteMany(nProjectId == null ? new Document() : new Document("_id", nProjectId));
+    }
+
+    /**
+     * Copies variants' known allele lists into their runs holding a shorter one, via a single bulk update.
+     *
+     * @param runColl the run collection
+     * @param variantAlleleLists the allele lists, by variant ID
+     * @return the number of runs that were fixed
+     */
+    private static int completeShorterRunAlleleLists(MongoCollection<Document> runColl, Map<Object, List<?>> variantAlleleLists) {
+		if (variantAlleleLists.isEmpty())
+			return 0;
+
+		List<UpdateOneModel<Document>> updates = new ArrayList<>();
+		for (Document run : runColl.find(new Document("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, new Document("$in", variantAlleleLists.keySet()))).projection(new Document(VariantRunData.FIELDNAME_KNOWN_ALLELE_LIST, 1))) {
+			List<?> runAlleles = (List<?>) run.get(VariantRunData.FIELDNAME_KNOWN_ALLELE_LIST), variantAlleles = variantAlleleLists.get(((Document) run.get("_id")).get(VariantRunDataId.FIELDNAME_VARIANT_ID));
+			if (variantAlleles != null && (runAlleles == null || runAlleles.size() < variantAlleles.size()))
+				updates.add(new UpdateOneModel<>(new Document("_id", run.get("_id")), new Document("$set", new Document(VariantRunData.FIELDNAME_KNOWN_ALLELE_LIST, variantAlleles))));
+		}
+		return updates.isEmpty() ? 0 : (int) runColl.bulkWrite(updates, new BulkWriteOptions().ordered(false)).getModifiedCount();
+    }
+
     /**
      * Ensures position indexes are correct in passed collections. Supports variants, variantRunData and temporary collections
-     * Removes incorrect indexes if necessary
+     * Removes incorrect indexes if necessary. Indexes are built in the background through IndexBuildCoordinator, which may be used to wait for them
      *
      * @param mongoTemplate the mongoTemplate
      * @param varColls variant collections to ensure indexes on
-     * @return the number of indexes that were created
+     * @return the number of indexes that were submitted for creation
      */
     public static int ensurePositionIndexes(MongoTemplate mongoTemplate, Collection<MongoCollection<Document>> varColls) {
 		int nResult = 0;
 		String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
 		BasicDBObject coumpoundIndexKeys = new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(rpPath + ReferencePosition.FIELDNAME_START_SITE, 1), ssIndexKeys = new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_START_SITE, 1);
+		BasicDBObject ordinalIndexKeys = getSequenceOrdinalIndexKeys(), sequenceIndexKeys = getSequenceIndexKeys();
 
 		for (MongoCollection<Document> coll : varColls) {
 			if (coll.estimatedDocumentCount() == 0)
 				continue;	// database seems empty: indexes will be created after imports (faster this way) 
 
-			boolean fFoundCoumpoundIndex = false, fFoundCorrectCoumpoundIndex = false, fFoundStartSiteIndex = false, fIsTmpColl = coll.getNamespace().getCollectionName().startsWith(MongoTemplateManager.TEMP_COLL_PREFIX);
+			boolean fFoundCoumpoundIndex = false, fFoundCorrectCoumpoundIndex = false, fFoundStartSiteIndex = false, fFoundOrdinalIndex = false, fFoundSequenceIndex = false;
 			MongoCursor<Document> indexCursor = coll.listIndexes().cursor();
 			while (indexCursor.hasNext()) {
 				Document doc = (Document) indexCursor.next();
@@ -200,6 +653,8 @@ public class MgdbDao
 				if (keyIndex.size() == 1) {
 					if ((rpPath + ReferencePosition.FIELDNAME_START_SITE).equals(keyIndex.iterator().next()))
 						fFoundStartSiteIndex = true;
+					else if ((rpPath + ReferencePosition.FIELDNAME_SEQUENCE).equals(keyIndex.iterator().next()) && doc.get("collation") == null)
+						fFoundSequenceIndex = true;
 				}
 				else if (keyIndex.size() == 2) {	// compound index
 					String[] compoundIndexItems = keyIndex.toArray(new String[2]);
@@ -208,40 +663,190 @@ public class MgdbDao
 						Document collation = (Document) doc.get("collation");
 						fFoundCorrectCoumpoundIndex = collation != null && "en_US".equals(collation.get("locale")) && Boolean.TRUE.equals(collation.get("numericOrdering"));
 					}
+					else if (compoundIndexItems[0].equals(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL) && compoundIndexItems[1].equals(rpPath + ReferencePosition.FIELDNAME_START_SITE))
+						fFoundOrdinalIndex = true;
 				}
 			}
-			if (!fFoundStartSiteIndex) {					
-				Thread ssIndexCreationThread = new Thread() {
-					public void run() {
-						LOG.log(fIsTmpColl ? Level.DEBUG : Level.INFO, "Creating index " + ssIndexKeys + " on collection " + coll.getNamespace());
-						coll.createIndex(ssIndexKeys);
-					}
-				};
-				ssIndexCreationThread.start();
+			if (!fFoundStartSiteIndex) {
+				IndexBuildCoordinator.submit(coll, ssIndexKeys, null);
 				nResult++;
 			}
 			
 			if (!fFoundCoumpoundIndex || (fFoundCoumpoundIndex && !fFoundCorrectCoumpoundIndex)) {
-				final MongoCollection<Document> collToDropCompoundIndexOn = fFoundCoumpoundIndex ? coll : null;
-				Thread ssIndexCreationThread = new Thread() {
-					public void run() {
-						if (collToDropCompoundIndexOn != null) {
-							LOG.log(fIsTmpColl ? Level.DEBUG : Level.INFO, "Dropping wrong index " + coumpoundIndexKeys + " on collection " + collToDropCompoundIndexOn.getNamespace());
-							collToDropCompoundIndexOn.dropIndex(coumpoundIndexKeys);
-						}
-							
-						LOG.log(fIsTmpColl ? Level.DEBUG : Level.INFO, "Creating index " + coumpoundIndexKeys + " on collection " + coll.getNamespace());
-						coll.createIndex(coumpoundIndexKeys, new IndexOptions().collation(IExportHandler.collationObj));
-					}
-				};
-				ssIndexCreationThread.start();
+				IndexBuildCoordinator.submit(coll, coumpoundIndexKeys, new IndexOptions().collation(IExportHandler.collationObj), fFoundCoumpoundIndex);
+				nResult++;
+			}
+			
+			if (!fFoundOrdinalIndex) {	// binary-comparable, thus needs no collation
+				IndexBuildCoordinator.submit(coll, ordinalIndexKeys, null);
+				nResult++;
+			}
 
+			if (!fFoundSequenceIndex) {	// without collation, for sequence ordinals to be set by exact sequence name
+				IndexBuildCoordinator.submit(coll, sequenceIndexKeys, null);
 				nResult++;
-				
 			}
 		}
 		return nResult;
     }
+
+    private static BasicDBObject getSequenceOrdinalIndexKeys() {
+		String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
+		return new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, 1).append(rpPath + ReferencePosition.FIELDNAME_START_SITE, 1);
+    }
+
+    private static BasicDBObject getSequenceIndexKeys() {
+		return new BasicDBObject(VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1);
+    }
+
+    /**
+     * Waits for the sequence and sequence ordinal indexes submitted by ensurePositionIndexes on a collection, if any of them are still being built.
+     *
+     * @param coll the collection
+     * @throws InterruptedException
+     * @throws ExecutionException if a build failed
+     */
+    private static void awaitSequenceIndexBuilds(MongoCollection<Document> coll) throws InterruptedException, ExecutionException {
+		List<String> keysToAwait = Arrays.asList(getSequenceIndexKeys().toBsonDocument(BsonDocument.class, coll.getCodecRegistry()).toJson(), getSequenceOrdinalIndexKeys().toBsonDocument(BsonDocument.class, coll.getCodecRegistry()).toJson());
+		for (IndexBuildCoordinator.IndexBuild build : IndexBuildCoordinator.getPendingBuilds(coll.getNamespace()))
+			if (keysToAwait.contains(build.getKeys()))
+				build.getFuture().get();
+    }
+
+    /**
+     * Assigns ordinals to sequences so that comparing ordinals is equivalent to comparing sequence names with an AlphaNumericComparator, and stores them in the ReferencePosition of variants and runs.
+     * Ordinals are spaced so that new sequences can usually be inserted without renumbering existing ones: only records lacking an ordinal then need updating.
+     * Records are updated in a single pass per collection (per MAX_SEQUENCES_PER_ORDINAL_UPDATE sequences), once the indexes supporting it are built.
+     * Once done, positioned records are flagged as all holding an ordinal (see hasSequenceOrdinals).
+     *
+     * @param mongoTemplate the mongo template
+     * @throws InterruptedException
+     * @throws ExecutionException if building an index needed for updating ordinals failed
+     */
+    public static void updateSequenceOrdinals(MongoTemplate mongoTemplate) throws InterruptedException, ExecutionException {
+		long before = System.currentTimeMillis();
+		MongoCollection<Document> dictionaryColl = mongoTemplate.getCollection(COLLECTION_NAME_SEQUENCE_ORDINALS);
+		HashMap<String, Integer> previousOrdinals = new HashMap<>();
+		for (Document entry : dictionaryColl.find(new Document("_id", new Document("$type", "string"))))
+			previousOrdinals.put(entry.getString("_id"), ((Number) entry.get(FIELD_NAME_SEQUENCE_ORDINAL)).intValue());
+
+		String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
+		Document lackingOrdinalQuery = new Document(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, null).append(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, new Document("$exists", true));
+		List<MongoCollection<Document>> varColls = Arrays.asList(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)), mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)));
+		HashSet<String> sequencesLackingOrdinals = new HashSet<>();
+		for (MongoCollection<Document> coll : varColls)
+			coll.distinct(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, lackingOrdinalQuery, String.class).into(sequencesLackingOrdinals);
+
+		TreeSet<String> sequences = new TreeSet<>(sequenceComparator);
+		sequences.addAll(previousOrdinals.keySet());
+		sequences.addAll(sequencesLackingOrdinals);
+		HashMap<String, Integer> ordinals = assignSequenceOrdinals(new ArrayList<>(sequences), previousOrdinals);
+
+		List<WriteModel<Document>> dictionaryUpdates = new ArrayList<>();
+		List<String> renumberedSequences = new ArrayList<>(), newSequences = new ArrayList<>();	// all records of the former need updating, only those lacking an ordinal for the latter
+		for (String seq : sequences) {
+			Integer nOrdinal = ordinals.get(seq), nPreviousOrdinal = previousOrdinals.get(seq);
+			if (!nOrdinal.equals(nPreviousOrdinal)) {
+				dictionaryUpdates.add(new ReplaceOneModel<>(new Document("_id", seq), new Document("_id", seq).append(FIELD_NAME_SEQUENCE_ORDINAL, nOrdinal), new ReplaceOptions().upsert(true)));
+				if (nPreviousOrdinal != null) {
+					renumberedSequences.add(seq);
+					continue;
+				}
+			}
+			if (sequencesLackingOrdinals.contains(seq))
+				newSequences.add(seq);
+		}
+
+		if (!dictionaryUpdates.isEmpty())
+			dictionaryColl.bulkWrite(dictionaryUpdates, new BulkWriteOptions().ordered(false));
+
+		// sequences are matched by $in / $eq without collation, which would equate e.g. chr1 and chr01
+		List<Document> recordUpdateFilters = new ArrayList<>(), recordUpdatePipelines = new ArrayList<>();
+		List<String> sequencesToUpdate = new ArrayList<>(renumberedSequences);
+		sequencesToUpdate.addAll(newSequences);
+		for (int i=0; i<sequencesToUpdate.size(); i+=MAX_SEQUENCES_PER_ORDINAL_UPDATE) {
+			List<String> batch = sequencesToUpdate.subList(i, Math.min(sequencesToUpdate.size(), i + MAX_SEQUENCES_PER_ORDINAL_UPDATE));
+			List<Document> branches = new ArrayList<>();
+			List<String> renumberedInBatch = new ArrayList<>(), newInBatch = new ArrayList<>();
+			for (String seq : batch) {
+				branches.add(new Document("case", new Document("$eq", Arrays.asList("$" + rpPath + ReferencePosition.FIELDNAME_SEQUENCE, seq))).append("then", ordinals.get(seq)));
+				(previousOrdinals.containsKey(seq) ? renumberedInBatch : newInBatch).add(seq);
+			}
+			List<Document> filterAlternatives = new ArrayList<>();
+			if (!renumberedInBatch.isEmpty())
+				filterAlternatives.add(new Document(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, new Document("$in", renumberedInBatch)));
+			if (!newInBatch.isEmpty())
+				filterAlternatives.add(new Document(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, null).append(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, new Document("$in", newInBatch)));
+			recordUpdateFilters.add(filterAlternatives.size() == 1 ? filterAlternatives.get(0) : new Document("$or", filterAlternatives));
+			recordUpdatePipelines.add(new Document("$set", new Document(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, new Document("$switch", new Document("branches", branches).append("default", "$" + rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL)))));
+		}
+
+		long nModifiedCount = 0;
+		if (!recordUpdateFilters.isEmpty())
+			for (MongoCollection<Document> coll : varColls) {
+				awaitSequenceIndexBuilds(coll);
+				for (int i=0; i<recordUpdateFilters.size(); i++)
+					nModifiedCount += coll.updateMany(recordUpdateFilters.get(i), Arrays.asList(recordUpdatePipelines.get(i))).getModifiedCount();
+			}
+		dictionaryColl.replaceOne(new Document("_id", SEQUENCE_ORDINALS_COMPLETE_FLAG_ID), new Document("_id", SEQUENCE_ORDINALS_COMPLETE_FLAG_ID), new ReplaceOptions().upsert(true));
+		if (nModifiedCount > 0)
+			LOG.info("Sequence ordinals were set for " + nModifiedCount + " records in " + (System.currentTimeMillis() - before) + "ms");
+    }
+
+    /**
+     * Computes sequence ordinals, keeping existing ones unless there is not enough room between them for new sequences, in which case all are renumbered.
+     *
+     * @param sortedSequences all sequences, sorted with sequenceComparator
+     * @param previousOrdinals the ordinals previously assigned to some of them
+     * @return the ordinals for all sequences
+     */
+    private static HashMap<String, Integer> assignSequenceOrdinals(List<String> sortedSequences, HashMap<String, Integer> previousOrdinals) {
+		HashMap<String, Integer> result = new HashMap<>();
+		int i = 0;
+		while (i < sortedSequences.size()) {
+			Integer nKnownOrdinal = previousOrdinals.get(sortedSequences.get(i));
+			if (nKnownOrdinal != null) {
+				result.put(sortedSequences.get(i++), nKnownOrdinal);
+				continue;
+			}
+
+			int nRunEnd = i;	// new sequences found between positions i and nRunEnd (excluded)
+			while (nRunEnd < sortedSequences.size() && !previousOrdinals.containsKey(sortedSequences.get(nRunEnd)))
+				nRunEnd++;
+			Integer nPrevious = i == 0 ? null : result.get(sortedSequences.get(i - 1)), nNext = nRunEnd == sortedSequences.size() ? null : previousOrdinals.get(sortedSequences.get(nRunEnd));
+			long nStep = nPrevious != null && nNext != null ? ((long) nNext - nPrevious) / (nRunEnd - i + 1) : SEQUENCE_ORDINAL_SPACING;
+			long nFirst = nPrevious != null ? nPrevious + nStep : (nNext != null ? nNext - (nRunEnd - i) * nStep : 0);
+			if (nStep < 1 || nFirst < Integer.MIN_VALUE || nFirst + (nRunEnd - i - 1) * nStep > Integer.MAX_VALUE) {	// no room left: renumber everything
+				result.clear();
+				for (int j=0; j<sortedSequences.size(); j++)
+					result.put(sortedSequences.get(j), j * SEQUENCE_ORDINAL_SPACING);
+				return result;
+			}
+			for (int j=i; j<nRunEnd; j++)
+				result.put(sortedSequences.get(j), (int) (nFirst + (j - i) * nStep));
+			i = nRunEnd;
+		}
+		return result;
+    }
+
+    /**
+     * Tells whether all positioned variants and runs hold an up-to-date sequence ordinal, in which case they may be sorted by {ordinal, start site} without collation.
+     *
+     * @param mongoTemplate the mongo template
+     * @return true, if sequence ordinals may be relied on
+     */
+    public static boolean hasSequenceOrdinals(MongoTemplate mongoTemplate) {
+		return mongoTemplate.getCollection(COLLECTION_NAME_SEQUENCE_ORDINALS).countDocuments(new Document("_id", SEQUENCE_ORDINALS_COMPLETE_FLAG_ID)) > 0;
+    }
+
+    /**
+     * Marks sequence ordinals as incomplete, to be called before adding variants or runs (updateSequenceOrdinals marks them as complete again).
+     *
+     * @param mongoTemplate the mongo template
+     */
+    public static void invalidateSequenceOrdinals(MongoTemplate mongoTemplate) {
+		mongoTemplate.getCollection(COLLECTION_NAME_SEQUENCE_ORDINALS).deleteOne(new Document("_id", SEQUENCE_ORDINALS_COMPLETE_FLAG_ID));
+    }
 	
 	public static boolean idLooksGenerated(String id)
 	{
@@ -268,100 +873,107 @@ public class MgdbDao
 	}
 	
 	/**
-	 * Gets the sample genotypes.
+	 * Fetches variants and their runs for a window of variant IDs: variants and each project's runs are queried concurrently.
 	 *
 	 * @param mongoTemplate the mongo template
 	 * @param variantFieldsToReturn the variant fields to return
 	 * @param projectIdToReturnedRunFieldListMap the project id to returned run field list map
-	 * @param variantIdListToRestrictTo the variant id list to restrict to
+	 * @param windowVariantIDs the IDs of the variants to fetch
 	 * @param sort the sort
-	 * @return the sample genotypes
-	 * @throws Exception the exception
+	 * @return a future providing the window's variants in requested order, with their runs grouped in project order
 	 */
-	private static LinkedHashMap<VariantData, Collection<VariantRunData>> getSampleGenotypes(MongoTemplate mongoTemplate, ArrayList<String> variantFieldsToReturn, HashMap<Integer, ArrayList<String>> projectIdToReturnedRunFieldListMap, List<Object> variantIdListToRestrictTo, Sort sort) throws Exception
+	private static CompletableFuture<LinkedHashMap<VariantData, Collection<VariantRunData>>> fetchSampleGenotypeWindow(MongoTemplate mongoTemplate, ArrayList<String> variantFieldsToReturn, HashMap<Integer, ArrayList<String>> projectIdToReturnedRunFieldListMap, List<Object> windowVariantIDs, Sort sort)
 	{
-		Query variantQuery = new Query();
+		Query variantQuery = new Query(Criteria.where("_id").in(windowVariantIDs));
 		if (sort != null)
 			variantQuery.with(sort);
-
-		Criteria runQueryVariantCriteria = null;
-
-		if (variantIdListToRestrictTo != null && variantIdListToRestrictTo.size() > 0)
-		{
-			variantQuery.addCriteria(new Criteria().where("_id").in(variantIdListToRestrictTo));
-			runQueryVariantCriteria = new Criteria().where("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID).in(variantIdListToRestrictTo);
-		}
 		variantQuery.fields().include("_id");
 		for (String returnedField : variantFieldsToReturn)
 			variantQuery.fields().include(returnedField);
-		
-		HashMap<String, VariantData> variantIdToVariantMap = new HashMap<>();		
-		List<VariantData> variants = mongoTemplate.find(variantQuery, VariantData.class);
-		for (VariantData vd : variants)
-			variantIdToVariantMap.put(vd.getId(), vd);
-		
-		// next block may be removed at some point (only some consistency checking)
-		if (variantIdListToRestrictTo != null && variantIdListToRestrictTo.size() != variants.size())
-		{
-			mainLoop : for (Object vi : variantIdListToRestrictTo)
-			{
-				for (VariantData vd : variants)
-				{
-					if (!variantIdToVariantMap.containsKey(vd.getId()))
-						variantIdToVariantMap.put(vd.getId(), vd);
-					
-					if (vd.getId().equals(vi))
-						continue mainLoop;
-				}
-				LOG.error(vi + " requested but not returned");
-			}
-			throw new Exception("Found " + variants.size() + " variants where " + variantIdListToRestrictTo.size() + " were expected");
-		}
-
-		LinkedHashMap<VariantData, Collection<VariantRunData>> result = new LinkedHashMap<VariantData, Collection<VariantRunData>>();
-		for (Object variantId : variantIdListToRestrictTo)
-			result.put(variantIdToVariantMap.get(variantId.toString()), new ArrayDeque<VariantRunData>());
+		CompletableFuture<List<VariantData>> variantFuture = CompletableFuture.supplyAsync(() -> mongoTemplate.find(variantQuery, VariantData.class), sampleGenotypeFetchExecutor);
 
+		List<CompletableFuture<List<VariantRunData>>> runFutures = new ArrayList<>();
 		for (int projectId : projectIdToReturnedRunFieldListMap.keySet())
 		{
 			Query runQuery = new Query(Criteria.where("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID).is(projectId));
-			if (runQueryVariantCriteria != null)
-				runQuery.addCriteria(runQueryVariantCriteria);
-
+			runQuery.addCriteria(Criteria.where("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID).in(windowVariantIDs));
 			runQuery.fields().include("_id");
 			for (String returnedField : projectIdToReturnedRunFieldListMap.get(projectId))
 				runQuery.fields().include(returnedField);
-			
-			List<VariantRunData> runs = mongoTemplate.find(runQuery, VariantRunData.class);
-			for (VariantRunData run : runs)
-				result.get(variantIdToVariantMap.get(run.getId().getVariantId())).add(run);
+			runFutures.add(CompletableFuture.supplyAsync(() -> mongoTemplate.find(runQuery, VariantRunData.class), sampleGenotypeFetchExecutor));
 		}
-	
-		if (result.size() != variantIdListToRestrictTo.size())
-			throw new Exception("Bug: we should be returning " + variantIdListToRestrictTo.size() + " results but we only have " + result.size());
 
-		return result;
+		List<CompletableFuture<?>> allFutures = new ArrayList<>(runFutures);
+		allFutures.add(variantFuture);
+		return CompletableFuture.allOf(allFutures.toArray(new CompletableFuture[allFutures.size()])).thenApply(v -> {
+			HashMap<String, VariantData> variantIdToVariantMap = new HashMap<>();
+			List<VariantData> variants = variantFuture.join();
+			for (VariantData vd : variants)
+				variantIdToVariantMap.put(vd.getId(), vd);
+
+			if (windowVariantIDs.size() != variants.size())
+			{	// only some consistency checking
+				for (Object vi : windowVariantIDs)
+					if (!variantIdToVariantMap.containsKey(vi.toString()))
+						LOG.error(vi + " requested but not returned");
+				throw new CompletionException(new Exception("Found " + variants.size() + " variants where " + windowVariantIDs.size() + " were expected"));
+			}
+
+			LinkedHashMap<VariantData, Collection<VariantRunData>> result = new LinkedHashMap<VariantData, Collection<VariantRunData>>();
+			for (Object variantId : windowVariantIDs)
+				result.put(variantIdToVariantMap.get(variantId.toString()), new ArrayDeque<VariantRunData>());
+			for (CompletableFuture<List<VariantRunData>> runFuture : runFutures)
+				for (VariantRunData run : runFuture.join())
+					result.get(variantIdToVariantMap.get(run.getId().getVariantId())).add(run);
+			return result;
+		});
 	}
-	
+
 	/**
-	 * Gets the sample genotypes.
+	 * Streams the sample genotypes, one window of variants at a time: the next window is fetched while the current one is being consumed, so that at most two windows are held in memory.
 	 *
 	 * @param mongoTemplate the mongo template
-	 * @param samples the samples
+	 * @param variantFieldsToReturn the variant fields to return
+	 * @param projectIdToReturnedRunFieldListMap the project id to returned run field list map
 	 * @param variantIdListToRestrictTo the variant id list to restrict to
-	 * @param fReturnVariantTypes whether or not to return variant types
 	 * @param sort the sort
-	 * @return the sample genotypes
+	 * @param nWindowSize the number of variants to fetch at once
+	 * @param consumer called for each variant, in the order of variantIdListToRestrictTo, with its runs
 	 * @throws Exception the exception
 	 */
-	public static LinkedHashMap<VariantData, Collection<VariantRunData>> getSampleGenotypes(MongoTemplate mongoTemplate, Collection<GenotypingSample> samples, List<Object> variantIdListToRestrictTo, boolean fReturnVariantTypes, Sort sort) throws Exception
+	private static void streamSampleGenotypes(MongoTemplate mongoTemplate, ArrayList<String> variantFieldsToReturn, HashMap<Integer, ArrayList<String>> projectIdToReturnedRunFieldListMap, List<Object> variantIdListToRestrictTo, Sort sort, int nWindowSize, BiConsumer<VariantData, Collection<VariantRunData>> consumer) throws Exception
+	{
+		if (variantIdListToRestrictTo == null || variantIdListToRestrictTo.isEmpty())
+			return;
+
+		int nVariantCount = variantIdListToRestrictTo.size();
+		CompletableFuture<LinkedHashMap<VariantData, Collection<VariantRunData>>> nextWindow = fetchSampleGenotypeWindow(mongoTemplate, variantFieldsToReturn, projectIdToReturnedRunFieldListMap, variantIdListToRestrictTo.subList(0, Math.min(nWindowSize, nVariantCount)), sort);
+		for (int nWindowStart = 0; nWindowStart < nVariantCount; nWindowStart += nWindowSize)
+		{
+			LinkedHashMap<VariantData, Collection<VariantRunData>> window;
+			try
+			{
+				window = nextWindow.get();
+			}
+			catch (ExecutionException ee)
+			{
+				if (ee.getCause() instanceof Exception)
+					throw (Exception) ee.getCause();
+				throw ee;
+			}
+
+			int nNextWindowStart = nWindowStart + nWindowSize;
+			if (nNextWindowStart < nVariantCount)
+				nextWindow = fetchSampleGenotypeWindow(mongoTemplate, variantFieldsToReturn, projectIdToReturnedRunFieldListMap, variantIdListToRestrictTo.subList(nNextWindowStart, Math.min(nNextWindowStart + nWindowSize, nVariantCount)), sort);
+			window.forEach(consumer);
+		}
+	}
+
+	/**
+	 * Builds the list of run fields to return for each project.
+	 */
+	private static HashMap<Integer /*project id*/, ArrayList<String>> getReturnedRunFieldsByProject(Collection<GenotypingSample> samples)
 	{
-		ArrayList<String> variantFieldsToReturn = new ArrayList<String>();
-		variantFieldsToReturn.add(VariantData.FIELDNAME_KNOWN_ALLELE_LIST);
-		variantFieldsToReturn.add(VariantData.FIELDNAME_REFERENCE_POSITION);
-		if (fReturnVariantTypes)
-			variantFieldsToReturn.add(VariantData.FIELDNAME_TYPE);
-		
 		HashMap<Integer /*project id*/, ArrayList<String>> projectIdToReturnedRunFieldListMap = new HashMap<Integer, ArrayList<String>>();
 		for (GenotypingSample sample : samples)
 		{
@@ -375,11 +987,62 @@ public class MgdbDao
 			}
 			returnedFields.add(VariantRunData.FIELDNAME_SAMPLEGENOTYPES + "." + sample.getId());
 		}
+		return projectIdToReturnedRunFieldListMap;
+	}
 
-		LinkedHashMap<VariantData, Collection<VariantRunData>> result = getSampleGenotypes(mongoTemplate, variantFieldsToReturn, projectIdToReturnedRunFieldListMap, variantIdListToRestrictTo, sort);
-		
+	private static ArrayList<String> getReturnedVariantFields(boolean fReturnVariantTypes)
+	{
+		ArrayList<String> variantFieldsToReturn = new ArrayList<String>();
+		variantFieldsToReturn.add(VariantData.FIELDNAME_KNOWN_ALLELE_LIST);
+		variantFieldsToReturn.add(VariantData.FIELDNAME_REFERENCE_POSITION);
+		if (fReturnVariantTypes)
+			variantFieldsToReturn.add(VariantData.FIELDNAME_TYPE);
+		return variantFieldsToReturn;
+	}
+	
+	/**
+	 * Gets the sample genotypes.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param samples the samples
+	 * @param variantIdListToRestrictTo the variant id list to restrict to
+	 * @param fReturnVariantTypes whether or not to return variant types
+	 * @param sort the sort
+	 * @return the sample genotypes
+	 * @throws Exception the exception
+	 */
+	public static LinkedHashMap<VariantData, Collection<VariantRunData>> getSampleGenotypes(MongoTemplate mongoTemplate, Collection<GenotypingSample> samples, List<Object> variantIdListToRestrictTo, boolean fReturnVariantTypes, Sort sort) throws Exception
+	{
+		LinkedHashMap<VariantData, Collection<VariantRunData>> result = new LinkedHashMap<VariantData, Collection<VariantRunData>>();
+		if (variantIdListToRestrictTo != null && !variantIdListToRestrictTo.isEmpty())	// fetched by windows so that no single query gets too large, the next window being fetched while the current one is collected
+			streamSampleGenotypes(mongoTemplate, getReturnedVariantFields(fReturnVariantTypes), getReturnedRunFieldsByProject(samples), variantIdListToRestrictTo, sort, estimateNumberOfVariantsToQueryAtOnce(variantIdListToRestrictTo.size(), samples.size()), (vd, runs) -> result.put(vd, runs));
+
+		if (variantIdListToRestrictTo != null && result.size() != variantIdListToRestrictTo.size())
+			throw new Exception("Bug: we should be returning " + variantIdListToRestrictTo.size() + " results but we only have " + result.size());
 		return result;
 	}
+
+	/**
+	 * Streams the sample genotypes: variants are fetched by windows (each project's runs being queried concurrently) and passed to the consumer as soon as available, in the order of variantIdListToRestrictTo. Memory usage is thus bounded by the window size rather than by the number of variants.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param samples the samples
+	 * @param variantIdListToRestrictTo the IDs of the variants to return
+	 * @param fReturnVariantTypes whether or not to return variant types
+	 * @param sort the sort
+	 * @param nWindowSize the number of variants to fetch at once (0 to have it estimated from the number of samples)
+	 * @param consumer called for each variant with its runs
+	 * @throws Exception the exception
+	 */
+	public static void streamSampleGenotypes(MongoTemplate mongoTemplate, Collection<GenotypingSample> samples, List<Object> variantIdListToRestrictTo, boolean fReturnVariantTypes, Sort sort, int nWindowSize, BiConsumer<VariantData, Collection<VariantRunData>> consumer) throws Exception
+	{
+		if (variantIdListToRestrictTo == null || variantIdListToRestrictTo.isEmpty())
+			return;
+
+		if (nWindowSize <= 0)
+			nWindowSize = estimateNumberOfVariantsToQueryAtOnce(variantIdListToRestrictTo.size(), samples.size());
+		streamSampleGenotypes(mongoTemplate, getReturnedVariantFields(fReturnVariantTypes), getReturnedRunFieldsByProject(samples), variantIdListToRestrictTo, sort, nWindowSize, consumer);
+	}
 	    
     public static Set<String> getProjectIndividuals(String sModule, int projId) {
     	return getSamplesByIndividualForProject(sModule, projId, null).keySet();
@@ -394,13 +1057,73 @@ public class MgdbDao
 	 */
 	public static List<Individual> getIndividualsFromSamples(final String sModule, final Collection<GenotypingSample> samples)
 	{
-		MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
+		Map<String, Individual> individuals = getCachedIndividuals(sModule, samples.stream().map(sp -> sp.getIndividual()).collect(Collectors.toList()));
 		ArrayList<Individual> result = new ArrayList<Individual>();
-		for (GenotypingSample sp : samples)
-			result.add(mongoTemplate.findById(sp.getIndividual(), Individual.class));
+		for (GenotypingSample sp : samples) {
+			Individual ind = individuals.get(sp.getIndividual());
+			result.add(ind == null ? null : ind.copy());
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets individuals by ID, from the module's individual cache when possible, querying those not found there at once.
+	 * Returned individuals are copies, that callers may modify without affecting the cache.
+	 *
+	 * @param sModule the module
+	 * @param individualIds the individual IDs
+	 * @return the individuals by ID, in the order of passed IDs (unknown ones are missing from the map)
+	 */
+	public static Map<String, Individual> getIndividuals(final String sModule, final Collection<String> individualIds)
+	{
+		Map<String, Individual> result = getCachedIndividuals(sModule, individualIds);
+		result.replaceAll((id, ind) -> ind.copy());
+		return result;
+	}
+
+	/**
+	 * Same as getIndividuals, but returns the cached instances themselves, which must therefore not be modified.
+	 *
+	 * @param sModule the module
+	 * @param individualIds the individual IDs
+	 * @return the individuals by ID, in the order of passed IDs (unknown ones are missing from the map)
+	 */
+	private static Map<String, Individual> getCachedIndividuals(final String sModule, final Collection<String> individualIds)
+	{
+		IndividualCache cache = individualCaches.computeIfAbsent(sModule, module -> new IndividualCache());
+		LinkedHashMap<String, Individual> result = new LinkedHashMap<>();
+		HashSet<String> idsToQuery = new HashSet<>();
+		for (String individualId : individualIds) {
+			Individual ind = cache.get(individualId);
+			if (ind != null)
+				result.put(individualId, ind);
+			else {
+				result.put(individualId, null);	// reserves its position in the map
+				idsToQuery.add(individualId);
+			}
+		}
+
+		if (!idsToQuery.isEmpty()) {
+			MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
+			for (Individual ind : mongoTemplate.find(new Query(Criteria.where("_id").in(idsToQuery)), Individual.class)) {
+				cache.put(ind);
+				result.put(ind.getId(), ind);
+			}
+			result.values().removeIf(ind -> ind == null);
+		}
 		return result;
 	}
 	
+	/**
+	 * Empties a module's individual cache, to be called whenever individuals are modified.
+	 *
+	 * @param sModule the module
+	 */
+	public static void invalidateIndividualCache(final String sModule)
+	{
+		individualCaches.remove(sModule);
+	}
+	
 	public static TreeMap<String /*individual*/, ArrayList<GenotypingSample>> getSamplesByIndividualForProject(final String sModule, final int projId, final Collection<String> individuals)
 	{
 		TreeMap<String /*individual*/, ArrayList<GenotypingSample>> result = new TreeMap<>();
@@ -439,28 +1162,85 @@ public class MgdbDao
      * @return the individual population
      */
     public static String getIndividualPopulation(final String sModule, final String individual) {
-        MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
-        return mongoTemplate.findById(individual, Individual.class).getPopulation();
+        return getCachedIndividuals(sModule, Arrays.asList(individual)).get(individual).getPopulation();
+    }
+    
+    /**
+     * Gets the populations of several individuals at once.
+     *
+     * @param sModule the module
+     * @param individuals the individuals
+     * @return the populations by individual, in the order of passed individuals (null for individuals with no population)
+     */
+    public static LinkedHashMap<String, String> getIndividualPopulations(final String sModule, final Collection<String> individuals) {
+        LinkedHashMap<String, String> result = new LinkedHashMap<>();
+        getCachedIndividuals(sModule, individuals).forEach((id, ind) -> result.put(id, ind.getPopulation()));
+        return result;
     }
     
 	public static TreeSet<String> getAnnotationFields(MongoTemplate mongoTemplate, int projId, boolean fOnlySearchableFields) {
-    	TreeSet<String> result = new TreeSet<>();
+		ProjectVcfHeaders headers = getProjectVcfHeaders(mongoTemplate, projId);
+        return new TreeSet<>(fOnlySearchableFields ? headers.searchableAnnotationFields : headers.annotationFields);
+    }
 
-        // we can't use Spring queries here (leads to "Failed to instantiate htsjdk.variant.vcf.VCFInfoHeaderLine using constructor NO_CONSTRUCTOR with arguments")
-		MongoCollection<org.bson.Document> vcfHeaderColl = mongoTemplate.getCollection(MongoTemplateManager.getMongoCollectionName(DBVCFHeader.class));
-		Document vcfHeaderQuery = new Document("_id." + VcfHeaderId.FIELDNAME_PROJECT, projId);
-		MongoCursor<Document> headerCursor = vcfHeaderColl.find(vcfHeaderQuery).iterator();
+	/**
+	 * Gets a project's parsed VCF headers (one per run imported from VCF).
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param projId the project id
+	 * @return the headers (not to be modified)
+	 */
+	public static List<DBVCFHeader> getVcfHeaders(MongoTemplate mongoTemplate, int projId) {
+		return getProjectVcfHeaders(mongoTemplate, projId).headers;
+	}
 
-		while (headerCursor.hasNext())
-		{
-			DBVCFHeader vcfHeader = DBVCFHeader.fromDocument(headerCursor.next());
-        	for (String key : vcfHeader.getmFormatMetaData().keySet()) {
-        		VCFFormatHeaderLine vcfFormatHeaderLine = vcfHeader.getmFormatMetaData().get(key);
-        		if (!fOnlySearchableFields || (!key.equals(VCFConstants.GENOTYPE_KEY) && vcfFormatHeaderLine.getType().equals(VCFHeaderLineType.Integer) && vcfFormatHeaderLine.getCountType() == VCFHeaderLineCount.INTEGER && vcfFormatHeaderLine.getCount() == 1))
-        			result.add(key);
-        	}
-		}
-		headerCursor.close();
-        return result;
-    }
+	private static ProjectVcfHeaders getProjectVcfHeaders(MongoTemplate mongoTemplate, int projId) {
+		String cacheKey = mongoTemplate.getDb().getName() + "/" + projId;
+		ProjectVcfHeaders headers = vcfHeaderCache.get(cacheKey);
+		if (headers != null)
+			return headers;
+
+		long nGeneration = vcfHeaderCacheGeneration.get();
+		ProjectVcfHeaders loadedHeaders = new ProjectVcfHeaders(mongoTemplate, projId);
+		vcfHeaderCache.compute(cacheKey, (key, cachedHeaders) -> vcfHeaderCacheGeneration.get() == nGeneration ? loadedHeaders : cachedHeaders);	// headers possibly read before an invalidation are not cached
+		return loadedHeaders;
+	}
+
+	/**
+	 * Discards cached VCF headers, to be called whenever vcf_header records are written or removed.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param projId the project id (null for all projects in the database)
+	 */
+	public static void invalidateVcfHeaderCache(MongoTemplate mongoTemplate, Integer projId) {
+		String dbPrefix = mongoTemplate.getDb().getName() + "/";
+		vcfHeaderCacheGeneration.incrementAndGet();
+		if (projId != null)
+			vcfHeaderCache.remove(dbPrefix + projId);
+		else
+			vcfHeaderCache.keySet().removeIf(key -> key.startsWith(dbPrefix));
+	}
+
+	/**
+	 * Gets a project's data version, i.e. a value that changes whenever the project's data gets modified (it is never re-used, even after the database was dropped, since bumping sets it to at least the current time).
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param projId the project id
+	 * @return the project data version (0 if it was never bumped)
+	 */
+	public static long getProjectDataVersion(MongoTemplate mongoTemplate, int projId) {
+		Document versionDoc = mongoTemplate.getCollection(COLLECTION_NAME_PROJECT_DATA_VERSIONS).find(new Document("_id", projId)).first();
+		return versionDoc == null ? 0 : ((Number) versionDoc.get(FIELD_NAME_PROJECT_DATA_VERSION)).longValue();
+	}
+
+	/**
+	 * Bumps a project's data version, thus invalidating anything that was cached for it (to be called whenever its data is added, modified or removed).
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param projId the project id
+	 */
+	public static void bumpProjectDataVersion(MongoTemplate mongoTemplate, int projId) {
+		long previousVersion = getProjectDataVersion(mongoTemplate, projId);
+		mongoTemplate.getCollection(COLLECTION_NAME_PROJECT_DATA_VERSIONS).updateOne(new Document("_id", projId), new Document("$max", new Document(FIELD_NAME_PROJECT_DATA_VERSION, Math.max(previousVersion + 1, System.currentTimeMillis()))), new UpdateOptions().upsert(true));
+	}
 }
\ No newline at end of file
@@ -0,0 +1,521 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongodao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * In-memory index of variant start positions, by sequence, answering region counts and region-to-variant-ID resolution without querying the database.
+ * For each sequence, positions are held in a sorted long buffer paired with the variants' IDs. Indexes are built lazily (one per database), persisted to disk and memory-mapped when reloaded, so that restarting is cheap.
+ * Index files go to the folder set by the positionIndexFolder entry of config.properties (see MongoTemplateManager), which defaults to java.io.tmpdir/mgdbPositionIndexes; an empty value disables persistence.
+ * After imports (see markStale), only sequences whose variant count, position sum or variant ID fingerprint changed are rebuilt.
+ * Meant for the application's region filters to resolve regions into variant counts / IDs: nothing in this library queries it.
+ */
+public class SequencePositionIndex
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(SequencePositionIndex.class);
+
+	static final private int FILE_MAGIC = 0x4D475049;
+
+	static final private int FILE_VERSION = 2;
+
+	static final private String FILE_EXTENSION = ".positionIndex";
+
+	static final private int WRITE_BLOCK_SIZE = 1 << 16;
+
+	/** Size of the regions persisted files are mapped in, so that the number of mappings (limited by vm.max_map_count) does not grow with the number of sequences */
+	static final private long MAPPED_REGION_SIZE = 1L << 30;
+
+	/** Default folder index files are persisted to */
+	static final public File DEFAULT_PERSISTENCE_FOLDER = new File(System.getProperty("java.io.tmpdir"), "mgdbPositionIndexes");
+
+	/** Folder index files are persisted to (null to disable persistence) */
+	static private volatile File persistenceFolder = DEFAULT_PERSISTENCE_FOLDER;
+
+	static final private ConcurrentHashMap<String, SequencePositionIndex> indexesByDatabase = new ConcurrentHashMap<>();
+
+	private final MongoTemplate mongoTemplate;
+
+	/** Current entries by sequence, replaced as a whole when refreshing so that readers always see a consistent snapshot */
+	private volatile Map<String, SequenceEntry> entries = Collections.emptyMap();
+
+	/** Incremented each time the index is marked as stale */
+	private final AtomicLong nStaleGeneration = new AtomicLong(1);
+
+	/** Value nStaleGeneration had when the last refresh started, only updated once that refresh is complete */
+	private volatile long nRefreshedGeneration = 0;
+
+	/**
+	 * A sequence's variants, sorted by start position.
+	 */
+	static private class SequenceEntry
+	{
+		/** Sum of start positions, compared with the database's to detect changes */
+		private final long nPositionSum;
+
+		/** Indexes of the lowest and highest variant IDs (in binary UTF-8 order, as compared by MongoDB), compared with the database's along with the total ID length to detect changes */
+		private final int nMinIdIndex, nMaxIdIndex;
+
+		private final LongBuffer starts;
+
+		/** Offsets of each variant ID in idBytes, plus the total length */
+		private final IntBuffer idOffsets;
+
+		private final ByteBuffer idBytes;
+
+		private SequenceEntry(long nPositionSum, int nMinIdIndex, int nMaxIdIndex, LongBuffer starts, IntBuffer idOffsets, ByteBuffer idBytes) {
+			this.nPositionSum = nPositionSum;
+			this.nMinIdIndex = nMinIdIndex;
+			this.nMaxIdIndex = nMaxIdIndex;
+			this.starts = starts;
+			this.idOffsets = idOffsets;
+			this.idBytes = idBytes;
+		}
+
+		private int size() {
+			return starts.limit();
+		}
+
+		private int getIdByteCount() {
+			return idOffsets.get(size());
+		}
+
+		/**
+		 * Tells whether the entry matches a sequence's statistics as computed by the database.
+		 */
+		private boolean matches(Document seqStats) {
+			return size() == ((Number) seqStats.get("n")).intValue() && nPositionSum == ((Number) seqStats.get("s")).longValue() && getIdByteCount() == ((Number) seqStats.get("b")).intValue()
+				&& size() > 0 && getId(nMinIdIndex).equals(seqStats.get("f").toString()) && getId(nMaxIdIndex).equals(seqStats.get("l").toString());
+		}
+
+		private String getId(int i) {
+			int nStart = idOffsets.get(i);
+			byte[] bytes = new byte[idOffsets.get(i + 1) - nStart];
+			ByteBuffer dup = idBytes.duplicate();
+			dup.position(nStart);
+			dup.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Finds the index of the first variant starting at or after a position.
+		 */
+		private int lowerBound(long nPosition) {
+			int nLow = 0, nHigh = size();
+			while (nLow < nHigh) {
+				int nMid = (nLow + nHigh) >>> 1;
+				if (starts.get(nMid) < nPosition)
+					nLow = nMid + 1;
+				else
+					nHigh = nMid;
+			}
+			return nLow;
+		}
+
+		/**
+		 * Finds the range of indexes of variants starting between two positions (both inclusive).
+		 */
+		private int[] range(long nStart, long nEnd) {
+			return new int[] {lowerBound(nStart), nEnd == Long.MAX_VALUE ? size() : lowerBound(nEnd + 1)};
+		}
+	}
+
+	/**
+	 * A persisted file, mapped in a few large regions (rather than once per block) that blocks are sliced from.
+	 */
+	static private class MappedFile
+	{
+		private final FileChannel channel;
+
+		private MappedByteBuffer region = null;
+
+		private long nRegionStart = 0;
+
+		private MappedFile(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Gets a block of the file, mapping a new region starting with it if it does not lie within the current one.
+		 */
+		private ByteBuffer slice(long nPosition, long nLength) throws IOException {
+			if (nLength > Integer.MAX_VALUE)
+				throw new IOException("Block too large to be mapped: " + nLength + " bytes");
+			if (region == null || nPosition < nRegionStart || nPosition + nLength > nRegionStart + region.capacity()) {
+				nRegionStart = nPosition;
+				region = channel.map(FileChannel.MapMode.READ_ONLY, nPosition, Math.max(nLength, Math.min(MAPPED_REGION_SIZE, channel.size() - nPosition)));
+			}
+			ByteBuffer block = region.duplicate();
+			block.position((int) (nPosition - nRegionStart));
+			block.limit((int) (nPosition - nRegionStart + nLength));
+			return block.slice();
+		}
+	}
+
+	private SequencePositionIndex(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the folder index files are persisted to.
+	 *
+	 * @param folder the folder (null to disable persistence)
+	 */
+	public static void setPersistenceFolder(File folder) {
+		if (folder == null ? persistenceFolder != null : !folder.equals(persistenceFolder))
+			LOG.info("Position indexes will be persisted to " + (folder == null ? "nowhere" : folder.getAbsolutePath()));
+		persistenceFolder = folder;
+	}
+
+	/**
+	 * Gets a module's position index, building or refreshing it if needed.
+	 *
+	 * @param sModule the module
+	 * @return the index
+	 */
+	public static SequencePositionIndex get(String sModule) {
+		return get(MongoTemplateManager.get(sModule));
+	}
+
+	/**
+	 * Gets a database's position index, building or refreshing it if needed.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @return the index
+	 */
+	public static SequencePositionIndex get(MongoTemplate mongoTemplate) {
+		SequencePositionIndex index = indexesByDatabase.computeIfAbsent(mongoTemplate.getDb().getName(), db -> new SequencePositionIndex(mongoTemplate));
+		if (index.nRefreshedGeneration != index.nStaleGeneration.get())
+			index.refresh();	// also waits for any refresh in progress
+		return index;
+	}
+
+	/**
+	 * Flags a database's position index as needing a refresh, which will happen next time it is requested. To be called once variants have been imported or removed.
+	 *
+	 * @param mongoTemplate the mongo template
+	 */
+	public static void markStale(MongoTemplate mongoTemplate) {
+		SequencePositionIndex index = indexesByDatabase.get(mongoTemplate.getDb().getName());
+		if (index != null)
+			index.nStaleGeneration.incrementAndGet();
+	}
+
+	/**
+	 * Gets the indexed sequences.
+	 *
+	 * @return the sequences
+	 */
+	public Set<String> getSequences() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Gets the number of positioned variants on a sequence.
+	 *
+	 * @param sSequence the sequence
+	 * @return the variant count
+	 */
+	public int getVariantCount(String sSequence) {
+		SequenceEntry entry = entries.get(sSequence);
+		return entry == null ? 0 : entry.size();
+	}
+
+	/**
+	 * Counts the variants starting within a region.
+	 *
+	 * @param sSequence the sequence
+	 * @param nStart the region start (inclusive)
+	 * @param nEnd the region end (inclusive, Long.MAX_VALUE for the end of the sequence)
+	 * @return the variant count
+	 */
+	public int countVariants(String sSequence, long nStart, long nEnd) {
+		SequenceEntry entry = entries.get(sSequence);
+		if (entry == null)
+			return 0;
+		int[] range = entry.range(nStart, nEnd);
+		return Math.max(0, range[1] - range[0]);
+	}
+
+	/**
+	 * Gets the IDs of the variants starting within a region, sorted by position.
+	 *
+	 * @param sSequence the sequence
+	 * @param nStart the region start (inclusive)
+	 * @param nEnd the region end (inclusive, Long.MAX_VALUE for the end of the sequence)
+	 * @return the variant IDs
+	 */
+	public List<String> getVariantIds(String sSequence, long nStart, long nEnd) {
+		SequenceEntry entry = entries.get(sSequence);
+		if (entry == null)
+			return new ArrayList<>();
+		int[] range = entry.range(nStart, nEnd);
+		List<String> result = new ArrayList<>(Math.max(0, range[1] - range[0]));
+		for (int i=range[0]; i<range[1]; i++)
+			result.add(entry.getId(i));
+		return result;
+	}
+
+	/**
+	 * Loads the persisted index if not done yet, then rebuilds sequences whose variant count, position sum or ID fingerprint differs from the database's, and persists the result if anything changed.
+	 * Readers calling this while another thread is refreshing wait for it to complete. Imports finishing during the refresh trigger another one.
+	 */
+	synchronized private void refresh() {
+		long nGeneration = nStaleGeneration.get();
+		if (nRefreshedGeneration == nGeneration)
+			return;	// refreshed by another thread in the meantime
+
+		long before = System.currentTimeMillis();
+		Map<String, SequenceEntry> currentEntries = entries;
+		if (currentEntries.isEmpty())
+			currentEntries = load();
+
+		MongoCollection<Document> variantColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class));
+		String seqPath = VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE, startPath = VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE;
+		List<Document> pipeline = Arrays.asList(
+			new Document("$match", new Document(seqPath, new Document("$exists", true)).append(startPath, new Document("$exists", true))),
+			new Document("$group", new Document("_id", "$" + seqPath).append("n", new Document("$sum", 1)).append("s", new Document("$sum", "$" + startPath))
+				.append("b", new Document("$sum", new Document("$strLenBytes", new Document("$toString", "$_id")))).append("f", new Document("$min", "$_id")).append("l", new Document("$max", "$_id")))
+		);
+		HashMap<String, SequenceEntry> newEntries = new HashMap<>();
+		List<String> sequencesToRebuild = new ArrayList<>();
+		for (Document seqStats : variantColl.aggregate(pipeline).allowDiskUse(true)) {
+			String sSequence = seqStats.get("_id").toString();
+			SequenceEntry entry = currentEntries.get(sSequence);
+			if (entry != null && entry.matches(seqStats))
+				newEntries.put(sSequence, entry);
+			else
+				sequencesToRebuild.add(sSequence);
+		}
+
+		if (sequencesToRebuild.isEmpty() && newEntries.size() == currentEntries.size()) {
+			entries = Collections.unmodifiableMap(newEntries);
+			nRefreshedGeneration = nGeneration;
+			return;
+		}
+
+		if (!sequencesToRebuild.isEmpty())
+			newEntries.putAll(build(variantColl, sequencesToRebuild, seqPath, startPath));
+		entries = Collections.unmodifiableMap(newEntries);
+		nRefreshedGeneration = nGeneration;
+		LOG.info("Position index for " + mongoTemplate.getDb().getName() + " refreshed in " + (System.currentTimeMillis() - before) + "ms (" + sequencesToRebuild.size() + " sequence(s) rebuilt out of " + newEntries.size() + ")");
+		persist(newEntries);
+	}
+
+	/**
+	 * Builds entries for the given sequences, in a single pass over the variants.
+	 */
+	private Map<String, SequenceEntry> build(MongoCollection<Document> variantColl, List<String> sequences, String seqPath, String startPath) {
+		HashMap<String, List<String>> idsBySeq = new HashMap<>();
+		HashMap<String, List<Long>> startsBySeq = new HashMap<>();
+		Document query = new Document(seqPath, new Document("$in", sequences)).append(startPath, new Document("$exists", true));
+		try (MongoCursor<Document> cursor = variantColl.find(query).projection(new Document(seqPath, 1).append(startPath, 1)).batchSize(10000).iterator()) {
+			while (cursor.hasNext()) {
+				Document variant = cursor.next();
+				Document rp = (Document) variant.get(VariantData.FIELDNAME_REFERENCE_POSITION);
+				String sSequence = rp.get(ReferencePosition.FIELDNAME_SEQUENCE).toString();
+				idsBySeq.computeIfAbsent(sSequence, k -> new ArrayList<>()).add(variant.get("_id").toString());
+				startsBySeq.computeIfAbsent(sSequence, k -> new ArrayList<>()).add(((Number) rp.get(ReferencePosition.FIELDNAME_START_SITE)).longValue());
+			}
+		}
+
+		HashMap<String, SequenceEntry> result = new HashMap<>();
+		for (String sSequence : idsBySeq.keySet()) {
+			List<String> ids = idsBySeq.get(sSequence);
+			List<Long> starts = startsBySeq.get(sSequence);
+			Integer[] order = new Integer[ids.size()];
+			for (int i=0; i<order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, Comparator.comparingLong(starts::get));
+
+			long[] sortedStarts = new long[order.length];
+			int[] idOffsets = new int[order.length + 1];
+			byte[][] idBytes = new byte[order.length][];
+			long nPositionSum = 0;
+			int nMinIdIndex = 0, nMaxIdIndex = 0;
+			for (int i=0; i<order.length; i++) {
+				sortedStarts[i] = starts.get(order[i]);
+				nPositionSum += sortedStarts[i];
+				idBytes[i] = ids.get(order[i]).getBytes(StandardCharsets.UTF_8);
+				idOffsets[i + 1] = idOffsets[i] + idBytes[i].length;
+				if (compareUnsigned(idBytes[i], idBytes[nMinIdIndex]) < 0)
+					nMinIdIndex = i;
+				if (compareUnsigned(idBytes[i], idBytes[nMaxIdIndex]) > 0)
+					nMaxIdIndex = i;
+			}
+			ByteBuffer allIdBytes = ByteBuffer.allocate(idOffsets[order.length]);
+			for (byte[] bytes : idBytes)
+				allIdBytes.put(bytes);
+			allIdBytes.flip();
+			result.put(sSequence, new SequenceEntry(nPositionSum, nMinIdIndex, nMaxIdIndex, LongBuffer.wrap(sortedStarts), IntBuffer.wrap(idOffsets), allIdBytes));
+		}
+		return result;
+	}
+
+	/**
+	 * Compares byte arrays the way MongoDB compares strings by default, i.e. as unsigned bytes.
+	 */
+	private static int compareUnsigned(byte[] a, byte[] b) {
+		for (int i=0; i<Math.min(a.length, b.length); i++)
+			if (a[i] != b[i])
+				return (a[i] & 0xff) - (b[i] & 0xff);
+		return a.length - b.length;
+	}
+
+	private File getFile() {
+		File folder = persistenceFolder;
+		return folder == null ? null : new File(folder, mongoTemplate.getDb().getName() + FILE_EXTENSION);
+	}
+
+	/**
+	 * Writes entries to disk. Layout: magic, version, sequence count, then for each sequence its name, variant count, position sum, min and max ID indexes, ID byte count, start positions, ID offsets and ID bytes.
+	 * The file is written aside and moved over the previous one, whose mappings remain valid.
+	 */
+	private void persist(Map<String, SequenceEntry> entriesToPersist) {
+		File file = getFile();
+		if (file == null)
+			return;
+
+		File tempFile = new File(file.getParentFile(), file.getName() + "." + System.nanoTime() + ".tmp");
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				writeFully(channel, (ByteBuffer) ByteBuffer.allocate(12).putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(entriesToPersist.size()).flip());
+				for (Map.Entry<String, SequenceEntry> mapEntry : entriesToPersist.entrySet()) {
+					SequenceEntry entry = mapEntry.getValue();
+					byte[] name = mapEntry.getKey().getBytes(StandardCharsets.UTF_8);
+					int nCount = entry.size(), nIdByteCount = entry.idOffsets.get(nCount);
+					writeFully(channel, (ByteBuffer) ByteBuffer.allocate(4 + name.length + 24).putInt(name.length).put(name).putInt(nCount).putLong(entry.nPositionSum).putInt(entry.nMinIdIndex).putInt(entry.nMaxIdIndex).putInt(nIdByteCount).flip());
+
+					ByteBuffer block = ByteBuffer.allocate(WRITE_BLOCK_SIZE);
+					LongBuffer starts = entry.starts.duplicate();
+					starts.rewind();
+					while (starts.hasRemaining()) {
+						block.clear();
+						int nLongs = Math.min(starts.remaining(), WRITE_BLOCK_SIZE / 8);
+						for (int j=0; j<nLongs; j++)
+							block.putLong(starts.get());
+						block.flip();
+						writeFully(channel, block);
+					}
+					IntBuffer idOffsets = entry.idOffsets.duplicate();
+					idOffsets.rewind();
+					while (idOffsets.hasRemaining()) {
+						block.clear();
+						int nInts = Math.min(idOffsets.remaining(), WRITE_BLOCK_SIZE / 4);
+						for (int j=0; j<nInts; j++)
+							block.putInt(idOffsets.get());
+						block.flip();
+						writeFully(channel, block);
+					}
+					ByteBuffer idBytes = entry.idBytes.duplicate();
+					idBytes.rewind();
+					writeFully(channel, idBytes);
+				}
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			LOG.warn("Unable to persist position index to " + file.getAbsolutePath(), e);
+			tempFile.delete();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Maps a previously persisted index, if any (an unreadable file is ignored, leading to a full rebuild).
+	 */
+	private Map<String, SequenceEntry> load() {
+		File file = getFile();
+		if (file == null || !file.isFile())
+			return Collections.emptyMap();
+
+		HashMap<String, SequenceEntry> result = new HashMap<>();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedFile mappedFile = new MappedFile(channel);
+			ByteBuffer header = mappedFile.slice(0, 12);
+			if (header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION) {
+				LOG.warn("Ignoring position index file with unsupported format: " + file.getAbsolutePath());
+				return result;
+			}
+			int nSequenceCount = header.getInt();
+			long nPosition = 12;
+			for (int i=0; i<nSequenceCount; i++) {
+				ByteBuffer nameLength = mappedFile.slice(nPosition, 4);
+				int nNameLength = nameLength.getInt();
+				ByteBuffer seqHeader = mappedFile.slice(nPosition + 4, nNameLength + 24);
+				byte[] name = new byte[nNameLength];
+				seqHeader.get(name);
+				int nCount = seqHeader.getInt();
+				long nPositionSum = seqHeader.getLong();
+				int nMinIdIndex = seqHeader.getInt(), nMaxIdIndex = seqHeader.getInt();
+				int nIdByteCount = seqHeader.getInt();
+				nPosition += 4 + nNameLength + 24;
+
+				LongBuffer starts = mappedFile.slice(nPosition, nCount * 8L).asLongBuffer();
+				nPosition += nCount * 8L;
+				IntBuffer idOffsets = mappedFile.slice(nPosition, (nCount + 1) * 4L).asIntBuffer();
+				nPosition += (nCount + 1) * 4L;
+				ByteBuffer idBytes = mappedFile.slice(nPosition, nIdByteCount);
+				nPosition += nIdByteCount;
+				result.put(new String(name, StandardCharsets.UTF_8), new SequenceEntry(nPositionSum, nMinIdIndex, nMaxIdIndex, starts, idOffsets, idBytes));
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			LOG.warn("Ignoring unreadable position index file " + file.getAbsolutePath(), e);
+			return Collections.emptyMap();
+		}
+		LOG.debug("Position index for " + mongoTemplate.getDb().getName() + " mapped from " + file.getAbsolutePath());
+		return result;
+	}
+}
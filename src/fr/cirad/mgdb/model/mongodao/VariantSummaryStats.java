@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongodao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.tools.mongo.IndexBuildCoordinator;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Optional per-variant, per-project summary statistics (call rate, allele frequency, heterozygosity), so that MAF and missing data filters may be evaluated as index range scans.
+ * Importers feed per-run genotype counts while persisting runs (see countRuns). Once an import is over, project-level values are derived from the counts of all runs (see updateProjectStats). Removing a run only removes its counts, so statistics never need recomputing from genotypes.
+ */
+public class VariantSummaryStats
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(VariantSummaryStats.class);
+
+	/** The Constant COLLECTION_NAME. */
+	static final public String COLLECTION_NAME = "variantSummaryStats";
+
+	/** The Constant SECTION_RUN_COUNTS. */
+	static final public String SECTION_RUN_COUNTS = "r";
+
+	/** The Constant FIELDNAME_CALLED. */
+	static final public String FIELDNAME_CALLED = "c";
+
+	/** The Constant FIELDNAME_HETEROZYGOUS. */
+	static final public String FIELDNAME_HETEROZYGOUS = "he";
+
+	/** The Constant FIELDNAME_HOMOZYGOUS_ALT. */
+	static final public String FIELDNAME_HOMOZYGOUS_ALT = "ha";
+
+	/** The Constant FIELDNAME_ALT_ALLELES. */
+	static final public String FIELDNAME_ALT_ALLELES = "aa";
+
+	/** The Constant FIELDNAME_TOTAL_ALLELES. */
+	static final public String FIELDNAME_TOTAL_ALLELES = "ta";
+
+	/** The Constant FIELDNAME_CALL_RATE. */
+	static final public String FIELDNAME_CALL_RATE = "cr";
+
+	/** The Constant FIELDNAME_ALT_ALLELE_FREQUENCY. */
+	static final public String FIELDNAME_ALT_ALLELE_FREQUENCY = "af";
+
+	/** The Constant FIELDNAME_MAF. */
+	static final public String FIELDNAME_MAF = "maf";
+
+	/** The Constant FIELDNAME_HETEROZYGOSITY. */
+	static final public String FIELDNAME_HETEROZYGOSITY = "h";
+
+	static private volatile boolean fEnabled = false;
+
+	/**
+	 * Sets whether importers should maintain summary statistics.
+	 *
+	 * @param fEnable whether to enable them
+	 */
+	public static void setEnabled(boolean fEnable) {
+		fEnabled = fEnable;
+	}
+
+	/**
+	 * Checks whether importers should maintain summary statistics.
+	 *
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled() {
+		return fEnabled;
+	}
+
+	/** Run names are used as keys, thus need their dots escaped the same way Spring does for map keys */
+	private static String getRunKey(String sRun) {
+		return sRun.replaceAll("\\.", MongoTemplateManager.DOT_REPLACEMENT_STRING);
+	}
+
+	/**
+	 * Counts called, heterozygous and homozygous-alternate genotypes, along with alleles, in each of the given runs, and stores those counts.
+	 * Counts are computed from the genotypes already in memory, so this costs one unordered bulk write per batch of runs.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param runs the runs being persisted
+	 */
+	public static void countRuns(MongoTemplate mongoTemplate, Collection<VariantRunData> runs) {
+		List<WriteModel<Document>> updates = new ArrayList<>(runs.size());
+		for (VariantRunData vrd : runs) {
+			int nCalled = 0, nHet = 0, nHomAlt = 0, nAltAlleles = 0, nTotalAlleles = 0;
+			for (SampleGenotype sg : vrd.getSampleGenotypes().values()) {
+				String[] alleles = GenotypeCodes.splitAlleles(sg.getCode());
+				if (alleles == null)
+					continue;
+
+				nCalled++;
+				for (String allele : alleles)
+					if (!GenotypeCodes.isReference(allele))
+						nAltAlleles++;
+				nTotalAlleles += alleles.length;
+				int nZygosity = GenotypeCodes.getZygosity(alleles);
+				if (nZygosity == GenotypeCodes.HETEROZYGOUS)
+					nHet++;
+				else if (nZygosity == GenotypeCodes.HOMOZYGOUS_ALT)
+					nHomAlt++;
+			}
+
+			Document runCounts = new Document(FIELDNAME_CALLED, nCalled).append(FIELDNAME_HETEROZYGOUS, nHet).append(FIELDNAME_HOMOZYGOUS_ALT, nHomAlt).append(FIELDNAME_ALT_ALLELES, nAltAlleles).append(FIELDNAME_TOTAL_ALLELES, nTotalAlleles);
+			Document id = new Document(VariantRunDataId.FIELDNAME_PROJECT_ID, vrd.getId().getProjectId()).append(VariantRunDataId.FIELDNAME_VARIANT_ID, vrd.getId().getVariantId());
+			updates.add(new UpdateOneModel<Document>(new Document("_id", id), new Document("$set", new Document(SECTION_RUN_COUNTS + "." + getRunKey(vrd.getId().getRunName()), runCounts)), new UpdateOptions().upsert(true)));
+		}
+		if (!updates.isEmpty())
+			mongoTemplate.getCollection(COLLECTION_NAME).bulkWrite(updates, new BulkWriteOptions().ordered(false));
+	}
+
+	/**
+	 * Derives a project's statistics from its runs' counts, and makes sure they are indexed. To be called once an import is over.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 */
+	public static void updateProjectStats(MongoTemplate mongoTemplate, int nProjectId) {
+		long before = System.currentTimeMillis();
+		MongoCollection<Document> coll = mongoTemplate.getCollection(COLLECTION_NAME);
+		Document projectQuery = new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId);
+		coll.deleteMany(new Document(projectQuery).append(SECTION_RUN_COUNTS, new Document()));	// all runs were removed
+
+		long nSampleCount = mongoTemplate.getCollection(mongoTemplate.getCollectionName(GenotypingSample.class)).countDocuments(new Document(GenotypingSample.FIELDNAME_PROJECT_ID, nProjectId));
+		if (nSampleCount == 0) {
+			coll.deleteMany(projectQuery);
+			return;
+		}
+
+		String runs = "$_runs.v.";
+		List<Document> pipeline = Arrays.asList(
+			new Document("$set", new Document("_runs", new Document("$objectToArray", "$" + SECTION_RUN_COUNTS))),
+			new Document("$set", new Document(FIELDNAME_CALLED, new Document("$sum", runs + FIELDNAME_CALLED))
+					.append(FIELDNAME_HETEROZYGOUS, new Document("$sum", runs + FIELDNAME_HETEROZYGOUS))
+					.append(FIELDNAME_HOMOZYGOUS_ALT, new Document("$sum", runs + FIELDNAME_HOMOZYGOUS_ALT))
+					.append(FIELDNAME_ALT_ALLELES, new Document("$sum", runs + FIELDNAME_ALT_ALLELES))
+					.append(FIELDNAME_TOTAL_ALLELES, new Document("$sum", runs + FIELDNAME_TOTAL_ALLELES))),
+			new Document("$set", new Document(FIELDNAME_CALL_RATE, new Document("$divide", Arrays.asList("$" + FIELDNAME_CALLED, nSampleCount)))
+					.append(FIELDNAME_ALT_ALLELE_FREQUENCY, new Document("$cond", Arrays.asList(new Document("$gt", Arrays.asList("$" + FIELDNAME_TOTAL_ALLELES, 0)), new Document("$divide", Arrays.asList("$" + FIELDNAME_ALT_ALLELES, "$" + FIELDNAME_TOTAL_ALLELES)), null)))
+					.append(FIELDNAME_HETEROZYGOSITY, new Document("$cond", Arrays.asList(new Document("$gt", Arrays.asList("$" + FIELDNAME_CALLED, 0)), new Document("$divide", Arrays.asList("$" + FIELDNAME_HETEROZYGOUS, "$" + FIELDNAME_CALLED)), null)))),
+			new Document("$set", new Document(FIELDNAME_MAF, new Document("$cond", Arrays.asList(new Document("$eq", Arrays.asList("$" + FIELDNAME_ALT_ALLELE_FREQUENCY, null)), null, new Document("$min", Arrays.asList("$" + FIELDNAME_ALT_ALLELE_FREQUENCY, new Document("$subtract", Arrays.asList(1, "$" + FIELDNAME_ALT_ALLELE_FREQUENCY)))))))
+					.append("_runs", "$$REMOVE"))
+		);
+		long nUpdated = coll.updateMany(projectQuery, pipeline).getModifiedCount();
+
+		String projectIdPath = "_id." + VariantRunDataId.FIELDNAME_PROJECT_ID;
+		for (String field : Arrays.asList(FIELDNAME_MAF, FIELDNAME_CALL_RATE, FIELDNAME_HETEROZYGOSITY))
+			IndexBuildCoordinator.submit(coll, new Document(projectIdPath, 1).append(field, 1), null);
+		LOG.debug("Summary statistics updated for " + nUpdated + " variants of project " + nProjectId + " in " + (System.currentTimeMillis() - before) + "ms");
+	}
+
+	/**
+	 * Removes a run's counts, to be called before the run's data is removed. Project-level values are then outdated until updateProjectStats is called.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 * @param sRun the run
+	 */
+	public static void removeRun(MongoTemplate mongoTemplate, int nProjectId, String sRun) {
+		String runCountsPath = SECTION_RUN_COUNTS + "." + getRunKey(sRun);
+		mongoTemplate.getCollection(COLLECTION_NAME).updateMany(new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId).append(runCountsPath, new Document("$exists", true)), new Document("$unset", new Document(runCountsPath, "")));
+	}
+
+	/**
+	 * Removes a project's statistics, to be called before the project's data is removed.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 */
+	public static void removeProject(MongoTemplate mongoTemplate, int nProjectId) {
+		mongoTemplate.getCollection(COLLECTION_NAME).deleteMany(new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId));
+	}
+
+	/**
+	 * Builds a query on the statistics collection, for a project's variants matching the given bounds.
+	 *
+	 * @param nProjectId the project ID
+	 * @param minMaf the minimum minor allele frequency (null for no bound)
+	 * @param maxMaf the maximum minor allele frequency (null for no bound)
+	 * @param maxMissingDataRatio the maximum proportion of the project's samples without a genotype (null for no bound)
+	 * @param maxHeterozygosity the maximum proportion of heterozygous genotypes among called ones (null for no bound)
+	 * @return the query
+	 */
+	public static Document getFilterQuery(int nProjectId, Float minMaf, Float maxMaf, Float maxMissingDataRatio, Float maxHeterozygosity) {
+		Document query = new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, nProjectId);
+		if (minMaf != null || maxMaf != null) {
+			Document mafBounds = new Document();
+			if (minMaf != null)
+				mafBounds.append("$gte", minMaf.doubleValue());
+			if (maxMaf != null)
+				mafBounds.append("$lte", maxMaf.doubleValue());
+			query.append(FIELDNAME_MAF, mafBounds);
+		}
+		if (maxMissingDataRatio != null)
+			query.append(FIELDNAME_CALL_RATE, new Document("$gte", 1 - maxMissingDataRatio.doubleValue()));
+		if (maxHeterozygosity != null)
+			query.append(FIELDNAME_HETEROZYGOSITY, new Document("$lte", maxHeterozygosity.doubleValue()));
+		return query;
+	}
+
+	/**
+	 * Finds a project's variants matching the given bounds (see getFilterQuery).
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nProjectId the project ID
+	 * @param minMaf the minimum minor allele frequency (null for no bound)
+	 * @param maxMaf the maximum minor allele frequency (null for no bound)
+	 * @param maxMissingDataRatio the maximum proportion of the project's samples without a genotype (null for no bound)
+	 * @param maxHeterozygosity the maximum proportion of heterozygous genotypes among called ones (null for no bound)
+	 * @return the matching variant IDs
+	 */
+	public static List<String> findVariants(MongoTemplate mongoTemplate, int nProjectId, Float minMaf, Float maxMaf, Float maxMissingDataRatio, Float maxHeterozygosity) {
+		List<String> result = new ArrayList<>();
+		try (MongoCursor<Document> cursor = mongoTemplate.getCollection(COLLECTION_NAME).find(getFilterQuery(nProjectId, minMaf, maxMaf, maxMissingDataRatio, maxHeterozygosity)).projection(new Document("_id", 1)).batchSize(10000).iterator()) {
+			while (cursor.hasNext())
+				result.add(((Document) cursor.next().get("_id")).getString(VariantRunDataId.FIELDNAME_VARIANT_ID));
+		}
+		return result;
+	}
+}
@@ -16,23 +16,46 @@
  *******************************************************************************/
 package fr.cirad.tools;
 
-import java.nio.CharBuffer;
 import java.text.Collator;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static java.nio.CharBuffer.wrap;
 import static java.util.Objects.requireNonNull;
 
+/**
+ * Compares strings by splitting them into numerical and non-numerical parts, numerical ones being compared as numbers (leading zeros ignored).
+ * Strings are walked directly, so that comparing (without collator) allocates nothing. A key cache may be enabled for comparators repeatedly fed with the same values (e.g. sequence names), so that their splitting is only computed once.
+ */
 public class AlphaNumericComparator<T> implements Comparator<T> {
 
     private final Collator collator;
 
+    /** Cached split positions, by compared value (null if caching is disabled) */
+    private final ConcurrentHashMap<String, int[]> keyCache;
+
+    private final int nMaxCachedKeys;
+
     /**
      * Creates a comparator that will use lexicographical sorting of the non-numerical parts of the compared strings.
      */
     public AlphaNumericComparator() {
         collator = null;
+        keyCache = null;
+        nMaxCachedKeys = 0;
+    }
+
+    /**
+     * Creates a comparator that will use lexicographical sorting of the non-numerical parts of the compared strings, and memoize how compared values split into parts.
+     *
+     * @param nMaxCachedKeys
+     *         the maximum number of values to keep split positions for (the cache is emptied when reaching it)
+     */
+    public AlphaNumericComparator(final int nMaxCachedKeys) {
+        collator = null;
+        keyCache = nMaxCachedKeys > 0 ? new ConcurrentHashMap<>() : null;
+        this.nMaxCachedKeys = nMaxCachedKeys;
     }
 
     /**
@@ -53,90 +76,121 @@ public class AlphaNumericComparator<T> implements Comparator<T> {
      */
     public AlphaNumericComparator(final Collator collator) {
         this.collator = requireNonNull(collator);
+        keyCache = null;
+        nMaxCachedKeys = 0;
     }
 
     @Override
     public int compare(T t1, T t2) {
-    	String s1 = t1.toString();
-    	String s2 = t2.toString();
-        final CharBuffer b1 = wrap(s1.toCharArray());
-        final CharBuffer b2 = wrap(s2.toCharArray());
-
-        while (b1.hasRemaining() && b2.hasRemaining()) {
-            moveWindow(b1);
-            moveWindow(b2);
-
-            final int result = compare(b1, b2);
+        final String s1 = t1.toString();
+        final String s2 = t2.toString();
+        if (keyCache != null)
+            return compare(s1, getKey(s1), s2, getKey(s2));
+
+        int pos1 = 0, pos2 = 0;
+        while (pos1 < s1.length() && pos2 < s2.length()) {
+            final int end1 = partEnd(s1, pos1), end2 = partEnd(s2, pos2);
+            final int result = compareParts(s1, partStart(s1, pos1, end1), end1, s2, partStart(s2, pos2, end2), end2);
             if (result != 0) {
                 return result;
             }
-
-            prepareForNextIteration(b1);
-            prepareForNextIteration(b2);
+            pos1 = end1;
+            pos2 = end2;
         }
 
         return s1.length() - s2.length();
     }
 
-    private void moveWindow(final CharBuffer buffer) {
-        int start = buffer.position();
-        int end = buffer.position();
-        final boolean isNumerical = isDigit(buffer.get(start));
-        while (end < buffer.limit() && isNumerical == isDigit(buffer.get(end))) {
-            ++end;
-            if (isNumerical && (start + 1 < buffer.limit()) && isZero(buffer.get(start)) && isDigit(buffer.get(end))) {
-                ++start; // trim leading zeros
+    /**
+     * Compares two strings using their pre-computed split positions.
+     */
+    private int compare(final String s1, final int[] key1, final String s2, final int[] key2) {
+        for (int i = 0; i < key1.length && i < key2.length; i += 2) {
+            final int result = compareParts(s1, key1[i], key1[i + 1], s2, key2[i], key2[i + 1]);
+            if (result != 0) {
+                return result;
             }
         }
-
-        buffer.position(start)
-              .limit(end);
+        return s1.length() - s2.length();
     }
 
-    private int compare(final CharBuffer b1, final CharBuffer b2) {
-        if (isNumerical(b1) && isNumerical(b2)) {
-            return compareNumerically(b1, b2);
+    /**
+     * Gets a value's split positions (start and end of each part, leading zeros excluded), computing them only the first time.
+     */
+    private int[] getKey(final String s) {
+        int[] key = keyCache.get(s);
+        if (key == null) {
+            int[] positions = new int[8];
+            int nCount = 0;
+            for (int pos = 0; pos < s.length(); ) {
+                final int end = partEnd(s, pos);
+                if (nCount + 2 > positions.length) {
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                }
+                positions[nCount++] = partStart(s, pos, end);
+                positions[nCount++] = end;
+                pos = end;
+            }
+            key = Arrays.copyOf(positions, nCount);
+            if (keyCache.size() >= nMaxCachedKeys) {
+                keyCache.clear();
+            }
+            keyCache.put(s, key);
         }
-
-        return compareAsStrings(b1, b2);
+        return key;
     }
 
-    private boolean isNumerical(final CharBuffer buffer) {
-        return isDigit(buffer.charAt(0));
+    /**
+     * Finds where the part starting at a given position ends, i.e. the position of the first char whose numerical status differs.
+     */
+    private int partEnd(final String s, final int start) {
+        final boolean isNumerical = isDigit(s.charAt(start));
+        int end = start + 1;
+        while (end < s.length() && isNumerical == isDigit(s.charAt(end))) {
+            ++end;
+        }
+        return end;
     }
 
-    private boolean isDigit(final char c) {
-        if (collator == null) {
-            final int intValue = (int) c;
-            return intValue >= 48 && intValue <= 57;
+    /**
+     * Skips a numerical part's leading zeros, keeping at least one digit.
+     */
+    private int partStart(final String s, int start, final int end) {
+        if (isDigit(s.charAt(start))) {
+            while (start + 1 < end && isZero(s.charAt(start))) {
+                ++start;
+            }
         }
-        return Character.isDigit(c);
+        return start;
     }
 
-    private int compareNumerically(final CharBuffer b1, final CharBuffer b2) {
-        final int diff = b1.length() - b2.length();
-        if (diff != 0) {
-            return diff;
+    private int compareParts(final String s1, final int start1, final int end1, final String s2, final int start2, final int end2) {
+        final boolean isNumerical1 = isDigit(s1.charAt(start1)), isNumerical2 = isDigit(s2.charAt(start2));
+        if (isNumerical1 && isNumerical2) {
+            final int diff = (end1 - start1) - (end2 - start2);
+            if (diff != 0) {
+                return diff;
+            }
         }
-        for (int i = 0; i < b1.remaining() && i < b2.remaining(); ++i) {
-            final int result = Character.compare(b1.charAt(i), b2.charAt(i));
+        else if (collator != null) {
+            return collator.compare(s1.substring(start1, end1), s2.substring(start2, end2));
+        }
+
+        final int len1 = end1 - start1, len2 = end2 - start2;
+        for (int i = 0; i < len1 && i < len2; ++i) {
+            final int result = s1.charAt(start1 + i) - s2.charAt(start2 + i);
             if (result != 0) {
                 return result;
             }
         }
-        return 0;
+        return len1 - len2;	// 0 for numerical parts, which have the same length at this point
     }
 
-    private void prepareForNextIteration(final CharBuffer buffer) {
-        buffer.position(buffer.limit())
-              .limit(buffer.capacity());
-    }
-
-    private int compareAsStrings(final CharBuffer b1, final CharBuffer b2) {
-        if (collator != null) {
-            return collator.compare(b1.toString(), b2.toString());
+    private boolean isDigit(final char c) {
+        if (collator == null) {
+            return c >= '0' && c <= '9';
         }
-        return b1.toString().compareTo(b2.toString());
+        return Character.isDigit(c);
     }
 
     private boolean isZero(final char c) {
@@ -65,6 +65,15 @@ public class AppConfig {
         return get("dbServerCleanup");
     }
 
+    /**
+     * Folder position indexes are persisted to (see SequencePositionIndex).
+     *
+     * @return the folder path, an empty string to disable persistence, or null to use the default folder
+     */
+    public String positionIndexFolder() {
+        return get("positionIndexFolder");
+    }
+
     public String get(String sPropertyName) {
         return props.containsKey(sPropertyName) ? props.getString(sPropertyName) : null;
     }
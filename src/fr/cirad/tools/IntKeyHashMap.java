@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map with primitive int keys, stored in an open-addressing table (linear probing) made of two parallel arrays, so that neither keys nor entries get boxed.
+ * It implements Map&lt;Integer, V&gt; for compatibility (e.g. with Spring Data mapping), but hot code should rather use the int-based methods and forEachEntry(EntryConsumer), which allocate nothing.
+ * Removing through the iterators of the Map views is not supported.
+ *
+ * @param <V> the value type
+ */
+public class IntKeyHashMap<V> extends AbstractMap<Integer, V>
+{
+	/** The Constant DEFAULT_CAPACITY. */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/** Marks slots holding a null value, so that only empty slots contain null */
+	private static final Object NULL_VALUE = new Object();
+
+	/**
+	 * Receives map entries during primitive iteration.
+	 *
+	 * @param <V> the value type
+	 */
+	@FunctionalInterface
+	public interface EntryConsumer<V>
+	{
+		void accept(int key, V value);
+	}
+
+	private int[] keys;
+
+	private Object[] values;
+
+	private int size = 0;
+
+	/**
+	 * Instantiates a new empty map.
+	 */
+	public IntKeyHashMap() {
+		this(DEFAULT_CAPACITY / 2);
+	}
+
+	/**
+	 * Instantiates a new empty map sized for a given number of entries.
+	 *
+	 * @param nExpectedSize the number of entries expected to be put in it
+	 */
+	public IntKeyHashMap(int nExpectedSize) {
+		int nCapacity = DEFAULT_CAPACITY;
+		while (nCapacity < nExpectedSize * 2 && nCapacity < 1 << 30)
+			nCapacity <<= 1;
+		keys = new int[nCapacity];
+		values = new Object[nCapacity];
+	}
+
+	private static int slot(int key, int nMask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & nMask;
+	}
+
+	/**
+	 * Finds the slot holding a key, or the empty slot where it would be inserted.
+	 */
+	private int findSlot(int key) {
+		int nMask = keys.length - 1, i = slot(key, nMask);
+		while (values[i] != null && keys[i] != key)
+			i = (i + 1) & nMask;
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V unmask(Object value) {
+		return value == NULL_VALUE ? null : (V) value;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the value mapped to a key.
+	 *
+	 * @param key the key
+	 * @return the value (null if none)
+	 */
+	public V get(int key) {
+		return unmask(values[findSlot(key)]);
+	}
+
+	/**
+	 * Checks whether a key is mapped.
+	 *
+	 * @param key the key
+	 * @return true, if it is
+	 */
+	public boolean containsKey(int key) {
+		return values[findSlot(key)] != null;
+	}
+
+	/**
+	 * Maps a value to a key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the value previously mapped to the key
+	 */
+	public V put(int key, V value) {
+		int i = findSlot(key);
+		Object previous = values[i];
+		keys[i] = key;
+		values[i] = value == null ? NULL_VALUE : value;
+		if (previous != null)
+			return unmask(previous);
+
+		if (++size * 4 > keys.length * 3)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Removes a key's mapping.
+	 *
+	 * @param key the key
+	 * @return the value that was mapped to it
+	 */
+	public V remove(int key) {
+		int i = findSlot(key);
+		Object previous = values[i];
+		if (previous == null)
+			return null;
+
+		// shift back subsequent entries of the same probe run so that none ends up unreachable
+		int nMask = keys.length - 1;
+		for (int j = (i + 1) & nMask; values[j] != null; j = (j + 1) & nMask) {
+			int nHome = slot(keys[j], nMask);
+			if (((j - nHome) & nMask) >= ((j - i) & nMask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+		size--;
+		return unmask(previous);
+	}
+
+	private void resize(int nCapacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[nCapacity];
+		values = new Object[nCapacity];
+		for (int i = 0; i < oldValues.length; i++)
+			if (oldValues[i] != null) {
+				int j = findSlot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+	}
+
+	/**
+	 * Passes each entry to a consumer, without any allocation.
+	 *
+	 * @param consumer the consumer
+	 */
+	public void forEachEntry(EntryConsumer<? super V> consumer) {
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				consumer.accept(keys[i], unmask(values[i]));
+	}
+
+	/**
+	 * Gets the keys.
+	 *
+	 * @return the keys, sorted in ascending order
+	 */
+	public int[] keyArray() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				result[n++] = keys[i];
+		Arrays.sort(result);
+		return result;
+	}
+
+	@Override
+	public V get(Object key) {
+		return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Integer && containsKey(((Integer) key).intValue());
+	}
+
+	@Override
+	public V put(Integer key, V value) {
+		return put(key.intValue(), value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return key instanceof Integer ? remove(((Integer) key).intValue()) : null;
+	}
+
+	@Override
+	public void putAll(Map<? extends Integer, ? extends V> m) {
+		for (Map.Entry<? extends Integer, ? extends V> entry : m.entrySet())
+			put(entry.getKey().intValue(), entry.getValue());
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Iterates over occupied slots.
+	 */
+	private abstract class SlotIterator<T> implements Iterator<T>
+	{
+		private int nextSlot = advance(0);
+
+		private int advance(int i) {
+			while (i < values.length && values[i] == null)
+				i++;
+			return i;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextSlot < values.length;
+		}
+
+		@Override
+		public T next() {
+			if (nextSlot >= values.length)
+				throw new NoSuchElementException();
+			int i = nextSlot;
+			nextSlot = advance(i + 1);
+			return get(i);
+		}
+
+		abstract T get(int nSlot);
+	}
+
+	@Override
+	public Set<Map.Entry<Integer, V>> entrySet() {
+		return new AbstractSet<Map.Entry<Integer, V>>() {
+			@Override
+			public Iterator<Map.Entry<Integer, V>> iterator() {
+				return new SlotIterator<Map.Entry<Integer, V>>() {
+					@Override
+					Map.Entry<Integer, V> get(int nSlot) {
+						return new AbstractMap.SimpleImmutableEntry<>(keys[nSlot], unmask(values[nSlot]));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new SlotIterator<V>() {
+					@Override
+					V get(int nSlot) {
+						return unmask(values[nSlot]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
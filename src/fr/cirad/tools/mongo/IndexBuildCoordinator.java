@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Builds indexes in the background on a bounded pool of threads, and keeps track of pending builds so that callers may detect or wait for index readiness (e.g. before running a query that relies on a given index for sorting).
+ * Submitting an index that is already being built returns the pending build instead of launching a new one.
+ */
+public class IndexBuildCoordinator
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(IndexBuildCoordinator.class);
+
+	/** Maximum number of indexes built at the same time */
+	static final public int MAX_CONCURRENT_BUILDS = 4;
+
+	static final private ExecutorService indexBuildExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_BUILDS, r -> {
+		Thread t = new Thread(r, "IndexBuilder");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Builds submitted and not yet complete, by namespace and index keys */
+	static final private ConcurrentHashMap<String, IndexBuild> pendingBuilds = new ConcurrentHashMap<>();
+
+	/**
+	 * An index build, submitted to the coordinator.
+	 */
+	static public class IndexBuild
+	{
+		private final MongoNamespace namespace;
+
+		private final String sKeys;
+
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		private IndexBuild(MongoNamespace namespace, String sKeys) {
+			this.namespace = namespace;
+			this.sKeys = sKeys;
+		}
+
+		/**
+		 * Gets the namespace of the collection the index is built on.
+		 *
+		 * @return the namespace
+		 */
+		public MongoNamespace getNamespace() {
+			return namespace;
+		}
+
+		/**
+		 * Gets the index keys, as JSON.
+		 *
+		 * @return the keys
+		 */
+		public String getKeys() {
+			return sKeys;
+		}
+
+		/**
+		 * Gets the future completing when the index is built.
+		 *
+		 * @return the future
+		 */
+		public CompletableFuture<Void> getFuture() {
+			return future;
+		}
+
+		@Override
+		public String toString() {
+			return sKeys + " on " + namespace;
+		}
+	}
+
+	/**
+	 * Submits an index for creation.
+	 *
+	 * @param coll the collection
+	 * @param keys the index keys
+	 * @param options the index options (may be null)
+	 * @return the future completing when the index is built
+	 */
+	public static CompletableFuture<Void> submit(MongoCollection<Document> coll, Bson keys, IndexOptions options) {
+		return submit(coll, keys, options, false);
+	}
+
+	/**
+	 * Submits an index for creation.
+	 *
+	 * @param coll the collection
+	 * @param keys the index keys
+	 * @param options the index options (may be null)
+	 * @param fDropExistingFirst whether an existing index with the same keys needs to be dropped beforehand (typically because its options are wrong)
+	 * @return the future completing when the index is built
+	 */
+	public static CompletableFuture<Void> submit(MongoCollection<Document> coll, Bson keys, IndexOptions options, boolean fDropExistingFirst) {
+		String sKeys = keys.toBsonDocument(BsonDocument.class, coll.getCodecRegistry()).toJson();
+		Level logLevel = coll.getNamespace().getCollectionName().startsWith(MongoTemplateManager.TEMP_COLL_PREFIX) ? Level.DEBUG : Level.INFO;
+		IndexBuild newBuild = new IndexBuild(coll.getNamespace(), sKeys);
+		IndexBuild build = pendingBuilds.putIfAbsent(coll.getNamespace() + " " + sKeys, newBuild);
+		if (build != null)
+			return build.getFuture();	// already being built
+
+		indexBuildExecutor.execute(() -> {
+			try {
+				if (fDropExistingFirst) {
+					LOG.log(logLevel, "Dropping wrong index " + sKeys + " on collection " + coll.getNamespace());
+					coll.dropIndex(keys);
+				}
+				long before = System.currentTimeMillis();
+				LOG.log(logLevel, "Creating index " + sKeys + " on collection " + coll.getNamespace());
+				try {
+					coll.createIndex(keys, options == null ? new IndexOptions() : options);
+				}
+				catch (MongoCommandException mce) {
+					if (!mce.getMessage().contains("already exists with a different name"))
+						throw mce;	// otherwise we have nothing to do because it already exists anyway
+				}
+				LOG.log(logLevel, "Index " + sKeys + " on collection " + coll.getNamespace() + " ready after " + (System.currentTimeMillis() - before) + "ms");
+				newBuild.future.complete(null);
+			}
+			catch (Throwable t) {
+				LOG.error("Unable to create index " + sKeys + " on collection " + coll.getNamespace(), t);
+				newBuild.future.completeExceptionally(t);
+			}
+			finally {
+				pendingBuilds.remove(coll.getNamespace() + " " + sKeys, newBuild);
+			}
+		});
+		return newBuild.getFuture();
+	}
+
+	/**
+	 * Gets the builds pending on a collection.
+	 *
+	 * @param namespace the collection's namespace
+	 * @return the pending builds
+	 */
+	public static List<IndexBuild> getPendingBuilds(MongoNamespace namespace) {
+		return pendingBuilds.values().stream().filter(build -> build.getNamespace().equals(namespace)).collect(Collectors.toList());
+	}
+
+	/**
+	 * Gets the builds pending in a database.
+	 *
+	 * @param sDbName the database name
+	 * @return the pending builds
+	 */
+	public static List<IndexBuild> getPendingBuilds(String sDbName) {
+		return pendingBuilds.values().stream().filter(build -> build.getNamespace().getDatabaseName().equals(sDbName)).collect(Collectors.toList());
+	}
+
+	/**
+	 * Checks whether all indexes submitted for a collection are built.
+	 *
+	 * @param namespace the collection's namespace
+	 * @return true, if no build is pending on it
+	 */
+	public static boolean isReady(MongoNamespace namespace) {
+		return getPendingBuilds(namespace).isEmpty();
+	}
+
+	/**
+	 * Waits for all indexes submitted for a collection to be built.
+	 *
+	 * @param namespace the collection's namespace
+	 * @param progress the progress indicator to report waiting through (may be null)
+	 * @throws InterruptedException
+	 * @throws ExecutionException if a build failed
+	 */
+	public static void awaitBuilds(MongoNamespace namespace, ProgressIndicator progress) throws InterruptedException, ExecutionException {
+		awaitBuilds(getPendingBuilds(namespace), progress);
+	}
+
+	/**
+	 * Waits for all indexes submitted for a database to be built.
+	 *
+	 * @param sDbName the database name
+	 * @param progress the progress indicator to report waiting through (may be null)
+	 * @throws InterruptedException
+	 * @throws ExecutionException if a build failed
+	 */
+	public static void awaitBuilds(String sDbName, ProgressIndicator progress) throws InterruptedException, ExecutionException {
+		awaitBuilds(getPendingBuilds(sDbName), progress);
+	}
+
+	/**
+	 * Waits for the given builds to complete, reporting which one is being waited for through the progress indicator's description.
+	 *
+	 * @param builds the builds
+	 * @param progress the progress indicator (may be null)
+	 * @throws InterruptedException
+	 * @throws ExecutionException if a build failed
+	 */
+	private static void awaitBuilds(Collection<IndexBuild> builds, ProgressIndicator progress) throws InterruptedException, ExecutionException {
+		if (builds.isEmpty())
+			return;
+
+		List<IndexBuild> buildList = new ArrayList<>(builds);
+		try {
+			for (int i=0; i<buildList.size(); i++) {
+				IndexBuild build = buildList.get(i);
+				if (progress != null && !build.getFuture().isDone())
+					progress.setProgressDescription("Waiting for index creation (" + (i + 1) + "/" + buildList.size() + "): " + build.getKeys());
+				build.getFuture().get();
+			}
+		}
+		finally {
+			if (progress != null)
+				progress.setProgressDescription(null);
+		}
+	}
+}
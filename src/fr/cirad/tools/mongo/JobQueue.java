@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Queue of jobs (typically imports and exports) stored in each module's database, so that any application node may claim and run them.
+ * A running job is held through a lease renewed by its node's heartbeat: jobs whose node died are claimed again once their lease has expired, up to MAX_ATTEMPTS times.
+ * Lease expiry is computed by the database server, as for LeaseLock. A running job's document is written again by its heartbeat if it has disappeared (e.g. because the job dropped the module's database), which may also be triggered right away through reassertRunningJobs.
+ * Nodes willing to run jobs register a handler for each job type they support, and start workers.
+ * Nothing in this library queues jobs or starts workers by itself: this is an API for the application, which decides what runs as a job and on which nodes.
+ */
+public class JobQueue
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(JobQueue.class);
+
+	/** The Constant COLLECTION_NAME. */
+	static final public String COLLECTION_NAME = "jobQueue";
+
+	static final public String FIELDNAME_TYPE = "ty";
+	static final public String FIELDNAME_STATUS = "st";
+	static final public String FIELDNAME_PARAMETERS = "pa";
+	static final public String FIELDNAME_SUBMITTED = "sub";
+	static final public String FIELDNAME_NODE = "n";
+	static final public String FIELDNAME_EXPIRY = "x";
+	static final public String FIELDNAME_ATTEMPTS = "at";
+	static final public String FIELDNAME_ERROR = "err";
+
+	static final public String STATUS_QUEUED = "QUEUED";
+	static final public String STATUS_RUNNING = "RUNNING";
+	static final public String STATUS_DONE = "DONE";
+	static final public String STATUS_FAILED = "FAILED";
+
+	/** Number of times a job is claimed before being considered as failed (a job being claimed again means its node died while running it) */
+	static final public int MAX_ATTEMPTS = 3;
+
+	/** How often workers look for jobs to claim */
+	static final public long POLL_INTERVAL_MS = 5000;
+
+	/**
+	 * Runs jobs of a given type.
+	 */
+	@FunctionalInterface
+	public interface JobHandler
+	{
+		/**
+		 * Runs a job.
+		 *
+		 * @param sModule the module the job was queued in
+		 * @param sJobId the job ID
+		 * @param parameters the parameters provided when queueing the job
+		 * @throws Exception if the job failed
+		 */
+		void run(String sModule, String sJobId, Document parameters) throws Exception;
+	}
+
+	/** Handlers supported by this node, by job type */
+	static final private Map<String, JobHandler> handlers = new ConcurrentHashMap<>();
+
+	/** Jobs run by this node, by job ID */
+	static final private Map<Object, RunningJob> runningJobs = new ConcurrentHashMap<>();
+
+	/**
+	 * A job run by this node.
+	 */
+	static private class RunningJob
+	{
+		private final String sModule;
+
+		/** The job's document as claimed */
+		private final Document job;
+
+		private ScheduledFuture<?> heartbeat;
+
+		private RunningJob(String sModule, Document job) {
+			this.sModule = sModule;
+			this.job = job;
+		}
+	}
+
+	/** Databases in which the queue's index has been submitted */
+	static final private Set<String> indexedDatabases = ConcurrentHashMap.newKeySet();
+
+	static private ExecutorService workerPool = null;
+
+	static private Semaphore idleWorkers;
+
+	static private ScheduledFuture<?> poller;
+
+	/** Looks for jobs to claim. Kept apart from LeaseLock's heartbeat thread, so that slow polls never delay lease renewals */
+	static final private ScheduledExecutorService pollScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "JobQueuePoller");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Queues a job.
+	 *
+	 * @param sModule the module (whose database stores the job)
+	 * @param sType the job type
+	 * @param parameters the parameters to pass to the handler
+	 * @return the job ID
+	 */
+	public static String enqueue(String sModule, String sType, Document parameters) {
+		MongoCollection<Document> coll = getCollection(MongoTemplateManager.get(sModule));
+		ObjectId id = new ObjectId();
+		coll.insertOne(new Document("_id", id).append(FIELDNAME_TYPE, sType).append(FIELDNAME_STATUS, STATUS_QUEUED).append(FIELDNAME_PARAMETERS, parameters).append(FIELDNAME_SUBMITTED, new Date()).append(FIELDNAME_ATTEMPTS, 0));
+		return id.toHexString();
+	}
+
+	/**
+	 * Gets a job's document, for its status to be checked.
+	 *
+	 * @param sModule the module
+	 * @param sJobId the job ID
+	 * @return the job (null if unknown)
+	 */
+	public static Document getJob(String sModule, String sJobId) {
+		return getCollection(MongoTemplateManager.get(sModule)).find(Filters.eq("_id", new ObjectId(sJobId))).first();
+	}
+
+	/**
+	 * Registers the handler to run jobs of a given type with, on this node.
+	 *
+	 * @param sType the job type
+	 * @param handler the handler
+	 */
+	public static void registerHandler(String sType, JobHandler handler) {
+		handlers.put(sType, handler);
+	}
+
+	/**
+	 * Starts claiming jobs (of types a handler was registered for) from all modules' queues.
+	 *
+	 * @param nWorkerCount the maximum number of jobs this node may run at the same time
+	 */
+	synchronized public static void startWorkers(int nWorkerCount) {
+		if (workerPool != null)
+			throw new IllegalStateException("Workers already started");
+
+		AtomicInteger threadCount = new AtomicInteger();
+		workerPool = Executors.newFixedThreadPool(nWorkerCount, r -> {
+			Thread t = new Thread(r, "JobWorker-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		idleWorkers = new Semaphore(nWorkerCount);
+		poller = pollScheduler.scheduleWithFixedDelay(JobQueue::claimJobs, 0, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops claiming jobs. Jobs already running are left to complete.
+	 */
+	synchronized public static void stopWorkers() {
+		if (workerPool == null)
+			return;
+
+		poller.cancel(false);
+		workerPool.shutdown();
+		workerPool = null;
+	}
+
+	/**
+	 * Writes again the documents of jobs this node is running in a database that got dropped (typically by one of these jobs), so that their status remains available.
+	 *
+	 * @param mongoTemplate the database that got dropped
+	 */
+	public static void reassertRunningJobs(MongoTemplate mongoTemplate) {
+		indexedDatabases.remove(mongoTemplate.getDb().getName());	// the index was dropped too
+		for (RunningJob runningJob : runningJobs.values())
+			if (MongoTemplateManager.get(runningJob.sModule) == mongoTemplate)
+				renewLease(runningJob);
+	}
+
+	private static MongoCollection<Document> getCollection(MongoTemplate mongoTemplate) {
+		MongoCollection<Document> coll = mongoTemplate.getCollection(COLLECTION_NAME);
+		if (indexedDatabases.add(mongoTemplate.getDb().getName()))
+			IndexBuildCoordinator.submit(coll, Indexes.ascending(FIELDNAME_STATUS, FIELDNAME_TYPE, FIELDNAME_SUBMITTED), new IndexOptions());
+		return coll;
+	}
+
+	/**
+	 * Claims as many jobs as there are idle workers, looking into all modules' queues.
+	 */
+	private static void claimJobs() {
+		if (handlers.isEmpty())
+			return;
+
+		try {
+			for (String sModule : new ArrayList<>(MongoTemplateManager.getTemplateMap().keySet()))
+				while (idleWorkers.tryAcquire()) {
+					Document job = claimJob(sModule);
+					if (job == null) {
+						idleWorkers.release();
+						break;
+					}
+					workerPool.execute(() -> runJob(sModule, job));
+				}
+		}
+		catch (Exception e) {
+			LOG.warn("Error while looking for jobs to claim", e);
+		}
+	}
+
+	/**
+	 * Claims the oldest job that is queued, or whose lease has expired.
+	 */
+	private static Document claimJob(String sModule) {
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
+		if (mongoTemplate == null)
+			return null;	// module removed in the meantime
+
+		MongoCollection<Document> coll = getCollection(mongoTemplate);
+		Document job;
+		while ((job = coll.findOneAndUpdate(
+				Filters.and(Filters.in(FIELDNAME_TYPE, handlers.keySet()), Filters.or(Filters.eq(FIELDNAME_STATUS, STATUS_QUEUED), Filters.and(Filters.eq(FIELDNAME_STATUS, STATUS_RUNNING), LeaseLock.SERVER_LEASE_EXPIRED))),
+				Arrays.asList(new Document("$set", new Document(FIELDNAME_STATUS, STATUS_RUNNING).append(FIELDNAME_NODE, LeaseLock.NODE_ID).append(FIELDNAME_EXPIRY, LeaseLock.SERVER_LEASE_EXPIRY).append(FIELDNAME_ATTEMPTS, new Document("$add", Arrays.asList(new Document("$ifNull", Arrays.asList("$" + FIELDNAME_ATTEMPTS, 0)), 1))))),
+				new FindOneAndUpdateOptions().sort(Sorts.ascending(FIELDNAME_SUBMITTED)).returnDocument(ReturnDocument.AFTER))) != null) {
+			if (job.getInteger(FIELDNAME_ATTEMPTS, 1) <= MAX_ATTEMPTS)
+				return job;
+
+			LOG.error("Giving up job " + job.get("_id") + " in module " + sModule + " after " + MAX_ATTEMPTS + " attempts");
+			coll.updateOne(Filters.eq("_id", job.get("_id")), new Document("$set", new Document(FIELDNAME_STATUS, STATUS_FAILED).append(FIELDNAME_ERROR, "Abandoned after " + MAX_ATTEMPTS + " attempts")).append("$unset", new Document(FIELDNAME_EXPIRY, "")));
+		}
+		return null;
+	}
+
+	/**
+	 * Updates a job's document, writing it again as claimed if it has disappeared.
+	 *
+	 * @param runningJob the job
+	 * @param filter the filter the existing document must match
+	 * @param pipeline the update pipeline, which must set any field changing from the claimed document
+	 * @return false if an existing document did not match the filter (i.e. the job was claimed by another node)
+	 */
+	private static boolean upsert(RunningJob runningJob, Bson filter, List<Document> pipeline) {
+		List<Document> fullPipeline = new ArrayList<>();
+		fullPipeline.add(new Document("$set", toLiteralFields(runningJob.job)));
+		fullPipeline.addAll(pipeline);
+		try {
+			getCollection(MongoTemplateManager.get(runningJob.sModule)).updateOne(Filters.and(Filters.eq("_id", runningJob.job.get("_id")), filter), fullPipeline, new UpdateOptions().upsert(true));
+			return true;
+		}
+		catch (MongoWriteException mwe) {
+			if (ErrorCategory.fromErrorCode(mwe.getError().getCode()) == ErrorCategory.DUPLICATE_KEY)
+				return false;
+			throw mwe;
+		}
+	}
+
+	/**
+	 * Turns a document's fields (except _id) into a $set stage's contents, values being taken literally.
+	 */
+	private static Document toLiteralFields(Document doc) {
+		Document result = new Document();
+		for (Map.Entry<String, Object> field : doc.entrySet())
+			if (!"_id".equals(field.getKey()))
+				result.append(field.getKey(), new Document("$literal", field.getValue()));
+		return result;
+	}
+
+	private static void renewLease(RunningJob runningJob) {
+		Object id = runningJob.job.get("_id");
+		try {
+			if (!upsert(runningJob, Filters.and(Filters.eq(FIELDNAME_NODE, LeaseLock.NODE_ID), Filters.eq(FIELDNAME_STATUS, STATUS_RUNNING)), Arrays.asList(new Document("$set", new Document(FIELDNAME_EXPIRY, LeaseLock.SERVER_LEASE_EXPIRY))))) {
+				LOG.error("Lease lost for job " + id + " in module " + runningJob.sModule + ", which was claimed by another node");
+				runningJob.heartbeat.cancel(false);
+			}
+		}
+		catch (Exception e) {
+			LOG.warn("Unable to renew lease for job " + id + " in module " + runningJob.sModule, e);
+		}
+	}
+
+	private static void runJob(String sModule, Document job) {
+		Object id = job.get("_id");
+		RunningJob runningJob = new RunningJob(sModule, job);
+		runningJob.heartbeat = LeaseLock.heartbeatScheduler.scheduleWithFixedDelay(() -> renewLease(runningJob), LeaseLock.LEASE_DURATION_MS / 3, LeaseLock.LEASE_DURATION_MS / 3, TimeUnit.MILLISECONDS);
+		runningJobs.put(id, runningJob);
+
+		Document result = new Document(FIELDNAME_STATUS, STATUS_DONE);
+		try {
+			LOG.info("Running " + job.get(FIELDNAME_TYPE) + " job " + id + " from module " + sModule);
+			handlers.get(job.getString(FIELDNAME_TYPE)).run(sModule, id.toString(), (Document) job.get(FIELDNAME_PARAMETERS));
+		}
+		catch (Throwable t) {
+			LOG.error("Job " + id + " from module " + sModule + " failed", t);
+			result = new Document(FIELDNAME_STATUS, STATUS_FAILED).append(FIELDNAME_ERROR, String.valueOf(t.getMessage()));
+		}
+		finally {
+			runningJob.heartbeat.cancel(false);
+			runningJobs.remove(id);
+			try {
+				if (!upsert(runningJob, Filters.eq(FIELDNAME_NODE, LeaseLock.NODE_ID), Arrays.asList(new Document("$set", toLiteralFields(result)), new Document("$unset", FIELDNAME_EXPIRY))))
+					LOG.error("Unable to record completion of job " + id + " in module " + sModule + ", which was claimed by another node");
+			}
+			catch (Exception e) {
+				LOG.error("Unable to record completion of job " + id + " in module " + sModule, e);
+			}
+			idleWorkers.release();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Lock shared by all application nodes working on a database, stored in the database itself. It is held through a lease that a background heartbeat keeps renewing:
+ * if the holding node dies, the lease expires and the lock may be acquired by another node, without any manual cleanup.
+ * Lease expiry dates are computed and compared by the database server ($$NOW), so that nodes' clocks need not be in sync.
+ * Acquiring a lock already held by the current thread succeeds (nested acquisitions being counted), so that e.g. an importer may delegate to another one.
+ */
+public class LeaseLock
+{
+	/** The Constant LOG. */
+	private static final Logger LOG = Logger.getLogger(LeaseLock.class);
+
+	/** The Constant COLLECTION_NAME. */
+	static final public String COLLECTION_NAME = "leaseLocks";
+
+	static final public String FIELDNAME_KIND = "k";
+	static final public String FIELDNAME_TOKEN = "o";
+	static final public String FIELDNAME_NODE = "n";
+	static final public String FIELDNAME_DESCRIPTION = "d";
+	static final public String FIELDNAME_ACQUIRED = "t";
+	static final public String FIELDNAME_EXPIRY = "x";
+
+	/** How long a lease remains valid without being renewed */
+	static final public long LEASE_DURATION_MS = 60000;
+
+	/** Lease expiry as computed by the database server in pipeline updates, so that clock differences between nodes do not matter */
+	static final Document SERVER_LEASE_EXPIRY = new Document("$add", Arrays.asList("$$NOW", LEASE_DURATION_MS));
+
+	/** Matches documents whose lease has expired according to the database server's clock */
+	static final Bson SERVER_LEASE_EXPIRED = Filters.expr(new Document("$lt", Arrays.asList("$" + FIELDNAME_EXPIRY, "$$NOW")));
+
+	/** Identifies the current JVM among application nodes */
+	static final public String NODE_ID = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+
+	/** Renews leases held by this node (also used by JobQueue to renew job leases) */
+	static final ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "LeaseHeartbeat");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Locks currently held by this node, by database and lock ID */
+	static final private ConcurrentHashMap<String, LeaseLock> heldLocks = new ConcurrentHashMap<>();
+
+	private final MongoTemplate mongoTemplate;
+
+	private final String sId;
+
+	private final String sKind, sDescription;
+
+	private final String sToken = UUID.randomUUID().toString();
+
+	private final Thread owningThread = Thread.currentThread();
+
+	private int nHoldCount = 1;
+
+	private volatile boolean fLost = false;
+
+	private ScheduledFuture<?> heartbeat;
+
+	private LeaseLock(MongoTemplate mongoTemplate, String sKind, String sId, String sDescription) {
+		this.mongoTemplate = mongoTemplate;
+		this.sKind = sKind;
+		this.sId = sId;
+		this.sDescription = sDescription;
+	}
+
+	private static String getKey(MongoTemplate mongoTemplate, String sId) {
+		return mongoTemplate.getDb().getName() + "/" + sId;
+	}
+
+	/**
+	 * Tries and acquires a lock.
+	 *
+	 * @param mongoTemplate the database the lock applies to
+	 * @param sKind the kind of lock (e.g. "import")
+	 * @param sId the lock ID, unique within the database (e.g. "import¤" + project name)
+	 * @param sDescription what the lock is acquired for (e.g. a process ID), for holders to be identifiable
+	 * @return the lock, or null if it is held by another thread or node
+	 */
+	public static LeaseLock tryAcquire(MongoTemplate mongoTemplate, String sKind, String sId, String sDescription) {
+		String sKey = getKey(mongoTemplate, sId);
+		synchronized (heldLocks) {
+			LeaseLock held = heldLocks.get(sKey);
+			if (held != null) {
+				if (held.owningThread != Thread.currentThread() || held.fLost)
+					return null;
+				held.nHoldCount++;
+				return held;
+			}
+
+			LeaseLock lock = new LeaseLock(mongoTemplate, sKind, sId, sDescription);
+			if (!lock.upsert(Filters.and(Filters.eq("_id", sId), SERVER_LEASE_EXPIRED), true))	// only matches if the existing lease has expired
+				return null;
+
+			heldLocks.put(sKey, lock);
+			lock.heartbeat = heartbeatScheduler.scheduleWithFixedDelay(lock::renew, LEASE_DURATION_MS / 3, LEASE_DURATION_MS / 3, TimeUnit.MILLISECONDS);
+			return lock;
+		}
+	}
+
+	/**
+	 * Writes the lock's document with a renewed lease, inserting it if none exists with the lock's ID.
+	 *
+	 * @param filter the filter an existing document must match to be overwritten
+	 * @param fAcquiring whether the lock is being acquired (otherwise the acquisition date is only set if the document gets inserted)
+	 * @return false if an existing document did not match the filter (i.e. the upsert failed with a duplicate key)
+	 */
+	private boolean upsert(Bson filter, boolean fAcquiring) {
+		Document fields = new Document(FIELDNAME_KIND, new Document("$literal", sKind)).append(FIELDNAME_TOKEN, sToken).append(FIELDNAME_NODE, NODE_ID).append(FIELDNAME_DESCRIPTION, new Document("$literal", sDescription)).append(FIELDNAME_EXPIRY, SERVER_LEASE_EXPIRY)
+				.append(FIELDNAME_ACQUIRED, fAcquiring ? "$$NOW" : new Document("$ifNull", Arrays.asList("$" + FIELDNAME_ACQUIRED, "$$NOW")));
+		try {
+			getCollection(mongoTemplate).updateOne(filter, Arrays.asList(new Document("$set", fields)), new UpdateOptions().upsert(true));	// pipeline update, for times to be the server's
+			return true;
+		}
+		catch (MongoWriteException mwe) {
+			if (ErrorCategory.fromErrorCode(mwe.getError().getCode()) == ErrorCategory.DUPLICATE_KEY)
+				return false;
+			throw mwe;
+		}
+	}
+
+	/**
+	 * Renews the lease right away. The lock's document is written again if it has disappeared (e.g. because the database storing it got dropped),
+	 * but the lease is considered lost if another thread or node has acquired the lock in the meantime.
+	 *
+	 * @return true, if the lease is still held
+	 */
+	public boolean reassert() {
+		if (fLost)
+			return false;
+
+		if (upsert(Filters.and(Filters.eq("_id", sId), Filters.eq(FIELDNAME_TOKEN, sToken)), false))
+			return true;
+
+		LOG.error("Lease lost for lock " + sId + " in database " + mongoTemplate.getDb().getName());
+		fLost = true;
+		heartbeat.cancel(false);
+		return false;
+	}
+
+	private void renew() {
+		try {
+			reassert();
+		}
+		catch (Exception e) {
+			LOG.warn("Unable to renew lease for lock " + sId + " in database " + mongoTemplate.getDb().getName(), e);	// will be retried on next heartbeat, the lease being long enough to survive a few failures
+		}
+	}
+
+	/**
+	 * Checks whether the lease is still held, i.e. has not been lost because of heartbeats failing for too long.
+	 *
+	 * @return true, if it is
+	 */
+	public boolean isHeld() {
+		return !fLost && nHoldCount > 0;
+	}
+
+	/**
+	 * Releases the lock (only effective once all nested acquisitions have been released).
+	 */
+	public void release() {
+		synchronized (heldLocks) {
+			if (nHoldCount == 0 || --nHoldCount > 0)
+				return;
+
+			heldLocks.remove(getKey(mongoTemplate, sId), this);
+			heartbeat.cancel(false);
+		}
+		try {
+			getCollection(mongoTemplate).deleteOne(Filters.and(Filters.eq("_id", sId), Filters.eq(FIELDNAME_TOKEN, sToken)));
+		}
+		catch (Exception e) {
+			LOG.warn("Unable to release lock " + sId + " in database " + mongoTemplate.getDb().getName() + ", it will expire by itself", e);
+		}
+	}
+
+	/**
+	 * Gets the locks of a given kind currently held by any node.
+	 *
+	 * @param mongoTemplate the database
+	 * @param sKind the kind of lock
+	 * @return the lock documents, whose lease has not expired
+	 */
+	public static List<Document> getActiveLocks(MongoTemplate mongoTemplate, String sKind) {
+		return getCollection(mongoTemplate).find(Filters.and(Filters.eq(FIELDNAME_KIND, sKind), Filters.expr(new Document("$gt", Arrays.asList("$" + FIELDNAME_EXPIRY, "$$NOW"))))).into(new ArrayList<>());
+	}
+
+	private static MongoCollection<Document> getCollection(MongoTemplate mongoTemplate) {
+		return mongoTemplate.getCollection(COLLECTION_NAME);
+	}
+}
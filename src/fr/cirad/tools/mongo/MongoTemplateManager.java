@@ -55,6 +55,7 @@ import com.mongodb.connection.ServerDescription;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.mgdb.model.mongodao.SequencePositionIndex;
 import fr.cirad.tools.AppConfig;
 import fr.cirad.tools.Helper;
 
@@ -139,6 +140,9 @@ public class MongoTemplateManager implements ApplicationContextAware {
     @Override
     public void setApplicationContext(ApplicationContext ac) throws BeansException {
         initialize(ac);
+        String sPositionIndexFolder = appConfig.positionIndexFolder();
+        if (sPositionIndexFolder != null)
+        	SequencePositionIndex.setPersistenceFolder(sPositionIndexFolder.trim().isEmpty() ? null : new File(sPositionIndexFolder.trim()));
         String serverCleanupCSV = appConfig.dbServerCleanup();
         List<String> authorizedCleanupServers = serverCleanupCSV == null ? null : Arrays.asList(serverCleanupCSV.split(","));
 
@@ -443,9 +447,12 @@ public class MongoTemplateManager implements ApplicationContextAware {
 
             if (fAlsoDropDatabase)
                 templateMap.get(key).getDb().drop();
+            if (templateMap.containsKey(key))
+            	MgdbDao.invalidateVcfHeaderCache(templateMap.get(key), null);
             templateMap.remove(key);
             publicDatabases.remove(key);
             hiddenDatabases.remove(key);
+            MgdbDao.invalidateIndividualCache(key);
             return true;
         }
         catch (Exception ex)
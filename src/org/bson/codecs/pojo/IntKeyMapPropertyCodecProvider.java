@@ -27,17 +27,25 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import fr.cirad.tools.IntKeyHashMap;
+
 /* Based on MongoDB's org.bson.codecs.pojo.MapPropertyCodecProvider, added to be able to support Maps with Integer keys */
 final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvider {
 
     @SuppressWarnings({"rawtypes", "unchecked"})
     @Override
     public <T> Codec<T> get(final TypeWithTypeParameters<T> type, final PropertyCodecRegistry registry) {
+        if (IntKeyHashMap.class.equals(type.getType()) && type.getTypeParameters().size() == 1)
+            return new IntKeyHashMapCodec(type.getType(), registry.get(type.getTypeParameters().get(0)));	// primitive map: keys are neither parsed through Integer.parseInt nor boxed
+
         if (Map.class.isAssignableFrom(type.getType()) && type.getTypeParameters().size() == 2) {
             Class<?> keyType = type.getTypeParameters().get(0).getType();
             if (!keyType.equals(Integer.class))
             	return null;	/* is this good enough or should we return MapPropertyCodecProvider.get(type, registry) instead? */
 
+            if (Map.class.equals(type.getType()))	// e.g. when a Map setter overload is the one picked for the property: decoding into an IntKeyHashMap is then still possible
+                return new IntKeyHashMapCodec(type.getType(), registry.get(type.getTypeParameters().get(1)));
+
             try {
                 return new MapCodec(type.getType(), registry.get(type.getTypeParameters().get(1)));
             } catch (CodecConfigurationException e) {
@@ -110,4 +118,61 @@ final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvid
             }
         }
     }
+
+    /* Decodes int-keyed documents (typically VariantRunData's sample genotypes) into IntKeyHashMap instances, and encodes any Map with Integer keys */
+    private static class IntKeyHashMapCodec<T> implements Codec<Map<Integer, T>> {
+        private final Class<Map<Integer, T>> encoderClass;
+        private final Codec<T> codec;
+
+        /* Size of the last decoded map: documents decoded by a given codec (e.g. runs of a same project) usually hold similar numbers of entries, so this saves most resizing */
+        private volatile int nLastSize = 0;
+
+        IntKeyHashMapCodec(final Class<Map<Integer, T>> encoderClass, final Codec<T> codec) {
+            this.encoderClass = encoderClass;
+            this.codec = codec;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void encode(final BsonWriter writer, final Map<Integer, T> map, final EncoderContext encoderContext) {
+            writer.writeStartDocument();
+            if (map instanceof IntKeyHashMap)
+                ((IntKeyHashMap<T>) map).forEachEntry((key, value) -> encodeEntry(writer, key, value, encoderContext));
+            else
+                for (final Entry<Integer, T> entry : map.entrySet())
+                    encodeEntry(writer, entry.getKey(), entry.getValue(), encoderContext);
+            writer.writeEndDocument();
+        }
+
+        private void encodeEntry(final BsonWriter writer, final int key, final T value, final EncoderContext encoderContext) {
+            writer.writeName(Integer.toString(key));
+            if (value == null)
+                writer.writeNull();
+            else
+                encoderContext.encodeWithChildContext(codec, writer, value);
+        }
+
+        @Override
+        public IntKeyHashMap<T> decode(final BsonReader reader, final DecoderContext context) {
+            reader.readStartDocument();
+            IntKeyHashMap<T> map = new IntKeyHashMap<T>(nLastSize);
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                int key = Integer.parseInt(reader.readName());
+                if (reader.getCurrentBsonType() == BsonType.NULL) {
+                    map.put(key, null);
+                    reader.readNull();
+                }
+                else
+                    map.put(key, codec.decode(reader, context));
+            }
+            reader.readEndDocument();
+            nLastSize = map.size();
+            return map;
+        }
+
+        @Override
+        public Class<Map<Integer, T>> getEncoderClass() {
+            return encoderClass;
+        }
+    }
 }
\ No newline at end of file